@@ -0,0 +1,180 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.laytonsmith.PureUtilities.DaemonManager;
+import com.laytonsmith.persistence.DataSourceException;
+import com.laytonsmith.persistence.ReadOnlyException;
+import com.laytonsmith.persistence.io.ConnectionMixinFactory;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the data source's gets, sets, key listings, and transaction commits, through the same public methods the
+ * Persistence Network calls, against a {@link FakeDynamoDB}.
+ * <p>
+ * The table is loaded with {@link #KEYS} keys before each trial. The concurrent variants run with 16 threads, and any
+ * benchmark can be run with other thread counts with JMH's -t option. Any of the data source's own parameters, such as
+ * cacheSize, readCoalesceWindow, or valueCodec, can be given in the options parameter, for instance
+ * {@code -p options=cacheSize=10000&readCoalesceWindow=2}. The async engine needs a real endpoint, so against the fake,
+ * engine=async runs the same as the sync engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataSourceBenchmark {
+
+	private static final String TABLE_NAME = "benchmark";
+	private static final int KEYS = 1000;
+	private static final int TRANSACTION_SIZE = 10;
+	private static final int CONCURRENCY = 16;
+
+	/**
+	 * The number of segments in each key, including the last.
+	 */
+	@Param({"2", "6"})
+	public int keyDepth;
+
+	/**
+	 * The length of each value, in characters.
+	 */
+	@Param({"100", "10000"})
+	public int valueSize;
+
+	/**
+	 * The partition depth of the table, or 0 for the flat layout.
+	 */
+	@Param({"0"})
+	public int partitionDepth;
+
+	/**
+	 * How long each request to the fake takes.
+	 */
+	@Param({"1000"})
+	public long latencyMicros;
+
+	/**
+	 * The fraction of requests to the fake which are throttled.
+	 */
+	@Param({"0"})
+	public double throttleRate;
+
+	/**
+	 * More URI parameters for the data source, joined with &amp;.
+	 */
+	@Param({""})
+	public String options;
+
+	private DynamoDBDataSource dataSource;
+	private final DaemonManager dm = new DaemonManager();
+	private String[][] keys;
+	private String value;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		if(keyDepth < 2) {
+			throw new IllegalArgumentException("keyDepth must be at least 2");
+		}
+		FakeDynamoDB fake = new FakeDynamoDB(TABLE_NAME, KeyLayout.forDepth(partitionDepth), latencyMicros,
+				throttleRate, 0, 0);
+		char[] chars = new char[valueSize];
+		Arrays.fill(chars, 'x');
+		value = new String(chars);
+		keys = new String[KEYS][];
+		for(int i = 0; i < KEYS; i++) {
+			String[] key = new String[keyDepth];
+			key[0] = "bench";
+			for(int j = 1; j < keyDepth - 1; j++) {
+				key[j] = "level" + j;
+			}
+			key[keyDepth - 1] = "key" + i;
+			keys[i] = key;
+			fake.load(String.join(".", key), value);
+		}
+		ClientRegistry.clientFactory = settings -> fake;
+		dataSource = new DynamoDBDataSource(new URI("dynamodb://aws/?region=us-east-1&tableName=" + TABLE_NAME
+				+ "&partitionDepth=" + partitionDepth + (options.isEmpty() ? "" : "&" + options)),
+				new ConnectionMixinFactory.ConnectionMixinOptions());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws DataSourceException {
+		dataSource.disconnect();
+		ClientRegistry.clientFactory = null;
+	}
+
+	private String[] randomKey() {
+		return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+	}
+
+	@Benchmark
+	public String get() throws DataSourceException {
+		return dataSource.get(randomKey());
+	}
+
+	@Benchmark
+	@Threads(CONCURRENCY)
+	public String getConcurrent() throws DataSourceException {
+		return dataSource.get(randomKey());
+	}
+
+	@Benchmark
+	public boolean set() throws DataSourceException, ReadOnlyException, IOException {
+		return dataSource.set(dm, randomKey(), value);
+	}
+
+	@Benchmark
+	@Threads(CONCURRENCY)
+	public boolean setConcurrent() throws DataSourceException, ReadOnlyException, IOException {
+		return dataSource.set(dm, randomKey(), value);
+	}
+
+	/**
+	 * Lists all the keys, which is a scan in the flat layout, or a query if keyDepth is deeper than partitionDepth.
+	 */
+	@Benchmark
+	public int keySet() throws DataSourceException {
+		String[] prefix = Arrays.copyOf(randomKey(), keyDepth - 1);
+		int count = 0;
+		for(String[] key : dataSource.keySet(prefix)) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Commits a transaction of {@link #TRANSACTION_SIZE} sets, with whichever transactionMode the options select.
+	 */
+	@Benchmark
+	public void transaction() throws DataSourceException, ReadOnlyException, IOException {
+		dataSource.startTransaction(dm);
+		for(int i = 0; i < TRANSACTION_SIZE; i++) {
+			dataSource.set(dm, randomKey(), value);
+		}
+		dataSource.stopTransaction(dm, false);
+	}
+
+}
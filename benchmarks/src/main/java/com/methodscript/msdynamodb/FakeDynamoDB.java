@@ -0,0 +1,484 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TableStatus;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-process stand-in for a single DynamoDB table, which supports just the requests the data source makes, so that
+ * it can be benchmarked without a network or an AWS account.
+ * <p>
+ * Each request waits for the configured latency, and may be throttled at the configured rate. A throttled single item
+ * request waits a little longer, as it would while the SDK retried it, and a throttled batch has half its items left
+ * unprocessed. The 400KB item size limit is enforced, and consumed capacity is reported the way DynamoDB calculates
+ * it. Filter and key condition expressions are not parsed, rather, the prefix, partition, and chunk filters that
+ * {@link KeyLayout} sends are applied by looking at the expression attribute values, and condition expressions are
+ * ignored. Update expressions are assumed to be the atomic add that sharded sums are written with.
+ */
+class FakeDynamoDB extends AbstractAmazonDynamoDB {
+
+	private static final int MAX_ITEM_SIZE = 400 * 1024;
+	/**
+	 * The number of items in a page of a Scan or Query. DynamoDB limits pages to 1MB, which for the key only items of a
+	 * key listing is a few thousand items.
+	 */
+	private static final int PAGE_SIZE = 2000;
+	/**
+	 * How many times the latency a throttled single item request takes, to stand in for the SDK's retries.
+	 */
+	private static final int THROTTLE_PENALTY = 4;
+
+	private final String tableName;
+	private final KeyLayout layout;
+	private final long latencyNanos;
+	private final double throttleRate;
+	private final long readCapacityUnits;
+	private final long writeCapacityUnits;
+	/**
+	 * The items, keyed by the full dotted key, which is unique in both layouts.
+	 */
+	private final ConcurrentSkipListMap<String, Map<String, AttributeValue>> items = new ConcurrentSkipListMap<>();
+	/**
+	 * Single item writes take the read lock, and transactions take the write lock, so that transactions are atomic.
+	 */
+	private final ReadWriteLock transactionLock = new ReentrantReadWriteLock();
+
+	/**
+	 * @param tableName
+	 * @param layout The key layout the table is in
+	 * @param latencyMicros How long each request takes
+	 * @param throttleRate The fraction of requests which are throttled, between 0 and 1
+	 * @param readCapacityUnits The provisioned read capacity that is reported, or 0 for on demand
+	 * @param writeCapacityUnits The provisioned write capacity that is reported, or 0 for on demand
+	 */
+	FakeDynamoDB(String tableName, KeyLayout layout, long latencyMicros, double throttleRate, long readCapacityUnits,
+			long writeCapacityUnits) {
+		this.tableName = tableName;
+		this.layout = layout;
+		this.latencyNanos = latencyMicros * 1000;
+		this.throttleRate = throttleRate;
+		this.readCapacityUnits = readCapacityUnits;
+		this.writeCapacityUnits = writeCapacityUnits;
+	}
+
+	/**
+	 * Puts an item in the table directly, without any latency, for setting up a benchmark.
+	 *
+	 * @param key The full dotted key
+	 * @param value
+	 */
+	void load(String key, String value) {
+		Map<String, AttributeValue> item = layout.toKey(key);
+		item.put(ValueCodec.VALUE_ATTRIBUTE, new AttributeValue(value));
+		items.put(key, item);
+	}
+
+	int size() {
+		return items.size();
+	}
+
+	/**
+	 * Waits for the latency, and returns true if the request should be throttled.
+	 */
+	private boolean request() {
+		boolean throttled = throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate;
+		if(latencyNanos > 0) {
+			LockSupport.parkNanos(latencyNanos);
+		}
+		return throttled;
+	}
+
+	/**
+	 * Waits for the latency of a single item request, and if it is throttled, for the SDK's retries as well.
+	 */
+	private void singleRequest() {
+		if(request()) {
+			LockSupport.parkNanos(Math.max(latencyNanos, 1000000) * THROTTLE_PENALTY);
+		}
+	}
+
+	private void checkTable(String name) {
+		if(!tableName.equals(name)) {
+			throw new ResourceNotFoundException("Requested resource not found: Table: " + name + " not found");
+		}
+	}
+
+	private static String keyOf(Map<String, AttributeValue> key) {
+		return key.get(KeyLayout.KEY_ATTRIBUTE).getS();
+	}
+
+	private static long sizeOf(Map<String, AttributeValue> item) {
+		if(item == null) {
+			return 0;
+		}
+		long size = 0;
+		for(Map.Entry<String, AttributeValue> e : item.entrySet()) {
+			size += e.getKey().length();
+			AttributeValue v = e.getValue();
+			if(v.getS() != null) {
+				// The benchmarks only use ASCII, so this is the same as the UTF-8 length
+				size += v.getS().length();
+			} else if(v.getB() != null) {
+				size += v.getB().remaining();
+			} else if(v.getN() != null) {
+				size += v.getN().length();
+			}
+		}
+		return size;
+	}
+
+	private static double readUnits(long bytes, Boolean consistentRead) {
+		double units = Math.max(1, Math.ceil(bytes / 4096.0));
+		return Boolean.TRUE.equals(consistentRead) ? units : units / 2;
+	}
+
+	private static double writeUnits(long bytes) {
+		return Math.max(1, Math.ceil(bytes / 1024.0));
+	}
+
+	private ConsumedCapacity consumed(String returnConsumedCapacity, double units) {
+		if(returnConsumedCapacity == null || ReturnConsumedCapacity.NONE.toString().equals(returnConsumedCapacity)) {
+			return null;
+		}
+		return new ConsumedCapacity().withTableName(tableName).withCapacityUnits(units);
+	}
+
+	private List<ConsumedCapacity> consumedList(String returnConsumedCapacity, double units) {
+		ConsumedCapacity c = consumed(returnConsumedCapacity, units);
+		return c == null ? null : Collections.singletonList(c);
+	}
+
+	private static void checkSize(Map<String, AttributeValue> item) {
+		if(sizeOf(item) > MAX_ITEM_SIZE) {
+			AmazonDynamoDBException ex = new AmazonDynamoDBException("Item size has exceeded the maximum allowed size");
+			ex.setErrorCode("ValidationException");
+			ex.setStatusCode(400);
+			throw ex;
+		}
+	}
+
+	private Map<String, AttributeValue> put(Map<String, AttributeValue> item) {
+		checkSize(item);
+		return items.put(keyOf(item), new HashMap<>(item));
+	}
+
+	@Override
+	public DescribeTableResult describeTable(String tableName) {
+		return describeTable(new DescribeTableRequest().withTableName(tableName));
+	}
+
+	@Override
+	public DescribeTableResult describeTable(DescribeTableRequest request) {
+		request();
+		checkTable(request.getTableName());
+		return new DescribeTableResult().withTable(new TableDescription()
+				.withTableName(tableName)
+				.withTableStatus(TableStatus.ACTIVE.toString())
+				.withKeySchema(layout.getKeySchema())
+				.withAttributeDefinitions(layout.getAttributeDefinitions())
+				.withItemCount((long) items.size())
+				.withProvisionedThroughput(new ProvisionedThroughputDescription()
+						.withReadCapacityUnits(readCapacityUnits)
+						.withWriteCapacityUnits(writeCapacityUnits)));
+	}
+
+	@Override
+	public GetItemResult getItem(GetItemRequest request) {
+		singleRequest();
+		checkTable(request.getTableName());
+		Map<String, AttributeValue> item = items.get(keyOf(request.getKey()));
+		return new GetItemResult().withItem(item)
+				.withConsumedCapacity(consumed(request.getReturnConsumedCapacity(),
+						readUnits(sizeOf(item), request.getConsistentRead())));
+	}
+
+	@Override
+	public PutItemResult putItem(PutItemRequest request) {
+		singleRequest();
+		checkTable(request.getTableName());
+		Map<String, AttributeValue> old;
+		transactionLock.readLock().lock();
+		try {
+			old = put(request.getItem());
+		} finally {
+			transactionLock.readLock().unlock();
+		}
+		return new PutItemResult()
+				.withAttributes(ReturnValue.ALL_OLD.toString().equals(request.getReturnValues()) ? old : null)
+				.withConsumedCapacity(consumed(request.getReturnConsumedCapacity(),
+						writeUnits(Math.max(sizeOf(old), sizeOf(request.getItem())))));
+	}
+
+	@Override
+	public UpdateItemResult updateItem(UpdateItemRequest request) {
+		singleRequest();
+		checkTable(request.getTableName());
+		Map<String, String> names = request.getExpressionAttributeNames();
+		Map<String, AttributeValue> values = request.getExpressionAttributeValues();
+		Map<String, AttributeValue> updated;
+		transactionLock.readLock().lock();
+		try {
+			updated = items.compute(keyOf(request.getKey()), (k, old) -> {
+				Map<String, AttributeValue> item = old == null ? new HashMap<>(request.getKey()) : new HashMap<>(old);
+				AttributeValue current = item.get(names.get("#n"));
+				BigDecimal sum = current == null ? BigDecimal.ZERO : new BigDecimal(current.getN());
+				item.put(names.get("#n"), new AttributeValue().withN(sum.add(new BigDecimal(values.get(":d").getN()))
+						.toPlainString()));
+				if(names.containsKey("#o")) {
+					item.put(names.get("#o"), values.get(":o"));
+				}
+				checkSize(item);
+				return item;
+			});
+		} finally {
+			transactionLock.readLock().unlock();
+		}
+		return new UpdateItemResult()
+				.withConsumedCapacity(consumed(request.getReturnConsumedCapacity(), writeUnits(sizeOf(updated))));
+	}
+
+	@Override
+	public DeleteItemResult deleteItem(DeleteItemRequest request) {
+		singleRequest();
+		checkTable(request.getTableName());
+		Map<String, AttributeValue> old;
+		transactionLock.readLock().lock();
+		try {
+			old = items.remove(keyOf(request.getKey()));
+		} finally {
+			transactionLock.readLock().unlock();
+		}
+		return new DeleteItemResult()
+				.withAttributes(ReturnValue.ALL_OLD.toString().equals(request.getReturnValues()) ? old : null)
+				.withConsumedCapacity(consumed(request.getReturnConsumedCapacity(), writeUnits(sizeOf(old))));
+	}
+
+	@Override
+	public BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+		boolean throttled = request();
+		for(String name : request.getRequestItems().keySet()) {
+			checkTable(name);
+		}
+		KeysAndAttributes keys = request.getRequestItems().get(tableName);
+		List<Map<String, AttributeValue>> found = new ArrayList<>();
+		List<Map<String, AttributeValue>> unprocessed = new ArrayList<>();
+		double units = 0;
+		int processed = throttled ? keys.getKeys().size() / 2 : keys.getKeys().size();
+		for(int i = 0; i < keys.getKeys().size(); i++) {
+			Map<String, AttributeValue> key = keys.getKeys().get(i);
+			if(i >= processed) {
+				unprocessed.add(key);
+				continue;
+			}
+			Map<String, AttributeValue> item = items.get(keyOf(key));
+			units += readUnits(sizeOf(item), keys.getConsistentRead());
+			if(item != null) {
+				found.add(item);
+			}
+		}
+		Map<String, KeysAndAttributes> unprocessedKeys = new HashMap<>();
+		if(!unprocessed.isEmpty()) {
+			unprocessedKeys.put(tableName, new KeysAndAttributes().withKeys(unprocessed)
+					.withConsistentRead(keys.getConsistentRead()));
+		}
+		return new BatchGetItemResult()
+				.withResponses(Collections.singletonMap(tableName, found))
+				.withUnprocessedKeys(unprocessedKeys)
+				.withConsumedCapacity(consumedList(request.getReturnConsumedCapacity(), units));
+	}
+
+	@Override
+	public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+		boolean throttled = request();
+		for(String name : request.getRequestItems().keySet()) {
+			checkTable(name);
+		}
+		List<WriteRequest> writes = request.getRequestItems().get(tableName);
+		List<WriteRequest> unprocessed = new ArrayList<>();
+		double units = 0;
+		int processed = throttled ? writes.size() / 2 : writes.size();
+		transactionLock.readLock().lock();
+		try {
+			for(int i = 0; i < writes.size(); i++) {
+				WriteRequest write = writes.get(i);
+				if(i >= processed) {
+					unprocessed.add(write);
+				} else if(write.getPutRequest() != null) {
+					units += writeUnits(sizeOf(write.getPutRequest().getItem()));
+					put(write.getPutRequest().getItem());
+				} else {
+					units += writeUnits(sizeOf(items.remove(keyOf(write.getDeleteRequest().getKey()))));
+				}
+			}
+		} finally {
+			transactionLock.readLock().unlock();
+		}
+		Map<String, List<WriteRequest>> unprocessedItems = new HashMap<>();
+		if(!unprocessed.isEmpty()) {
+			unprocessedItems.put(tableName, unprocessed);
+		}
+		return new BatchWriteItemResult()
+				.withUnprocessedItems(unprocessedItems)
+				.withConsumedCapacity(consumedList(request.getReturnConsumedCapacity(), units));
+	}
+
+	@Override
+	public TransactWriteItemsResult transactWriteItems(TransactWriteItemsRequest request) {
+		singleRequest();
+		double units = 0;
+		transactionLock.writeLock().lock();
+		try {
+			for(TransactWriteItem item : request.getTransactItems()) {
+				if(item.getPut() != null) {
+					checkTable(item.getPut().getTableName());
+					checkSize(item.getPut().getItem());
+				} else {
+					checkTable(item.getDelete().getTableName());
+				}
+			}
+			for(TransactWriteItem item : request.getTransactItems()) {
+				if(item.getPut() != null) {
+					units += 2 * writeUnits(sizeOf(item.getPut().getItem()));
+					put(item.getPut().getItem());
+				} else {
+					units += 2 * writeUnits(sizeOf(items.remove(keyOf(item.getDelete().getKey()))));
+				}
+			}
+		} finally {
+			transactionLock.writeLock().unlock();
+		}
+		return new TransactWriteItemsResult()
+				.withConsumedCapacity(consumedList(request.getReturnConsumedCapacity(), units));
+	}
+
+	/**
+	 * Returns one page of the items matching the filters that {@link KeyLayout#keysWithPrefix} sends.
+	 */
+	private Page page(NavigableMap<String, Map<String, AttributeValue>> range, Map<String, AttributeValue> startKey,
+			Map<String, AttributeValue> values, boolean keysOnly, int segment, int totalSegments) {
+		AttributeValue prefix = values == null ? null : values.get(":prefix");
+		AttributeValue partition = values == null ? null : values.get(":partition");
+		AttributeValue children = values == null ? null : values.get(":children");
+		if(startKey != null) {
+			range = range.tailMap(keyOf(startKey), false);
+		} else if(prefix != null) {
+			range = range.tailMap(prefix.getS(), true);
+		}
+		Page page = new Page();
+		Iterator<Map<String, AttributeValue>> it = range.values().iterator();
+		String key = null;
+		while(it.hasNext() && page.items.size() < PAGE_SIZE) {
+			Map<String, AttributeValue> item = it.next();
+			key = keyOf(item);
+			if(prefix != null && !key.startsWith(prefix.getS())) {
+				// The keys are sorted, so there are no more matches
+				return page;
+			}
+			page.scanned += sizeOf(item);
+			if(totalSegments > 1 && Math.floorMod(key.hashCode(), totalSegments) != segment) {
+				continue;
+			}
+			if(item.containsKey(ValueCodec.CHUNK_OF_ATTRIBUTE) || item.containsKey(KeySharding.SHARD_OF_ATTRIBUTE)) {
+				continue;
+			}
+			if(children != null && !key.equals(prefix.getS()) && !key.startsWith(children.getS())) {
+				// The prefix only matches whole segments
+				continue;
+			}
+			if(partition != null && !partition.getS().equals(layout.partitionOf(key))) {
+				continue;
+			}
+			page.items.add(keysOnly ? layout.toKey(key) : item);
+		}
+		if(it.hasNext()) {
+			page.lastEvaluatedKey = layout.toKey(key);
+		}
+		return page;
+	}
+
+	private static final class Page {
+
+		private final List<Map<String, AttributeValue>> items = new ArrayList<>();
+		private Map<String, AttributeValue> lastEvaluatedKey;
+		private long scanned;
+	}
+
+	@Override
+	public ScanResult scan(ScanRequest request) {
+		request();
+		checkTable(request.getTableName());
+		Page page = page(items, request.getExclusiveStartKey(), request.getExpressionAttributeValues(),
+				request.getProjectionExpression() != null,
+				request.getSegment() == null ? 0 : request.getSegment(),
+				request.getTotalSegments() == null ? 1 : request.getTotalSegments());
+		return new ScanResult().withItems(page.items).withLastEvaluatedKey(page.lastEvaluatedKey)
+				.withCount(page.items.size())
+				.withConsumedCapacity(consumed(request.getReturnConsumedCapacity(),
+						readUnits(page.scanned, request.getConsistentRead())));
+	}
+
+	@Override
+	public QueryResult query(QueryRequest request) {
+		request();
+		checkTable(request.getTableName());
+		Page page = page(items, request.getExclusiveStartKey(), request.getExpressionAttributeValues(),
+				request.getProjectionExpression() != null, 0, 1);
+		return new QueryResult().withItems(page.items).withLastEvaluatedKey(page.lastEvaluatedKey)
+				.withConsumedCapacity(consumed(request.getReturnConsumedCapacity(),
+						readUnits(page.scanned, request.getConsistentRead())));
+	}
+
+	@Override
+	public void shutdown() {
+
+	}
+
+}
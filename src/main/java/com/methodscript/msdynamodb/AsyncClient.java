@@ -0,0 +1,171 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.laytonsmith.persistence.DataSourceException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+
+/**
+ * Exposes the DynamoDB operations the data source uses as {@link CompletableFuture}s, so that batching, write behind,
+ * and hedged reads can be built as chains of callbacks.
+ * <p>
+ * With the async engine, requests are sent with the non-blocking client of version 2 of the AWS SDK, which is built
+ * on Netty, so a request doesn't hold any thread while it is in flight, and a few event loop threads can keep
+ * thousands of requests going. The requests and responses are translated by {@link SdkV2Translator}, so callers still
+ * use the model of version 1. With the sync engine, each call is made with the blocking client on the given executor,
+ * and with {@code Runnable::run}, that is the calling thread, so the returned future is already complete.
+ */
+class AsyncClient {
+
+	private final AmazonDynamoDB client;
+	private final DynamoDbAsyncClient nonBlockingClient;
+	private final Executor blockingExecutor;
+
+	/**
+	 * Makes every call with the blocking client.
+	 *
+	 * @param client The client
+	 * @param blockingExecutor Where the blocking calls are run. Use {@code Runnable::run} to run them in the calling
+	 * thread.
+	 */
+	AsyncClient(AmazonDynamoDB client, Executor blockingExecutor) {
+		this(client, null, blockingExecutor);
+	}
+
+	/**
+	 * @param client The blocking client
+	 * @param nonBlockingClient The non-blocking client, which is used for every call if it isn't null.
+	 * @param blockingExecutor Where the blocking calls are run, if there is no non-blocking client.
+	 */
+	AsyncClient(AmazonDynamoDB client, DynamoDbAsyncClient nonBlockingClient, Executor blockingExecutor) {
+		this.client = client;
+		this.nonBlockingClient = nonBlockingClient;
+		this.blockingExecutor = blockingExecutor;
+	}
+
+	/**
+	 * Returns true if requests don't hold a thread while they're in flight.
+	 *
+	 * @return
+	 */
+	boolean isAsync() {
+		return nonBlockingClient != null;
+	}
+
+	private <Q, R> CompletableFuture<R> send(Q request, Function<Q, R> blocking,
+			Function<Q, CompletableFuture<R>> nonBlocking) {
+		if(nonBlockingClient == null) {
+			return CompletableFuture.supplyAsync(() -> blocking.apply(request), blockingExecutor);
+		}
+		try {
+			return nonBlocking.apply(request);
+		} catch (RuntimeException ex) {
+			// Such as a parameter that can't be translated
+			CompletableFuture<R> future = new CompletableFuture<>();
+			future.completeExceptionally(SdkV2Translator.fromV2(ex));
+			return future;
+		}
+	}
+
+	CompletableFuture<GetItemResult> getItem(GetItemRequest request) {
+		return send(request, client::getItem, r -> SdkV2Translator.fromV2(
+				nonBlockingClient.getItem(SdkV2Translator.toV2(r)), SdkV2Translator::fromV2));
+	}
+
+	CompletableFuture<PutItemResult> putItem(PutItemRequest request) {
+		return send(request, client::putItem, r -> SdkV2Translator.fromV2(
+				nonBlockingClient.putItem(SdkV2Translator.toV2(r)), SdkV2Translator::fromV2));
+	}
+
+	CompletableFuture<UpdateItemResult> updateItem(UpdateItemRequest request) {
+		return send(request, client::updateItem, r -> SdkV2Translator.fromV2(
+				nonBlockingClient.updateItem(SdkV2Translator.toV2(r)), SdkV2Translator::fromV2));
+	}
+
+	CompletableFuture<DeleteItemResult> deleteItem(DeleteItemRequest request) {
+		return send(request, client::deleteItem, r -> SdkV2Translator.fromV2(
+				nonBlockingClient.deleteItem(SdkV2Translator.toV2(r)), SdkV2Translator::fromV2));
+	}
+
+	CompletableFuture<BatchGetItemResult> batchGetItem(BatchGetItemRequest request) {
+		return send(request, client::batchGetItem, r -> SdkV2Translator.fromV2(
+				nonBlockingClient.batchGetItem(SdkV2Translator.toV2(r)), SdkV2Translator::fromV2));
+	}
+
+	CompletableFuture<BatchWriteItemResult> batchWriteItem(BatchWriteItemRequest request) {
+		return send(request, client::batchWriteItem, r -> SdkV2Translator.fromV2(
+				nonBlockingClient.batchWriteItem(SdkV2Translator.toV2(r)), SdkV2Translator::fromV2));
+	}
+
+	CompletableFuture<TransactWriteItemsResult> transactWriteItems(TransactWriteItemsRequest request) {
+		return send(request, client::transactWriteItems, r -> SdkV2Translator.fromV2(
+				nonBlockingClient.transactWriteItems(SdkV2Translator.toV2(r)), SdkV2Translator::fromV2));
+	}
+
+	/**
+	 * Returns the exception a future failed with, without the {@link CompletionException} that wraps it when it
+	 * passes through a dependent stage.
+	 *
+	 * @param t
+	 * @return
+	 */
+	static Throwable unwrap(Throwable t) {
+		while(t instanceof CompletionException && t.getCause() != null) {
+			t = t.getCause();
+		}
+		return t;
+	}
+
+	/**
+	 * Blocks until the future completes, and returns its result. If it failed with a DataSourceException or a
+	 * RuntimeException, such as the SDK's exceptions, that exception is rethrown as is, so that callers can handle
+	 * them the same way as if they had made the call themselves.
+	 *
+	 * @param <T>
+	 * @param future
+	 * @param tableName The table, for the error message
+	 * @return
+	 * @throws DataSourceException
+	 */
+	static <T> T await(CompletableFuture<T> future, String tableName) throws DataSourceException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new DataSourceException("Interrupted while waiting for \"" + tableName + "\"", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = unwrap(ex.getCause());
+			if(cause instanceof DataSourceException) {
+				throw (DataSourceException) cause;
+			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new DataSourceException("Could not access \"" + tableName + "\"", cause);
+		}
+	}
+
+}
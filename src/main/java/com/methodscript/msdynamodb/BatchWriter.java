@@ -0,0 +1,169 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.laytonsmith.persistence.DataSourceException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a list of put and delete requests to a table using BatchWriteItem. The requests are split into chunks of 25,
+ * which is the most DynamoDB allows in one batch, and the chunks are sent in parallel. Any UnprocessedItems that
+ * DynamoDB returns, which happens when the table is being throttled, are retried with exponential backoff. With the
+ * async engine, no thread is held while chunks are in flight or waiting to be retried.
+ * <p>
+ * Note that a batch is not atomic. If the write fails partway through, some of the requests may have been written.
+ * Also, DynamoDB rejects a batch which contains more than one request for the same key, so callers must coalesce
+ * their requests by key first.
+ */
+class BatchWriter {
+
+	/**
+	 * The maximum number of items that may be sent in a single BatchWriteItem request.
+	 */
+	static final int BATCH_SIZE = 25;
+
+	private static final int MAX_ATTEMPTS = 10;
+	private static final long INITIAL_BACKOFF = 25;
+	private static final long MAX_BACKOFF = 5000;
+
+	private final AsyncClient client;
+	private final String tableName;
+	private final CapacityLimiter.Bucket writes;
+
+	BatchWriter(AmazonDynamoDB client, String tableName) {
+		this(client, tableName, CapacityLimiter.unlimited().writes);
+	}
+
+	/**
+	 * @param client
+	 * @param tableName
+	 * @param writes Each chunk takes the write capacity it needs from this bucket, as background traffic, before it
+	 * is sent.
+	 */
+	BatchWriter(AmazonDynamoDB client, String tableName, CapacityLimiter.Bucket writes) {
+		this(new AsyncClient(client, DynamoDBThreads.WORKERS), tableName, writes);
+	}
+
+	/**
+	 * @param client The chunks are sent with this client. If it is blocking, it should use an executor, so that the
+	 * chunks are sent in parallel.
+	 * @param tableName
+	 * @param writes Each chunk takes the write capacity it needs from this bucket, as background traffic, before it
+	 * is sent.
+	 */
+	BatchWriter(AsyncClient client, String tableName, CapacityLimiter.Bucket writes) {
+		this.client = client;
+		this.tableName = tableName;
+		this.writes = writes;
+	}
+
+	/**
+	 * Writes all the requests, blocking until they have all been written.
+	 *
+	 * @param requests
+	 * @throws DataSourceException If any of the chunks could not be written, even after retrying.
+	 */
+	void write(List<WriteRequest> requests) throws DataSourceException {
+		AsyncClient.await(writeAsync(requests), tableName);
+	}
+
+	/**
+	 * Writes all the requests. The returned future completes once every chunk has either been written, or has failed,
+	 * so nothing is still being written when it completes, even if it failed.
+	 *
+	 * @param requests
+	 * @return
+	 */
+	CompletableFuture<Void> writeAsync(List<WriteRequest> requests) {
+		if(requests.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<?>[] chunks = new CompletableFuture<?>[(requests.size() + BATCH_SIZE - 1) / BATCH_SIZE];
+		for(int i = 0; i < chunks.length; i++) {
+			List<WriteRequest> chunk = requests.subList(i * BATCH_SIZE,
+					Math.min((i + 1) * BATCH_SIZE, requests.size()));
+			CompletableFuture<Void> done = new CompletableFuture<>();
+			writeChunk(Collections.singletonMap(tableName, chunk), 1, INITIAL_BACKOFF, done);
+			chunks[i] = done;
+		}
+		return CompletableFuture.allOf(chunks);
+	}
+
+	/**
+	 * Writes a single chunk of at most 25 requests, retrying the unprocessed items until they are all written, and
+	 * then completes the future.
+	 *
+	 * @param requestItems
+	 * @param attempt
+	 * @param backoff
+	 * @param done
+	 */
+	private void writeChunk(Map<String, List<WriteRequest>> requestItems, int attempt, long backoff,
+			CompletableFuture<Void> done) {
+		// Each item costs at least one unit, the rest is settled once we know
+		double estimate = requestItems.get(tableName).size();
+		writes.acquire(estimate, CapacityLimiter.Priority.BACKGROUND)
+				.thenCompose(v -> client.batchWriteItem(new BatchWriteItemRequest(requestItems)
+						.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)))
+				.whenComplete((result, ex) -> {
+					writes.completed(estimate,
+							result == null ? Double.NaN : CapacityLimiter.units(result.getConsumedCapacity()), ex);
+					chunkCompleted(requestItems, attempt, backoff, result, ex, done);
+				});
+	}
+
+	/**
+	 * Completes the future if the chunk was written, or failed for good, otherwise schedules a retry.
+	 */
+	private void chunkCompleted(Map<String, List<WriteRequest>> requestItems, int attempt, long backoff,
+			BatchWriteItemResult result, Throwable ex, CompletableFuture<Void> done) {
+		Map<String, List<WriteRequest>> remaining = requestItems;
+		if(ex != null) {
+			Throwable cause = AsyncClient.unwrap(ex);
+			if(!(cause instanceof ProvisionedThroughputExceededException)) {
+				done.completeExceptionally(cause);
+				return;
+			}
+			// None of the items were processed, and the client has already given up retrying, so we just back
+			// off further, and try the same items again.
+			if(attempt >= MAX_ATTEMPTS) {
+				done.completeExceptionally(new DataSourceException("The table \"" + tableName + "\" is being"
+						+ " throttled, and a batch could not be written", cause));
+				return;
+			}
+		} else {
+			remaining = result.getUnprocessedItems();
+			if(remaining == null || remaining.isEmpty()) {
+				done.complete(null);
+				return;
+			}
+			writes.unprocessed();
+			if(attempt >= MAX_ATTEMPTS) {
+				done.completeExceptionally(new DataSourceException("Could not write "
+						+ remaining.get(tableName).size() + " items to \"" + tableName + "\" after "
+						+ MAX_ATTEMPTS + " attempts"));
+				return;
+			}
+		}
+		Map<String, List<WriteRequest>> retry = remaining;
+		// Full jitter, so that parallel chunks don't all retry at the same moment
+		DynamoDBThreads.SCHEDULER.schedule(
+				() -> writeChunk(retry, attempt + 1, Math.min(backoff * 2, MAX_BACKOFF), done),
+				ThreadLocalRandom.current().nextLong(backoff) + 1, TimeUnit.MILLISECONDS);
+	}
+
+}
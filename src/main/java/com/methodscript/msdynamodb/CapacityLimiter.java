@@ -0,0 +1,403 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the requests this process makes to a table within the table's provisioned throughput, so that requests wait
+ * briefly on our side rather than being throttled by DynamoDB, and then retried by the SDK with much longer backoffs.
+ * <p>
+ * There is a token bucket each for reads and writes, which refills at the table's provisioned capacity units per
+ * second, and holds at most one second's worth. Before a request is sent, its estimated cost is taken from the bucket,
+ * and once it completes, the difference between the estimate and the capacity DynamoDB reports it actually consumed
+ * is settled, which may leave the bucket in debt. If DynamoDB throttles us anyway, for instance because other
+ * servers share the table, the refill rate is halved, and then recovers additively, up to the provisioned rate, for
+ * as long as there is no more throttling.
+ * <p>
+ * Background traffic, such as batch writes and scans, may not use the last part of the bucket, which is left for
+ * interactive gets and sets, so that a large batch doesn't make scripts wait.
+ * <p>
+ * A bucket with a provisioned rate of 0, as for on demand tables, never limits anything, but still counts the requests,
+ * consumed capacity, and throttles, for the metrics.
+ */
+class CapacityLimiter {
+
+	/**
+	 * The share of each bucket that background traffic may not use.
+	 */
+	private static final double INTERACTIVE_RESERVE = 0.2;
+	/**
+	 * The lowest the refill rate may be cut to, as a fraction of the provisioned rate.
+	 */
+	private static final double MIN_RATE_FACTOR = 0.05;
+	/**
+	 * How much of the provisioned rate is recovered per second without throttling.
+	 */
+	private static final double RATE_RECOVERY_PER_SECOND = 0.05;
+	/**
+	 * Repeated throttles within this many milliseconds only cut the rate once, since they are usually all caused by
+	 * the same burst.
+	 */
+	private static final long THROTTLE_WINDOW = 1000;
+
+	/**
+	 * Which kind of traffic a request is.
+	 */
+	enum Priority {
+		/**
+		 * Gets and sets made by scripts, which are waiting for them.
+		 */
+		INTERACTIVE,
+		/**
+		 * Batch writes, scans, and other bulk work, which should yield to interactive traffic.
+		 */
+		BACKGROUND
+	}
+
+	/**
+	 * A token bucket for one kind of capacity.
+	 */
+	static final class Bucket {
+
+		private final String name;
+		private volatile double provisioned;
+		private double rateFactor = 1;
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+		private long lastThrottle = 0;
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder retries = new LongAdder();
+		private final LongAdder throttles = new LongAdder();
+		private final DoubleAdder consumed = new DoubleAdder();
+
+		private Bucket(String name, double provisioned) {
+			this.name = name;
+			this.provisioned = provisioned;
+			this.tokens = provisioned;
+		}
+
+		private boolean isUnlimited() {
+			return provisioned <= 0;
+		}
+
+		/**
+		 * Changes the provisioned rate. If the bucket didn't limit anything before, it starts out full.
+		 *
+		 * @param units The capacity units per second to allow, or 0 for no limit
+		 */
+		private synchronized void setProvisioned(double units) {
+			refill();
+			tokens = isUnlimited() ? units : Math.min(tokens, units);
+			provisioned = units;
+		}
+
+		/**
+		 * Must be called while synchronized.
+		 */
+		private void refill() {
+			long now = System.nanoTime();
+			double seconds = (now - lastRefill) / 1e9;
+			lastRefill = now;
+			tokens = Math.min(provisioned, tokens + seconds * provisioned * rateFactor);
+			if(System.currentTimeMillis() - lastThrottle > THROTTLE_WINDOW) {
+				rateFactor = Math.min(1, rateFactor + seconds * RATE_RECOVERY_PER_SECOND);
+			}
+		}
+
+		/**
+		 * Takes the units from the bucket if there are enough, and otherwise returns how long to wait before trying
+		 * again.
+		 *
+		 * @return 0 if the units were taken, otherwise the number of milliseconds to wait.
+		 */
+		private synchronized long tryAcquire(double units, Priority priority) {
+			if(isUnlimited()) {
+				// The table was switched to on demand while we were waiting
+				return 0;
+			}
+			refill();
+			double reserve = priority == Priority.INTERACTIVE ? 0 : provisioned * INTERACTIVE_RESERVE;
+			// A request may cost more than the whole bucket, in which case it goes once the bucket is full, and
+			// leaves it in debt
+			double needed = reserve + Math.min(units, provisioned - reserve);
+			if(tokens >= needed) {
+				tokens -= units;
+				return 0;
+			}
+			return Math.max(1, (long) Math.ceil((needed - tokens) / (provisioned * rateFactor) * 1000));
+		}
+
+		/**
+		 * Takes the estimated cost of a request from the bucket, waiting until there is enough.
+		 *
+		 * @param units The estimated number of capacity units the request will consume
+		 * @param priority
+		 * @return A future which completes when the request may be sent. If there was no need to wait, it is already
+		 * complete. Otherwise, it completes on one of the {@link DynamoDBThreads#WORKERS}, so the dependent stages may
+		 * block.
+		 */
+		CompletableFuture<Void> acquire(double units, Priority priority) {
+			requests.increment();
+			if(isUnlimited()) {
+				return CompletableFuture.completedFuture(null);
+			}
+			long wait = tryAcquire(units, priority);
+			if(wait == 0) {
+				return CompletableFuture.completedFuture(null);
+			}
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			DynamoDBThreads.SCHEDULER.schedule(() -> retryAcquire(units, priority, future), wait,
+					TimeUnit.MILLISECONDS);
+			return future;
+		}
+
+		private void retryAcquire(double units, Priority priority, CompletableFuture<Void> future) {
+			long wait = tryAcquire(units, priority);
+			if(wait == 0) {
+				DynamoDBThreads.WORKERS.execute(() -> future.complete(null));
+			} else {
+				DynamoDBThreads.SCHEDULER.schedule(() -> retryAcquire(units, priority, future), wait,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Settles a request which was acquired with the given estimate. If DynamoDB reported the consumed capacity,
+		 * the difference is added to or taken from the bucket. If the request was throttled, the rate is cut.
+		 *
+		 * @param estimate The units that were acquired for the request
+		 * @param consumed The units DynamoDB reported, or NaN if it didn't report any.
+		 * @param failure The exception the request failed with, or null if it succeeded.
+		 */
+		void completed(double estimate, double consumed, Throwable failure) {
+			if(AsyncClient.unwrap(failure) instanceof ProvisionedThroughputExceededException) {
+				throttled();
+				return;
+			}
+			if(!Double.isNaN(consumed)) {
+				this.consumed.add(consumed);
+				if(!isUnlimited()) {
+					synchronized(this) {
+						tokens += estimate - consumed;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Records that DynamoDB left some of a batch unprocessed, which is then retried, and cuts the rate.
+		 */
+		void unprocessed() {
+			retries.increment();
+			throttled();
+		}
+
+		/**
+		 * Cuts the refill rate in half, because DynamoDB throttled a request, or returned unprocessed items.
+		 */
+		synchronized void throttled() {
+			throttles.increment();
+			if(isUnlimited()) {
+				return;
+			}
+			refill();
+			long now = System.currentTimeMillis();
+			if(now - lastThrottle > THROTTLE_WINDOW) {
+				rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor / 2);
+				// Whatever we thought we had is evidently not there
+				tokens = Math.min(tokens, 0);
+			}
+			lastThrottle = now;
+		}
+
+		/**
+		 * The rate the bucket currently refills at, in capacity units per second.
+		 *
+		 * @return
+		 */
+		synchronized double getRate() {
+			return provisioned * rateFactor;
+		}
+
+		/**
+		 * The number of requests sent, including retries.
+		 *
+		 * @return
+		 */
+		long getRequests() {
+			return requests.sum();
+		}
+
+		/**
+		 * The number of batches that were sent again, because DynamoDB left some of their items unprocessed. The SDK's
+		 * own retries of failed requests are not included.
+		 *
+		 * @return
+		 */
+		long getRetries() {
+			return retries.sum();
+		}
+
+		/**
+		 * The number of requests which were throttled, or had items left unprocessed.
+		 *
+		 * @return
+		 */
+		long getThrottles() {
+			return throttles.sum();
+		}
+
+		/**
+		 * The total capacity units that DynamoDB reported were consumed.
+		 *
+		 * @return
+		 */
+		double getConsumed() {
+			return consumed.sum();
+		}
+
+		/**
+		 * Returns the request, retry, and throttle counters, the total consumed capacity units, and, if the bucket
+		 * limits anything, the rate it currently refills at.
+		 *
+		 * @return
+		 */
+		Map<String, Number> getStatistics() {
+			Map<String, Number> ret = new LinkedHashMap<>();
+			ret.put("requests", getRequests());
+			ret.put("retries", getRetries());
+			ret.put("throttles", getThrottles());
+			ret.put("consumedUnits", getConsumed());
+			if(!isUnlimited()) {
+				ret.put("rate", getRate());
+			}
+			return ret;
+		}
+
+		@Override
+		public String toString() {
+			return name + "{rate=" + getRate() + "/" + provisioned + "}";
+		}
+	}
+
+	final Bucket reads;
+	final Bucket writes;
+	/**
+	 * The percentage of the table's provisioned throughput this limiter allows, or 0 if it isn't for a table.
+	 */
+	private final long percent;
+
+	/**
+	 * @param readUnits The read capacity units per second to allow, or 0 for no limit
+	 * @param writeUnits The write capacity units per second to allow, or 0 for no limit
+	 */
+	CapacityLimiter(double readUnits, double writeUnits) {
+		this(readUnits, writeUnits, 0);
+	}
+
+	private CapacityLimiter(double readUnits, double writeUnits, long percent) {
+		this.reads = new Bucket("reads", readUnits);
+		this.writes = new Bucket("writes", writeUnits);
+		this.percent = percent;
+	}
+
+	/**
+	 * Returns a limiter which never limits anything.
+	 *
+	 * @return
+	 */
+	static CapacityLimiter unlimited() {
+		return new CapacityLimiter(0, 0);
+	}
+
+	/**
+	 * Returns a limiter for the given share of a table's provisioned throughput. If the table is on demand, the limiter
+	 * never limits anything.
+	 *
+	 * @param description The description of the table
+	 * @param percent The percentage of the table's provisioned throughput to allow
+	 * @return
+	 */
+	static CapacityLimiter forTable(TableDescription description, long percent) {
+		CapacityLimiter limiter = new CapacityLimiter(0, 0, percent);
+		limiter.update(description);
+		return limiter;
+	}
+
+	/**
+	 * Follows a change to the table's provisioned throughput, such as from auto scaling, or from switching the table
+	 * between on demand and provisioned. A limiter which isn't for a share of a table is left alone.
+	 *
+	 * @param description A newer description of the table
+	 */
+	void update(TableDescription description) {
+		if(percent == 0) {
+			return;
+		}
+		ProvisionedThroughputDescription throughput = description.getProvisionedThroughput();
+		if(throughput == null) {
+			// On demand
+			reads.setProvisioned(0);
+			writes.setProvisioned(0);
+			return;
+		}
+		reads.setProvisioned(provisioned(throughput.getReadCapacityUnits()) * percent / 100);
+		writes.setProvisioned(provisioned(throughput.getWriteCapacityUnits()) * percent / 100);
+	}
+
+	private static double provisioned(Long units) {
+		return units == null ? 0 : units;
+	}
+
+	/**
+	 * Returns the capacity units consumed, or NaN if it wasn't reported.
+	 *
+	 * @param consumed
+	 * @return
+	 */
+	static double units(ConsumedCapacity consumed) {
+		if(consumed == null || consumed.getCapacityUnits() == null) {
+			return Double.NaN;
+		}
+		return consumed.getCapacityUnits();
+	}
+
+	/**
+	 * Returns the total capacity units consumed by a batch request, or NaN if it wasn't reported.
+	 *
+	 * @param consumed
+	 * @return
+	 */
+	static double units(List<ConsumedCapacity> consumed) {
+		if(consumed == null || consumed.isEmpty()) {
+			return Double.NaN;
+		}
+		double total = 0;
+		for(ConsumedCapacity c : consumed) {
+			if(c.getCapacityUnits() != null) {
+				total += c.getCapacityUnits();
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return "CapacityLimiter{" + reads + ", " + writes + "}";
+	}
+
+}
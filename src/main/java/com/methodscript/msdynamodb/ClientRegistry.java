@@ -0,0 +1,378 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreamsClientBuilder;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClientBuilder;
+
+/**
+ * The process wide registry of DynamoDB clients. Each client owns an HTTP connection pool and its own threads, so
+ * rather than each data source building its own, all the data sources which connect to the same place, with the
+ * same credentials and client settings, share one client. Clients are reference counted, and are shut down once the
+ * last data source using them releases them.
+ * <p>
+ * Table descriptions are also cached per client for a short time, so that many routes to the same table don't each
+ * describe it on startup, or each time they refresh their description.
+ */
+final class ClientRegistry {
+
+	/**
+	 * How long a table description is reused for, in milliseconds.
+	 */
+	private static final long DESCRIPTION_TTL = 60000;
+
+	/**
+	 * Guarded by itself.
+	 */
+	private static final Map<ClientSettings, SharedClient> CLIENTS = new HashMap<>();
+	/**
+	 * If set, new clients are made by this, rather than by the SDK's client builders. This lets the benchmarks run the
+	 * data source against an in-process fake, without a network or an AWS account.
+	 */
+	static volatile Function<ClientSettings, AmazonDynamoDB> clientFactory = null;
+
+	private ClientRegistry() {
+	}
+
+	/**
+	 * Everything that determines which client a data source may share. Two data sources with equal settings share
+	 * the same client. The client configuration values are null if they weren't set, in which case the SDK's default
+	 * is used.
+	 */
+	static final class ClientSettings {
+
+		final String protocol;
+		final String host;
+		final int port;
+		final Regions region;
+		final String accessKeyId;
+		final String accessKeySecret;
+		final Integer maxConnections;
+		final Boolean tcpKeepAlive;
+		final Long connectionTtl;
+		final Integer requestTimeout;
+		final Integer socketTimeout;
+		final boolean async;
+
+		/**
+		 * @param protocol The protocol to use for non-AWS endpoints
+		 * @param host The host, or null to connect to AWS itself
+		 * @param port The port to use for non-AWS endpoints
+		 * @param region The AWS region
+		 * @param accessKeyId The access key id, or null to use the system credentials
+		 * @param accessKeySecret The access key secret, or null to use the system credentials
+		 * @param maxConnections The maximum number of open HTTP connections
+		 * @param tcpKeepAlive Whether to use TCP keep alive
+		 * @param connectionTtl How long, in milliseconds, a pooled connection may be reused for
+		 * @param requestTimeout How long, in milliseconds, to wait for a request to complete
+		 * @param socketTimeout How long, in milliseconds, to wait for data on an open connection
+		 * @param async If true, a non-blocking {@link DynamoDbAsyncClient} is built as well
+		 */
+		ClientSettings(String protocol, String host, int port, Regions region, String accessKeyId,
+				String accessKeySecret, Integer maxConnections, Boolean tcpKeepAlive, Long connectionTtl,
+				Integer requestTimeout, Integer socketTimeout, boolean async) {
+			this.protocol = protocol;
+			this.host = host;
+			this.port = port;
+			this.region = region;
+			this.accessKeyId = accessKeyId;
+			this.accessKeySecret = accessKeySecret;
+			this.maxConnections = maxConnections;
+			this.tcpKeepAlive = tcpKeepAlive;
+			this.connectionTtl = connectionTtl;
+			this.requestTimeout = requestTimeout;
+			this.socketTimeout = socketTimeout;
+			this.async = async;
+		}
+
+		ClientConfiguration toClientConfiguration() {
+			ClientConfiguration config = new ClientConfiguration();
+			if(maxConnections != null) {
+				config.withMaxConnections(maxConnections);
+			}
+			if(tcpKeepAlive != null) {
+				config.withTcpKeepAlive(tcpKeepAlive);
+			}
+			if(connectionTtl != null) {
+				config.withConnectionTTL(connectionTtl);
+			}
+			if(requestTimeout != null) {
+				config.withRequestTimeout(requestTimeout);
+			}
+			if(socketTimeout != null) {
+				config.withSocketTimeout(socketTimeout);
+			}
+			return config;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj) {
+				return true;
+			}
+			if(!(obj instanceof ClientSettings)) {
+				return false;
+			}
+			ClientSettings other = (ClientSettings) obj;
+			return port == other.port
+					&& async == other.async
+					&& Objects.equals(protocol, other.protocol)
+					&& Objects.equals(host, other.host)
+					&& region == other.region
+					&& Objects.equals(accessKeyId, other.accessKeyId)
+					&& Objects.equals(accessKeySecret, other.accessKeySecret)
+					&& Objects.equals(maxConnections, other.maxConnections)
+					&& Objects.equals(tcpKeepAlive, other.tcpKeepAlive)
+					&& Objects.equals(connectionTtl, other.connectionTtl)
+					&& Objects.equals(requestTimeout, other.requestTimeout)
+					&& Objects.equals(socketTimeout, other.socketTimeout);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(protocol, host, port, region, accessKeyId, accessKeySecret, maxConnections,
+					tcpKeepAlive, connectionTtl, requestTimeout, socketTimeout, async);
+		}
+
+		@Override
+		public String toString() {
+			// Never include the secret
+			return host == null ? "AWS:" + region.getName() : protocol + "://" + host + ":" + port;
+		}
+	}
+
+	/**
+	 * A client shared between data sources. Obtain one with {@link ClientRegistry#acquire}, and give it back with
+	 * {@link #release()} when done with it.
+	 */
+	static final class SharedClient {
+
+		private final ClientSettings settings;
+		private final AmazonDynamoDB client;
+		private final DynamoDbAsyncClient asyncClient;
+		private AmazonDynamoDBStreams streamsClient;
+		/**
+		 * Guarded by {@link ClientRegistry#CLIENTS}.
+		 */
+		private int references = 0;
+		private final Map<String, CachedDescription> descriptions = new HashMap<>();
+		/**
+		 * Guarded by itself.
+		 */
+		private final Map<String, CapacityLimiter> limiters = new HashMap<>();
+
+		private SharedClient(ClientSettings settings, AmazonDynamoDB client, DynamoDbAsyncClient asyncClient) {
+			this.settings = settings;
+			this.client = client;
+			this.asyncClient = asyncClient;
+		}
+
+		AmazonDynamoDB getClient() {
+			return client;
+		}
+
+		/**
+		 * Returns the non-blocking client, or null if the settings don't ask for the async engine, or the client was
+		 * made by {@link #clientFactory}, in which case the blocking client must be used for everything.
+		 *
+		 * @return
+		 */
+		DynamoDbAsyncClient getAsyncClient() {
+			return asyncClient;
+		}
+
+		/**
+		 * Returns the streams client for the same location, building it the first time it's needed.
+		 *
+		 * @return
+		 */
+		synchronized AmazonDynamoDBStreams getStreamsClient() {
+			if(streamsClient == null) {
+				AmazonDynamoDBStreamsClientBuilder builder = AmazonDynamoDBStreamsClientBuilder.standard()
+						.withClientConfiguration(settings.toClientConfiguration());
+				DynamoDBDataSource.configureBuilder(builder, settings.protocol, settings.host, settings.port,
+						settings.region, settings.accessKeyId, settings.accessKeySecret);
+				streamsClient = builder.build();
+			}
+			return streamsClient;
+		}
+
+		/**
+		 * Describes the table. If the table was described recently, that description is returned instead of making
+		 * another request. Otherwise, the table's capacity limiter, if it has one, is updated with the new description.
+		 *
+		 * @param tableName
+		 * @return
+		 * @throws com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException If the table doesn't exist.
+		 */
+		TableDescription describeTable(String tableName) {
+			CachedDescription cached;
+			synchronized(descriptions) {
+				cached = descriptions.computeIfAbsent(tableName, t -> new CachedDescription());
+			}
+			TableDescription description;
+			synchronized(cached) {
+				if(cached.description != null && cached.fetched + DESCRIPTION_TTL >= System.currentTimeMillis()) {
+					return cached.description;
+				}
+				description = client.describeTable(tableName).getTable();
+				cached.description = description;
+				cached.fetched = System.currentTimeMillis();
+			}
+			CapacityLimiter limiter;
+			synchronized(limiters) {
+				limiter = limiters.get(tableName);
+			}
+			if(limiter != null) {
+				limiter.update(description);
+			}
+			return description;
+		}
+
+		/**
+		 * Returns the capacity limiter for the given table, creating it the first time it's needed. Every data source
+		 * that limits its traffic to the same table through this client shares the same limiter, so that between
+		 * them, they stay within the share of the table's provisioned throughput given by the first of them to ask.
+		 *
+		 * @param tableName
+		 * @param description The description of the table
+		 * @param percent The percentage of the table's provisioned throughput this process may use
+		 * @return
+		 */
+		CapacityLimiter getLimiter(String tableName, TableDescription description, long percent) {
+			synchronized(limiters) {
+				return limiters.computeIfAbsent(tableName, t -> CapacityLimiter.forTable(description, percent));
+			}
+		}
+
+		/**
+		 * Gives the client back to the registry. Once every data source that acquired it has released it, it is shut
+		 * down. This must be called exactly once per {@link ClientRegistry#acquire}.
+		 */
+		void release() {
+			synchronized(CLIENTS) {
+				references--;
+				if(references > 0) {
+					return;
+				}
+				CLIENTS.remove(settings);
+			}
+			client.shutdown();
+			if(asyncClient != null) {
+				asyncClient.close();
+			}
+			synchronized(this) {
+				if(streamsClient != null) {
+					streamsClient.shutdown();
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return settings.toString();
+		}
+	}
+
+	private static final class CachedDescription {
+
+		private TableDescription description;
+		private long fetched;
+	}
+
+	private static AmazonDynamoDB build(ClientSettings settings) {
+		AmazonDynamoDBClientBuilder builder = AmazonDynamoDBClientBuilder.standard()
+				.withClientConfiguration(settings.toClientConfiguration());
+		DynamoDBDataSource.configureBuilder(builder, settings.protocol, settings.host, settings.port,
+				settings.region, settings.accessKeyId, settings.accessKeySecret);
+		return builder.build();
+	}
+
+	/**
+	 * Builds the non-blocking client, with the same location, credentials, and connection settings as the blocking
+	 * one. Its requests are sent by Netty's event loop, so maxConnections limits the requests in flight, but not the
+	 * threads.
+	 *
+	 * @param settings
+	 * @return
+	 */
+	private static DynamoDbAsyncClient buildAsync(ClientSettings settings) {
+		NettyNioAsyncHttpClient.Builder http = NettyNioAsyncHttpClient.builder();
+		if(settings.maxConnections != null) {
+			http.maxConcurrency(settings.maxConnections);
+		}
+		if(settings.tcpKeepAlive != null) {
+			http.tcpKeepAlive(settings.tcpKeepAlive);
+		}
+		if(settings.connectionTtl != null) {
+			http.connectionTimeToLive(Duration.ofMillis(settings.connectionTtl));
+		}
+		if(settings.socketTimeout != null) {
+			http.readTimeout(Duration.ofMillis(settings.socketTimeout));
+			http.writeTimeout(Duration.ofMillis(settings.socketTimeout));
+		}
+		DynamoDbAsyncClientBuilder builder = DynamoDbAsyncClient.builder()
+				.httpClientBuilder(http)
+				.region(Region.of(settings.region.getName()));
+		if(settings.requestTimeout != null && settings.requestTimeout > 0) {
+			builder.overrideConfiguration(ClientOverrideConfiguration.builder()
+					.apiCallTimeout(Duration.ofMillis(settings.requestTimeout)).build());
+		}
+		if(settings.host != null) {
+			builder.endpointOverride(URI.create(settings.protocol + "://" + settings.host + ":" + settings.port));
+		}
+		if(settings.accessKeyId != null) {
+			builder.credentialsProvider(StaticCredentialsProvider.create(
+					AwsBasicCredentials.create(settings.accessKeyId, settings.accessKeySecret)));
+		} else {
+			builder.credentialsProvider(DefaultCredentialsProvider.create());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the shared client for the given settings, building it if there isn't one yet.
+	 *
+	 * @param settings
+	 * @return
+	 */
+	static SharedClient acquire(ClientSettings settings) {
+		synchronized(CLIENTS) {
+			SharedClient shared = CLIENTS.get(settings);
+			if(shared == null) {
+				Function<ClientSettings, AmazonDynamoDB> factory = clientFactory;
+				if(factory == null) {
+					shared = new SharedClient(settings, build(settings), settings.async ? buildAsync(settings) : null);
+				} else {
+					shared = new SharedClient(settings, factory.apply(settings), null);
+				}
+				CLIENTS.put(settings, shared);
+			}
+			shared.references++;
+			return shared;
+		}
+	}
+
+}
@@ -0,0 +1,262 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The performance metrics of a single data source: latency histograms of each kind of operation, the bytes of values
+ * read and written, and the statistics the data source's other parts already keep, such as the requests, retries,
+ * throttles, and consumed capacity counted by its {@link CapacityLimiter}, and the hits and misses of its cache.
+ * <p>
+ * While the data source is connected, its metrics are registered as a JMX MBean named
+ * {@code com.methodscript.msdynamodb:type=DataSource,table=<table>,id=<n>}, whose attributes are the flattened
+ * statistics, such as {@code get.p99Millis}, and can be read by scripts with {@code dynamodb_metrics()}.
+ */
+class DataSourceMetrics implements DynamicMBean {
+
+	private static final Logger LOGGER = Logger.getLogger(DataSourceMetrics.class.getName());
+	private static final String DOMAIN = "com.methodscript.msdynamodb";
+	private static final AtomicInteger IDS = new AtomicInteger();
+	private static final Set<DataSourceMetrics> ACTIVE = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The kinds of operation whose latency is recorded.
+	 */
+	enum Operation {
+		GET("get"),
+		SET("set"),
+		/**
+		 * From the start of a key listing until its last key has been read.
+		 */
+		KEY_SET("keySet"),
+		/**
+		 * The commit of a batch of writes, from a transaction, or the write behind queue.
+		 */
+		BATCH("batch");
+
+		private final String name;
+
+		private Operation(String name) {
+			this.name = name;
+		}
+	}
+
+	private final String tableName;
+	private final int id = IDS.incrementAndGet();
+	private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final Supplier<Map<String, Map<String, Number>>> sourceStatistics;
+	private ObjectName objectName;
+
+	/**
+	 * @param tableName
+	 * @param sourceStatistics Returns the statistics the data source keeps elsewhere, grouped by what they are about.
+	 */
+	DataSourceMetrics(String tableName, Supplier<Map<String, Map<String, Number>>> sourceStatistics) {
+		this.tableName = tableName;
+		this.sourceStatistics = sourceStatistics;
+		for(Operation op : Operation.values()) {
+			latencies.put(op, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Returns the metrics of all the connected data sources.
+	 *
+	 * @return
+	 */
+	static List<DataSourceMetrics> active() {
+		return new ArrayList<>(ACTIVE);
+	}
+
+	String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * Makes the metrics visible to {@link #active()} and JMX. If the MBean can't be registered, that is logged, and the
+	 * metrics are still available to scripts.
+	 */
+	void register() {
+		ACTIVE.add(this);
+		try {
+			ObjectName name = new ObjectName(DOMAIN + ":type=DataSource,table=" + ObjectName.quote(tableName)
+					+ ",id=" + id);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		} catch (JMException | SecurityException ex) {
+			LOGGER.log(Level.WARNING, "Could not register the metrics of \"" + tableName + "\" with JMX", ex);
+		}
+	}
+
+	void unregister() {
+		ACTIVE.remove(this);
+		if(objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException | SecurityException ex) {
+				LOGGER.log(Level.WARNING, "Could not unregister " + objectName, ex);
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Records the time an operation took.
+	 *
+	 * @param op
+	 * @param startNanos When the operation started, from {@link System#nanoTime()}
+	 */
+	void record(Operation op, long startNanos) {
+		latencies.get(op).recordSince(startNanos);
+	}
+
+	/**
+	 * Wraps the items of a key listing, so that the time until the last of them has been read is recorded as a
+	 * {@link Operation#KEY_SET}. Listings which are abandoned before the end are not recorded.
+	 *
+	 * @param <T>
+	 * @param items
+	 * @return
+	 */
+	<T> Iterable<T> timeListing(Iterable<T> items) {
+		return () -> {
+			long start = System.nanoTime();
+			Iterator<T> it = items.iterator();
+			return new Iterator<T>() {
+				private boolean recorded = false;
+
+				@Override
+				public boolean hasNext() {
+					boolean hasNext = it.hasNext();
+					if(!hasNext && !recorded) {
+						recorded = true;
+						record(Operation.KEY_SET, start);
+					}
+					return hasNext;
+				}
+
+				@Override
+				public T next() {
+					return it.next();
+				}
+			};
+		};
+	}
+
+	void addBytesRead(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	void addBytesWritten(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	/**
+	 * Returns all the metrics, grouped by what they are about. The latencies of each operation are under its name,
+	 * "values" has the bytes of values read and written, and the rest are the data source's own statistics.
+	 *
+	 * @return
+	 */
+	Map<String, Map<String, Number>> getStatistics() {
+		Map<String, Map<String, Number>> ret = new LinkedHashMap<>();
+		for(Operation op : Operation.values()) {
+			ret.put(op.name, latencies.get(op).getStatistics());
+		}
+		Map<String, Number> values = new LinkedHashMap<>();
+		values.put("bytesRead", bytesRead.sum());
+		values.put("bytesWritten", bytesWritten.sum());
+		ret.put("values", values);
+		ret.putAll(sourceStatistics.get());
+		return ret;
+	}
+
+	/**
+	 * Returns the statistics with the group and name of each joined with a dot, which is how they appear in JMX.
+	 */
+	private Map<String, Number> getFlatStatistics() {
+		Map<String, Number> ret = new LinkedHashMap<>();
+		for(Map.Entry<String, Map<String, Number>> group : getStatistics().entrySet()) {
+			for(Map.Entry<String, Number> stat : group.getValue().entrySet()) {
+				ret.put(group.getKey() + "." + stat.getKey(), stat.getValue());
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = getFlatStatistics().get(attribute);
+		if(value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> stats = getFlatStatistics();
+		AttributeList ret = new AttributeList();
+		for(String attribute : attributes) {
+			if(stats.containsKey(attribute)) {
+				ret.add(new Attribute(attribute, stats.get(attribute)));
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("The metrics are read only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		// Which statistics there are depends on the data source's options, but doesn't change while it is connected
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for(Map.Entry<String, Number> stat : getFlatStatistics().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(stat.getKey(), stat.getValue().getClass().getName(), stat.getKey(),
+					true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "The metrics of the DynamoDB data source for \"" + tableName
+				+ "\"", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+
+}
@@ -11,21 +11,36 @@ import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreamsClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
-import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
-import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.BillingMode;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
-import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
-import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.Delete;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
-import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
-import com.amazonaws.services.dynamodbv2.model.ScanRequest;
-import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.StreamSpecification;
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.laytonsmith.PureUtilities.Common.StringUtils;
 import com.laytonsmith.PureUtilities.DaemonManager;
 import com.laytonsmith.PureUtilities.Version;
@@ -38,14 +53,30 @@ import com.laytonsmith.persistence.DataSource;
 import com.laytonsmith.persistence.DataSourceException;
 import com.laytonsmith.persistence.ReadOnlyException;
 import com.laytonsmith.persistence.io.ConnectionMixinFactory;
+import java.io.File;
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
@@ -53,8 +84,40 @@ import java.util.Set;
 @datasource("dynamodb")
 public class DynamoDBDataSource extends AbstractDataSource {
 
-	private static final String PRIMARY_KEY_NAME = "key";
-	private static final String VALUE_KEY_NAME = "value";
+	private static final Logger LOGGER = Logger.getLogger(DynamoDBDataSource.class.getName());
+	/**
+	 * The maximum number of items that DynamoDB allows in a single TransactWriteItems call.
+	 */
+	private static final int MAX_TRANSACTION_ITEMS = 100;
+	/**
+	 * The maximum number of segments we split a parallel scan into. DynamoDB allows up to a million, but past this
+	 * point, the scan is limited by the table's capacity rather than the number of workers.
+	 */
+	private static final int MAX_SCAN_SEGMENTS = 64;
+	private static final int MAX_CHUNK_READ_ATTEMPTS = 5;
+	private static final long INITIAL_CHUNK_BACKOFF = 10;
+	/**
+	 * How long to wait before describing the table again, the first time it can't be described, in milliseconds. This
+	 * doubles with each failure, up to {@link #MAX_CONNECT_BACKOFF}.
+	 */
+	private static final long INITIAL_CONNECT_BACKOFF = 1000;
+	private static final long MAX_CONNECT_BACKOFF = 60000;
+
+	/**
+	 * How the writes buffered during a Persistence Network transaction are committed.
+	 */
+	private enum TransactionMode {
+		/**
+		 * The writes are sent with BatchWriteItem, in parallel chunks of 25. This is fast and supports any number of
+		 * writes, but is not atomic, if the commit fails partway through, some of the writes may have been made.
+		 */
+		BATCH,
+		/**
+		 * The writes are sent in a single TransactWriteItems call, so either all of them are made, or none are. This
+		 * costs twice as much capacity as a normal write, and is limited to 100 keys per transaction.
+		 */
+		ATOMIC
+	}
 
 	private String protocol = "http";
 	private String host;
@@ -68,8 +131,130 @@ public class DynamoDBDataSource extends AbstractDataSource {
 	 * consistent read mode. This mode is more expensive and slower.
 	 */
 	private boolean consistentRead;
+	private KeyLayout layout;
+	private TransactionMode transactionMode = TransactionMode.BATCH;
+	/**
+	 * The client, which is shared with every other data source that uses the same settings. It must be released
+	 * when this data source is disconnected.
+	 */
+	private ClientRegistry.SharedClient sharedClient;
 	private AmazonDynamoDB client;
-	private Table table;
+	/**
+	 * The client's operations as futures. With the async engine, these are sent with the non-blocking client, and
+	 * don't hold a thread while the request is in flight. With the sync engine, they run in the calling thread, and
+	 * the futures are already complete when they are returned.
+	 */
+	private AsyncClient asyncClient;
+	private BatchWriter batchWriter;
+	/**
+	 * Keeps our traffic within the table's provisioned throughput. This never limits anything unless capacityShare
+	 * is set.
+	 */
+	private CapacityLimiter limiter = CapacityLimiter.unlimited();
+	/**
+	 * The number of segments full table scans are split into, which are scanned in parallel.
+	 */
+	private int scanSegments = 1;
+	/**
+	 * Converts values to and from items. Values can always be read in either format, but are only written in the
+	 * binary format if binaryValues is set.
+	 */
+	private ValueCodec codec;
+	private boolean binaryValues = false;
+	/**
+	 * If any keys are sharded, the rules for which, otherwise it is null.
+	 */
+	private KeySharding sharding;
+	/**
+	 * If read coalescing is enabled, concurrent gets are sent through this, otherwise it is null.
+	 */
+	private ReadCoalescer readCoalescer;
+	/**
+	 * If single flight reads are enabled, the reads from the table which are in flight, by key, which concurrent gets
+	 * of the same key wait for instead of sending their own, otherwise it is null.
+	 */
+	private ConcurrentHashMap<String, CompletableFuture<String>> readFlights;
+	private final LongAdder sharedReads = new LongAdder();
+	/**
+	 * If hedged reads are enabled, reads from the table go through this, otherwise it is null.
+	 */
+	private ReadHedger hedger;
+	/**
+	 * If caching is enabled, values read are cached here, otherwise it is null.
+	 */
+	private ValueCache cache;
+	/**
+	 * If stream invalidation is enabled, this tails the table's stream, and applies other servers' writes to the
+	 * cache, otherwise it is null.
+	 */
+	private StreamInvalidator streamInvalidator;
+	/**
+	 * If the key filter is enabled, this holds every key in the table once it has been filled by {@link #populate()},
+	 * so that gets of missing keys can be answered locally, otherwise it is null.
+	 */
+	private KeyFilter keyFilter;
+	/**
+	 * The key prefixes whose values {@link #populate()} reads into the cache.
+	 */
+	private final List<String[]> prewarmPrefixes = new ArrayList<>();
+	/**
+	 * The background prewarm started by {@link #populate()}, or null if it hasn't been started.
+	 */
+	private Future<?> prewarmTask;
+	/**
+	 * Whether the key filter is being filled, either by the prewarm, or by {@link #keyFilterTask}. Guarded by this.
+	 */
+	private boolean keyFilterFilling = false;
+	/**
+	 * The background scan which fills the key filter again after the stream missed changes, or null if there hasn't
+	 * been one.
+	 */
+	private Future<?> keyFilterTask;
+	/**
+	 * In the async and journal write modes, writes are queued here and flushed in the background, otherwise it is
+	 * null.
+	 */
+	private WriteBehindQueue writeQueue;
+	/**
+	 * In the journal write mode, the queued writes are also kept here, on disk, otherwise it is null. It is closed by
+	 * the write queue.
+	 */
+	private WriteJournal journal;
+	/**
+	 * While a transaction is in progress, writes are buffered here, keyed by the full dotted key, rather than being
+	 * sent immediately. A null value is a pending delete. This is null when there is no transaction in progress.
+	 */
+	private Map<String, String> transactionBuffer = null;
+	private final Object transactionLock = new Object();
+	private DataSourceMetrics metrics;
+	/**
+	 * Completes once the table has been described and the rest of the data source has been set up, which is done in
+	 * the background, so that startup doesn't wait on DynamoDB. Operations wait for this first. If the table doesn't
+	 * exist, or doesn't match the configuration, this fails, and so does every operation.
+	 */
+	private final CompletableFuture<Void> ready = new CompletableFuture<>();
+	/**
+	 * The current attempt to describe the table. If it fails, operations fail with its error until the next attempt,
+	 * rather than waiting for the retry.
+	 */
+	private volatile CompletableFuture<Void> connectAttempt = new CompletableFuture<>();
+	/**
+	 * Keeps the setup from running concurrently with, or after, {@link #disconnect()}.
+	 */
+	private final Object connectLock = new Object();
+	/**
+	 * Guarded by {@link #connectLock}.
+	 */
+	private boolean disconnected = false;
+	/**
+	 * The next attempt to describe the table, or the periodic refresh of its description once it has been described.
+	 * Guarded by {@link #connectLock}.
+	 */
+	private ScheduledFuture<?> connectTask;
+	/**
+	 * The most recent description of the table, or null if it hasn't been described yet.
+	 */
+	private volatile TableDescription description;
 
 	private DynamoDBDataSource() {
 
@@ -102,54 +287,490 @@ public class DynamoDBDataSource extends AbstractDataSource {
 		if(queryString.containsKey("consistentRead")) {
 			consistentRead = queryString.get("consistentRead").equals("true");
 		}
+		layout = KeyLayout.forDepth((int) getLongParameter(queryString, "partitionDepth", 0));
+		long readCoalesceWindow = getLongParameter(queryString, "readCoalesceWindow", 0);
+		long cacheSize = getLongParameter(queryString, "cacheSize", 0);
+		if("true".equals(queryString.get("singleFlight"))) {
+			readFlights = new ConcurrentHashMap<>();
+		}
+		long hedgePercentile = getLongParameter(queryString, "hedgePercentile", 0);
+		if(hedgePercentile > 0) {
+			if(consistentRead) {
+				throw new DataSourceException("hedgePercentile may not be used with consistentRead.");
+			}
+			if(hedgePercentile >= 100) {
+				throw new DataSourceException("hedgePercentile must be less than 100.");
+			}
+			hedger = new ReadHedger(hedgePercentile, Math.min(getLongParameter(queryString, "hedgeBudget", 5), 100));
+		}
+		if(cacheSize > 0) {
+			if(consistentRead) {
+				throw new DataSourceException("cacheSize may not be used with consistentRead, since cached values may"
+						+ " be stale.");
+			}
+			long cacheTtl = getLongParameter(queryString, "cacheTtl", 60000);
+			long negativeCacheTtl = getLongParameter(queryString, "negativeCacheTtl", cacheTtl);
+			cache = new ValueCache((int) Math.min(cacheSize, Integer.MAX_VALUE), cacheTtl, negativeCacheTtl);
+		}
+		if(queryString.containsKey("transactionMode")) {
+			try {
+				transactionMode = TransactionMode.valueOf(queryString.get("transactionMode").toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				throw new DataSourceException("transactionMode must be one of "
+						+ StringUtils.Join(TransactionMode.values(), ", ", ", or ").toLowerCase() + ", but was \""
+						+ queryString.get("transactionMode") + "\"");
+			}
+		}
+		String writeMode = queryString.containsKey("writeMode") ? queryString.get("writeMode") : "sync";
+		boolean journalWrites = "journal".equalsIgnoreCase(writeMode);
+		boolean asyncWrites = journalWrites || "async".equalsIgnoreCase(writeMode);
+		if(!asyncWrites && !"sync".equalsIgnoreCase(writeMode)) {
+			throw new DataSourceException("writeMode must be one of sync, async, or journal, but was \"" + writeMode
+					+ "\"");
+		}
+		if(asyncWrites && transactionMode == TransactionMode.ATOMIC) {
+			throw new DataSourceException("The " + writeMode.toLowerCase() + " writeMode may not be used with the"
+					+ " atomic transactionMode.");
+		}
+		if(journalWrites && !queryString.containsKey("journalDir")) {
+			throw new DataSourceException("journalDir is required in the journal writeMode.");
+		}
+		long journalSegmentSize = getLongParameter(queryString, "journalSegmentSize", 64 * 1024 * 1024);
+		if(journalSegmentSize > WriteJournal.MAX_SEGMENT_SIZE) {
+			throw new DataSourceException("journalSegmentSize may not be more than " + WriteJournal.MAX_SEGMENT_SIZE
+					+ ".");
+		}
+		long writeQueueSize = getLongParameter(queryString, "writeQueueSize", 10000);
+		long writeWorkers = getLongParameter(queryString, "writeWorkers", 2);
+		WriteBehindQueue.FullPolicy writeQueueFullPolicy;
+		try {
+			writeQueueFullPolicy = WriteBehindQueue.FullPolicy.valueOf(queryString.containsKey("writeQueueFullPolicy")
+					? queryString.get("writeQueueFullPolicy").toUpperCase() : "BLOCK");
+		} catch (IllegalArgumentException ex) {
+			throw new DataSourceException("writeQueueFullPolicy must be one of "
+					+ StringUtils.Join(WriteBehindQueue.FullPolicy.values(), ", ", ", or ").toLowerCase()
+					+ ", but was \"" + queryString.get("writeQueueFullPolicy") + "\"");
+		}
+		if(asyncWrites && (writeQueueSize == 0 || writeWorkers == 0)) {
+			throw new DataSourceException("writeQueueSize and writeWorkers must be greater than 0.");
+		}
+		if(queryString.containsKey("prewarm")) {
+			if(cache == null) {
+				throw new DataSourceException("prewarm requires the cache to be enabled with cacheSize.");
+			}
+			for(String prefix : queryString.get("prewarm").split(",")) {
+				if(!prefix.trim().isEmpty()) {
+					prewarmPrefixes.add(prefix.trim().split("\\."));
+				}
+			}
+		}
+		boolean streamInvalidation = "true".equals(queryString.get("streamInvalidation"));
+		long streamPollInterval = getLongParameter(queryString, "streamPollInterval", 500);
+		if(streamInvalidation && cache == null) {
+			throw new DataSourceException("streamInvalidation requires the cache to be enabled with cacheSize.");
+		}
+		if("true".equals(queryString.get("keyFilter"))) {
+			if(!streamInvalidation) {
+				// Otherwise, keys created by other servers after the filter was built would read as missing
+				throw new DataSourceException("keyFilter requires streamInvalidation to be enabled.");
+			}
+			keyFilter = new KeyFilter(getLongParameter(queryString, "keyFilterSize", 1000000));
+		}
+		Integer maxConnections = null;
+		if(queryString.containsKey("maxConnections")) {
+			maxConnections = (int) Math.min(getLongParameter(queryString, "maxConnections", 0), Integer.MAX_VALUE);
+			if(maxConnections == 0) {
+				throw new DataSourceException("maxConnections must be greater than 0.");
+			}
+		}
+		Boolean tcpKeepAlive = null;
+		if(queryString.containsKey("tcpKeepAlive")) {
+			tcpKeepAlive = "true".equals(queryString.get("tcpKeepAlive"));
+		}
+		Long connectionTtl = null;
+		if(queryString.containsKey("connectionTtl")) {
+			connectionTtl = getLongParameter(queryString, "connectionTtl", 0);
+		}
+		Integer requestTimeout = null;
+		if(queryString.containsKey("requestTimeout")) {
+			requestTimeout = (int) Math.min(getLongParameter(queryString, "requestTimeout", 0), Integer.MAX_VALUE);
+		}
+		Integer socketTimeout = null;
+		if(queryString.containsKey("socketTimeout")) {
+			socketTimeout = (int) Math.min(getLongParameter(queryString, "socketTimeout", 0), Integer.MAX_VALUE);
+		}
+		scanSegments = (int) Math.min(getLongParameter(queryString, "scanSegments", 1), MAX_SCAN_SEGMENTS);
+		if(scanSegments == 0) {
+			throw new DataSourceException("scanSegments must be greater than 0.");
+		}
+		if(queryString.containsKey("valueCodec")) {
+			String valueCodec = queryString.get("valueCodec");
+			if("binary".equalsIgnoreCase(valueCodec)) {
+				binaryValues = true;
+			} else if(!"string".equalsIgnoreCase(valueCodec)) {
+				throw new DataSourceException("valueCodec must be one of string, or binary, but was \"" + valueCodec
+						+ "\"");
+			}
+		}
+		codec = new ValueCodec(binaryValues, (int) Math.min(getLongParameter(queryString, "compressThreshold", 1024),
+				Integer.MAX_VALUE));
+		if(queryString.containsKey("shardKeys") || queryString.containsKey("sumKeys")) {
+			sharding = KeySharding.parse(queryString.get("shardKeys"), queryString.get("sumKeys"),
+					(int) Math.min(getLongParameter(queryString, "shardCount", 10), Integer.MAX_VALUE));
+		}
+		long metadataRefreshInterval = getLongParameter(queryString, "metadataRefreshInterval", 300000);
+		long capacityShare = getLongParameter(queryString, "capacityShare", 0);
+		if(capacityShare > 100) {
+			throw new DataSourceException("capacityShare is a percentage, and may not be more than 100.");
+		}
+		boolean asyncEngine = false;
+		if(queryString.containsKey("engine")) {
+			String engine = queryString.get("engine");
+			if("async".equalsIgnoreCase(engine)) {
+				asyncEngine = true;
+			} else if(!"sync".equalsIgnoreCase(engine)) {
+				throw new DataSourceException("engine must be one of sync, or async, but was \"" + engine + "\"");
+			}
+		}
 		validateTableName(tableName);
-		AmazonDynamoDBClientBuilder clientBuilder = AmazonDynamoDBClientBuilder.standard();
-		if (host != null) {
-			clientBuilder.withEndpointConfiguration(
-					new AwsClientBuilder.EndpointConfiguration(protocol + "://" + host + ":" + port,
-							region.name().toLowerCase()));
-		} else {
-			clientBuilder.withRegion(region);
+		sharedClient = ClientRegistry.acquire(new ClientRegistry.ClientSettings(protocol, host, port, region,
+				accessKeyId, accessKeySecret, maxConnections, tcpKeepAlive, connectionTtl, requestTimeout,
+				socketTimeout, asyncEngine));
+		client = sharedClient.getClient();
+		asyncClient = new AsyncClient(client, sharedClient.getAsyncClient(), Runnable::run);
+		metrics = new DataSourceMetrics(tableName, this::getSourceStatistics);
+		if(asyncWrites) {
+			// The queue is set up before connecting, so that writes are accepted even if DynamoDB can't be reached
+			try {
+				if(journalWrites) {
+					journal = WriteJournal.open(new File(queryString.get("journalDir")), journalSegmentSize);
+				}
+				writeQueue = new WriteBehindQueue((int) Math.min(writeQueueSize, Integer.MAX_VALUE),
+						BatchWriter.BATCH_SIZE * 4, (int) writeWorkers, writeQueueFullPolicy, this::flushQueued,
+						journal);
+			} catch (DataSourceException ex) {
+				disconnect();
+				throw ex;
+			}
+			if(keyFilter != null) {
+				// The writes replayed from the journal may not have reached the table yet
+				for(String key : writeQueue.getPendingKeys()) {
+					keyFilter.add(key);
+				}
+			}
 		}
-		if (accessKeyId != null) {
-			clientBuilder.setCredentials(new AWSCredentialsProvider() {
-				@Override
-				public AWSCredentials getCredentials() {
-					return new AWSCredentials() {
-						@Override
-						public String getAWSAccessKeyId() {
-							return accessKeyId;
-						}
+		TableSetup setup = description -> init(description, readCoalesceWindow, streamInvalidation,
+				streamPollInterval, capacityShare);
+		DynamoDBThreads.WORKERS.execute(() -> connect(setup, metadataRefreshInterval, INITIAL_CONNECT_BACKOFF));
+	}
 
-						@Override
-						public String getAWSSecretKey() {
-							return accessKeySecret;
-						}
-					};
-				}
+	/**
+	 * The part of the setup which needs the table's description.
+	 */
+	private interface TableSetup {
 
-				@Override
-				public void refresh() {
-				}
-			});
+		void setUp(TableDescription description) throws DataSourceException;
+	}
+
+	/**
+	 * Describes the table, and then sets up the rest of the data source with the description. If the table can't be
+	 * described, for instance because DynamoDB can't be reached, this is retried in the background, with backoff,
+	 * until it succeeds, or the data source is disconnected. If the table doesn't exist, or the setup fails, the data
+	 * source is disconnected, and every operation fails with the error.
+	 *
+	 * @param setup
+	 * @param refreshInterval How often the description is refreshed once the setup is done, in milliseconds, or 0 for
+	 * never.
+	 * @param backoff How long to wait before trying again, if the table can't be described.
+	 */
+	private void connect(TableSetup setup, long refreshInterval, long backoff) {
+		CompletableFuture<Void> attempt = connectAttempt;
+		ClientRegistry.SharedClient sharedClient;
+		synchronized(connectLock) {
+			if(disconnected) {
+				attempt.completeExceptionally(disconnectedException());
+				return;
+			}
+			sharedClient = this.sharedClient;
 		}
-		client = clientBuilder.build();
+		TableDescription description;
 		try {
-			client.describeTable(tableName).getTable();
-		} catch (ResourceNotFoundException e) {
-			// Need to create a table with this name
-			throw new DataSourceException("The table \"" + tableName + "\" was not found in "
+			description = sharedClient.describeTable(tableName);
+		} catch (ResourceNotFoundException ex) {
+			fail(new DataSourceException("The table \"" + tableName + "\" was not found in "
 					+ (host == null ? "AWS:" + region.getName() : host)
 					+ ". You must manually create this table yourself. Please see the documentation for details"
 					+ " on how to set this up, or use the " + TableCreator.class.getAnnotation(tool.class).value()
-					+ " command line tool.");
+					+ " command line tool."), attempt);
+			return;
+		} catch (RuntimeException ex) {
+			synchronized(connectLock) {
+				if(disconnected) {
+					attempt.completeExceptionally(disconnectedException());
+					return;
+				}
+				LOGGER.log(Level.WARNING, "Could not describe the table \"" + tableName + "\", trying again in "
+						+ backoff + "ms", ex);
+				connectTask = DynamoDBThreads.SCHEDULER.schedule(() -> DynamoDBThreads.WORKERS.execute(() -> {
+					connectAttempt = new CompletableFuture<>();
+					connect(setup, refreshInterval, Math.min(backoff * 2, MAX_CONNECT_BACKOFF));
+				}), backoff, TimeUnit.MILLISECONDS);
+			}
+			attempt.completeExceptionally(ex);
+			return;
+		}
+		synchronized(connectLock) {
+			if(disconnected) {
+				attempt.completeExceptionally(disconnectedException());
+				return;
+			}
+			this.description = description;
+			try {
+				setup.setUp(description);
+			} catch (DataSourceException | RuntimeException ex) {
+				fail(ex, attempt);
+				return;
+			}
+			if(refreshInterval > 0) {
+				connectTask = DynamoDBThreads.SCHEDULER.scheduleWithFixedDelay(
+						() -> DynamoDBThreads.WORKERS.execute(this::refreshDescription), refreshInterval,
+						refreshInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+		ready.complete(null);
+		attempt.complete(null);
+	}
+
+	private DataSourceException disconnectedException() {
+		return new DataSourceException("The data source for the table \"" + tableName + "\" has been disconnected.");
+	}
+
+	/**
+	 * Fails the data source for good, and releases everything it holds.
+	 *
+	 * @param ex
+	 * @param attempt
+	 */
+	private void fail(Exception ex, CompletableFuture<Void> attempt) {
+		LOGGER.log(Level.SEVERE, "The table \"" + tableName + "\" can't be used", ex);
+		// This has to fail first, so that operations see why
+		ready.completeExceptionally(ex);
+		attempt.completeExceptionally(ex);
+		try {
+			disconnect();
+		} catch (DataSourceException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Could not disconnect from the table \"" + tableName + "\"", e);
+		}
+	}
+
+	/**
+	 * Waits until the data source has been set up, if it hasn't been already.
+	 *
+	 * @throws DataSourceException If the setup failed, or the table can't currently be described, in which case it is
+	 * being retried in the background.
+	 */
+	private void awaitReady() throws DataSourceException {
+		if(!ready.isDone()) {
+			CompletableFuture<Void> attempt = connectAttempt;
+			try {
+				CompletableFuture.anyOf(ready, attempt).get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new DataSourceException("Interrupted while connecting to the table \"" + tableName + "\"", ex);
+			} catch (ExecutionException ex) {
+				if(!ready.isDone()) {
+					throw new DataSourceException("Could not connect to the table \"" + tableName + "\". This is being"
+							+ " retried in the background.", ex.getCause());
+				}
+			}
 		}
-		table = new DynamoDB(client).getTable(tableName);
+		AsyncClient.await(ready, tableName);
+	}
+
+	/**
+	 * Describes the table again, so that the cached description, and the capacity limiter, follow changes made to the
+	 * table, such as by auto scaling.
+	 */
+	private void refreshDescription() {
+		ClientRegistry.SharedClient sharedClient;
+		synchronized(connectLock) {
+			if(disconnected) {
+				return;
+			}
+			sharedClient = this.sharedClient;
+		}
+		try {
+			description = sharedClient.describeTable(tableName);
+		} catch (RuntimeException ex) {
+			LOGGER.log(Level.WARNING, "Could not refresh the description of the table \"" + tableName + "\"", ex);
+		}
+	}
+
+	/**
+	 * The part of the setup which needs the table's description. This must only be called while holding the
+	 * {@link #connectLock}.
+	 */
+	private void init(TableDescription description, long readCoalesceWindow, boolean streamInvalidation,
+			long streamPollInterval, long capacityShare) throws DataSourceException {
+		layout.verify(tableName, description.getKeySchema());
+		if(capacityShare > 0) {
+			limiter = sharedClient.getLimiter(tableName, description, capacityShare);
+		}
+		// With the sync engine, the chunks and batches are sent in parallel from the worker pool
+		AsyncClient parallelClient = new AsyncClient(client, sharedClient.getAsyncClient(), DynamoDBThreads.WORKERS);
+		batchWriter = new BatchWriter(parallelClient, tableName, limiter.writes);
+		if(readCoalesceWindow > 0) {
+			readCoalescer = new ReadCoalescer(parallelClient, tableName, layout, consistentRead, readCoalesceWindow,
+					limiter.reads);
+		}
+		if(streamInvalidation) {
+			String streamArn = description.getLatestStreamArn();
+			if(streamArn == null || description.getStreamSpecification() == null
+					|| !Boolean.TRUE.equals(description.getStreamSpecification().getStreamEnabled())) {
+				throw new DataSourceException("streamInvalidation was enabled, but the table \"" + tableName + "\" does"
+						+ " not have a stream enabled. Create the table with the --enable-stream option of "
+						+ TableCreator.class.getAnnotation(tool.class).value() + ", or enable a stream on the existing"
+						+ " table.");
+			}
+			streamInvalidator = new StreamInvalidator(sharedClient.getStreamsClient(), streamArn, streamPollInterval,
+					this::streamChanged, this::streamMissed);
+			streamInvalidator.start();
+		}
+		metrics.register();
+	}
+
+	/**
+	 * Called by the {@link StreamInvalidator} when it may have missed changes. Keys created by other servers in the
+	 * meantime aren't in the key filter, so it is marked stale, and filled again by a new scan of the table, once the
+	 * prewarm has been started.
+	 */
+	private void streamMissed() {
+		if(keyFilter == null) {
+			return;
+		}
+		synchronized(this) {
+			keyFilter.markStale();
+			if(prewarmTask == null || keyFilterFilling || disconnected) {
+				// Whatever is filling it will see that it was marked stale, and start over
+				return;
+			}
+			keyFilterFilling = true;
+			keyFilterTask = DynamoDBThreads.WORKERS.submit(() -> {
+				try {
+					fillKeyFilter(client);
+				} catch (DataSourceException | RuntimeException ex) {
+					LOGGER.log(Level.WARNING, "Could not fill the key filter of the table \"" + tableName + "\" again,"
+							+ " so it stays disabled", ex);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called by the {@link StreamInvalidator} for each change made to the table, including changes made by other
+	 * servers. If the new value is in the stream, it replaces the cached value, otherwise the cached value is
+	 * invalidated.
+	 *
+	 * @param key
+	 * @param newImage
+	 */
+	private void streamChanged(String key, Map<String, AttributeValue> newImage) {
+		if(newImage != null && ValueCodec.isChunk(newImage)) {
+			return;
+		}
+		if(sharding != null) {
+			String baseKey = KeySharding.baseKey(key);
+			if(baseKey != null || sharding.strategyFor(key) != null) {
+				// Any of the shards may hold the newest value, so the key has to be read again
+				String k = baseKey == null ? key : baseKey;
+				if(keyFilter != null && newImage != null) {
+					keyFilter.add(k);
+				}
+				invalidate(k);
+				return;
+			}
+		}
+		if(keyFilter != null && newImage != null) {
+			keyFilter.add(key);
+		}
+		String value = null;
+		if(newImage != null && newImage.containsKey(ValueCodec.VALUE_ATTRIBUTE)
+				&& ValueCodec.chunkCount(newImage) == 1) {
+			try {
+				value = codec.decode(newImage);
+			} catch (DataSourceException ex) {
+				// Then we just invalidate it, and the error will surface when the value is read
+			}
+		}
+		if(value == null) {
+			// Chunked values are read again, along with their chunks, when they are next needed
+			invalidate(key);
+		} else {
+			cache.refresh(key, value);
+			if(readFlights != null) {
+				readFlights.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Returns the given parameter from the query string as a long, or the default value if it wasn't provided.
+	 *
+	 * @param queryString
+	 * @param name
+	 * @param def
+	 * @return
+	 * @throws DataSourceException If the parameter is not a non-negative integer.
+	 */
+	private static long getLongParameter(Map<String, String> queryString, String name, long def)
+			throws DataSourceException {
+		if(!queryString.containsKey(name)) {
+			return def;
+		}
+		long value;
+		try {
+			value = Long.parseLong(queryString.get(name));
+		} catch (NumberFormatException ex) {
+			value = -1;
+		}
+		if(value < 0) {
+			throw new DataSourceException(name + " must be a non-negative integer, but was \""
+					+ queryString.get(name) + "\"");
+		}
+		return value;
 	}
 
 	public static AmazonDynamoDB buildClient(String protocol, String host, int port, Regions region,
 			String accessKeyId, String accessKeySecret) {
 		AmazonDynamoDBClientBuilder clientBuilder = AmazonDynamoDBClientBuilder.standard();
+		configureBuilder(clientBuilder, protocol, host, port, region, accessKeyId, accessKeySecret);
+		return clientBuilder.build();
+	}
+
+	/**
+	 * Builds a client for the DynamoDB Streams of tables in the given location. The parameters are the same as for
+	 * {@link #buildClient}.
+	 *
+	 * @param protocol
+	 * @param host
+	 * @param port
+	 * @param region
+	 * @param accessKeyId
+	 * @param accessKeySecret
+	 * @return
+	 */
+	public static AmazonDynamoDBStreams buildStreamsClient(String protocol, String host, int port, Regions region,
+			String accessKeyId, String accessKeySecret) {
+		AmazonDynamoDBStreamsClientBuilder clientBuilder = AmazonDynamoDBStreamsClientBuilder.standard();
+		configureBuilder(clientBuilder, protocol, host, port, region, accessKeyId, accessKeySecret);
+		return clientBuilder.build();
+	}
+
+	/**
+	 * Points the client builder at the given endpoint or region, and sets the credentials, if provided.
+	 */
+	static void configureBuilder(AwsClientBuilder<?, ?> clientBuilder, String protocol, String host, int port,
+			Regions region, String accessKeyId, String accessKeySecret) {
 		if (host != null) {
 			clientBuilder.withEndpointConfiguration(
 					new AwsClientBuilder.EndpointConfiguration(protocol + "://" + host + ":" + port,
@@ -179,8 +800,6 @@ public class DynamoDBDataSource extends AbstractDataSource {
 				}
 			});
 		}
-		return clientBuilder.build();
-
 	}
 
 	/**
@@ -242,25 +861,48 @@ public class DynamoDBDataSource extends AbstractDataSource {
 	 */
 	public static void createTable(String tableName, AmazonDynamoDB client, long readCapacityUnits,
 			long writeCapacityUnits, BillingMode billingMode) throws DataSourceException {
+		createTable(tableName, client, readCapacityUnits, writeCapacityUnits, billingMode, 0, false);
+	}
+
+	/**
+	 * Creates a table in the DynamoDB with the specified parameters, key layout, and stream. See
+	 * {@link #createTable(String, AmazonDynamoDB, long, long, BillingMode)} for details on the other parameters.
+	 *
+	 * @param tableName The name of the table. This will be validated first.
+	 * @param client The pre-built AmazonDynamoDB client. See {@link #buildClient}.
+	 * @param readCapacityUnits The read capacity units
+	 * @param writeCapacityUnits The write capacity units
+	 * @param billingMode The billing mode
+	 * @param partitionDepth If 0, the table uses the flat key layout, where the entire key is the partition key.
+	 * Otherwise, the table uses the hierarchical key layout, where the first <code>partitionDepth</code> segments of
+	 * the key are the partition key, and the full key is the sort key. Routes that use this table must be configured
+	 * with the same partitionDepth.
+	 * @param enableStream If true, a DynamoDB Stream containing the new image of each changed item is enabled on the
+	 * table, which is required for the streamInvalidation parameter.
+	 * @throws com.laytonsmith.persistence.DataSourceException If the table name or partition depth is not valid.
+	 */
+	public static void createTable(String tableName, AmazonDynamoDB client, long readCapacityUnits,
+			long writeCapacityUnits, BillingMode billingMode, int partitionDepth, boolean enableStream)
+			throws DataSourceException {
 		validateTableName(tableName);
+		KeyLayout layout = KeyLayout.forDepth(partitionDepth);
 		DynamoDB dynamoDB = new DynamoDB(client);
 
-		List<AttributeDefinition> attributeDefinitions = new ArrayList<>();
-		attributeDefinitions.add(new AttributeDefinition().withAttributeName(PRIMARY_KEY_NAME)
-				.withAttributeType(ScalarAttributeType.S));
-
-		List<KeySchemaElement> keySchema = new ArrayList<>();
-		keySchema.add(new KeySchemaElement().withAttributeName(PRIMARY_KEY_NAME).withKeyType(KeyType.HASH));
-
 		CreateTableRequest request = new CreateTableRequest()
 				.withTableName(tableName)
-				.withKeySchema(keySchema)
-				.withAttributeDefinitions(attributeDefinitions)
+				.withKeySchema(layout.getKeySchema())
+				.withAttributeDefinitions(layout.getAttributeDefinitions())
 				.withBillingMode(billingMode)
 				.withProvisionedThroughput(new ProvisionedThroughput()
 						.withReadCapacityUnits(readCapacityUnits)
 						.withWriteCapacityUnits(writeCapacityUnits));
 
+		if(enableStream) {
+			request.withStreamSpecification(new StreamSpecification()
+					.withStreamEnabled(true)
+					.withStreamViewType(StreamViewType.NEW_IMAGE));
+		}
+
 		Table table = dynamoDB.createTable(request);
 		try {
 			table.waitForActive();
@@ -271,51 +913,968 @@ public class DynamoDBDataSource extends AbstractDataSource {
 
 	@Override
 	protected void startTransaction0(DaemonManager dm) {
-		// TODO: We can create a batch mode with this, but it still has to be paginated, because batches can only
-		// be up to 25 items, due to limitations in AWS.
+		synchronized(transactionLock) {
+			if(transactionBuffer == null) {
+				transactionBuffer = new LinkedHashMap<>();
+			}
+		}
 	}
 
 	@Override
 	protected void stopTransaction0(DaemonManager dm, boolean rollback) throws DataSourceException, IOException {
+		Map<String, String> buffer;
+		synchronized(transactionLock) {
+			buffer = transactionBuffer;
+			transactionBuffer = null;
+		}
+		if(rollback || buffer == null || buffer.isEmpty()) {
+			return;
+		}
+		if(writeQueue != null) {
+			for(Map.Entry<String, String> entry : buffer.entrySet()) {
+				enqueueWrite(entry.getKey(), entry.getValue());
+			}
+			return;
+		}
+		awaitReady();
+		if(transactionMode == TransactionMode.ATOMIC) {
+			try {
+				writeAtomically(buffer);
+			} finally {
+				invalidateAll(buffer.keySet());
+			}
+		} else {
+			writeBatch(buffer);
+		}
+	}
+
+	/**
+	 * Writes a batch from the write queue, once the data source has been set up. If it can't be, the batch fails, and
+	 * the queue retries it later, however long that takes.
+	 *
+	 * @param batch
+	 * @throws DataSourceException
+	 */
+	private void flushQueued(Map<String, String> batch) throws DataSourceException {
+		try {
+			awaitReady();
+		} catch (DataSourceException ex) {
+			throw new WriteBehindQueue.RetryLaterException(ex.getMessage(), ex.getCause());
+		}
+		writeBatch(batch);
+	}
+
+	/**
+	 * Writes all the values with BatchWriteItem, blocking until they are written.
+	 *
+	 * @param values The values to write, keyed by the full dotted key. A null value is a delete.
+	 * @throws DataSourceException
+	 */
+	private void writeBatch(Map<String, String> values) throws DataSourceException {
+		long start = System.nanoTime();
+		List<WriteRequest> requests = new ArrayList<>(values.size());
+		List<CompletableFuture<?>> writes = new ArrayList<>();
+		try {
+			for(Map.Entry<String, String> entry : values.entrySet()) {
+				if(entry.getValue() == null) {
+					for(Map<String, AttributeValue> itemKey : deleteKeys(entry.getKey())) {
+						requests.add(new WriteRequest(new DeleteRequest(itemKey)));
+					}
+					continue;
+				}
+				List<Map<String, AttributeValue>> items = toItems(entry.getKey(), entry.getValue());
+				if(items.size() == 1) {
+					requests.add(new WriteRequest(new PutRequest(items.get(0))));
+				} else {
+					// Chunked values need a transaction of their own
+					writes.add(writeChunked(items));
+				}
+			}
+			writes.add(batchWriter.writeAsync(requests));
+			AsyncClient.await(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()])),
+					tableName);
+		} finally {
+			// Even if the write failed, some of the values may have been written
+			invalidateAll(values.keySet());
+			metrics.record(DataSourceMetrics.Operation.BATCH, start);
+		}
+	}
+
+	/**
+	 * Returns the items the value is stored in, and counts their size in the metrics.
+	 *
+	 * @param key The full dotted key
+	 * @param value
+	 * @return
+	 * @throws DataSourceException
+	 */
+	private List<Map<String, AttributeValue>> toItems(String key, String value) throws DataSourceException {
+		List<Map<String, AttributeValue>> items;
+		if(sharding != null && sharding.strategyFor(key) == KeySharding.Strategy.LWW) {
+			items = Collections.singletonList(sharding.toItem(layout, codec, key, sharding.pickShard(), value));
+		} else {
+			items = codec.toItems(layout, key, value);
+		}
+		metrics.addBytesWritten(ValueCodec.valueSize(items));
+		return items;
+	}
+
+	/**
+	 * Returns the primary keys of the items which have to be deleted to delete the key. If the key is sharded, these
+	 * are all of its shards. Chunks are deleted separately.
+	 *
+	 * @param key The full dotted key
+	 * @return
+	 */
+	private List<Map<String, AttributeValue>> deleteKeys(String key) {
+		if(sharding == null || sharding.strategyFor(key) == null) {
+			return Collections.singletonList(layout.toKey(key));
+		}
+		sharding.deleted(key);
+		List<Map<String, AttributeValue>> ret = new ArrayList<>();
+		for(String shardKey : sharding.shardKeys(key)) {
+			ret.add(layout.toKey(shardKey));
+		}
+		return ret;
+	}
+
+	private void invalidateAll(Iterable<String> keys) {
+		for(String k : keys) {
+			invalidate(k);
+		}
+	}
 
+	/**
+	 * Invalidates the cached value of the key, and stops later gets of it from waiting for a read that is already in
+	 * flight, since that read may have started before the write that made it stale.
+	 *
+	 * @param key The full dotted key
+	 */
+	private void invalidate(String key) {
+		if(cache != null) {
+			cache.invalidate(key);
+		}
+		if(readFlights != null) {
+			readFlights.remove(key);
+		}
+	}
+
+	/**
+	 * Adds the write to the write behind queue, and invalidates the cache, so that a read which started before the
+	 * write can't cache the old value.
+	 *
+	 * @param key
+	 * @param value
+	 * @return False if the write was dropped because the queue was full.
+	 * @throws DataSourceException
+	 */
+	private boolean enqueueWrite(String key, String value) throws DataSourceException {
+		boolean queued = writeQueue.enqueue(key, value);
+		invalidate(key);
+		return queued;
+	}
+
+	/**
+	 * Writes all the buffered values in a single TransactWriteItems call, so that either all of them are written, or
+	 * none of them are.
+	 *
+	 * @param buffer
+	 * @throws DataSourceException If the transaction is too large, or was cancelled by DynamoDB.
+	 */
+	private void writeAtomically(Map<String, String> buffer) throws DataSourceException {
+		if(buffer.size() > MAX_TRANSACTION_ITEMS) {
+			throw new DataSourceException("An atomic transaction may contain at most " + MAX_TRANSACTION_ITEMS
+					+ " distinct keys, but this transaction contained " + buffer.size() + ". Use the batch"
+					+ " transactionMode for larger transactions.");
+		}
+		List<TransactWriteItem> items = new ArrayList<>(buffer.size());
+		for(Map.Entry<String, String> entry : buffer.entrySet()) {
+			if(entry.getValue() == null) {
+				for(Map<String, AttributeValue> itemKey : deleteKeys(entry.getKey())) {
+					items.add(new TransactWriteItem().withDelete(new Delete().withTableName(tableName)
+							.withKey(itemKey)));
+				}
+			} else {
+				// The chunks of a chunked value go in the same transaction
+				for(Map<String, AttributeValue> item : toItems(entry.getKey(), entry.getValue())) {
+					items.add(new TransactWriteItem().withPut(new Put().withTableName(tableName).withItem(item)));
+				}
+			}
+		}
+		if(items.size() > MAX_TRANSACTION_ITEMS) {
+			throw new DataSourceException("An atomic transaction may contain at most " + MAX_TRANSACTION_ITEMS
+					+ " items, but this transaction needed " + items.size() + ", since some of its values were"
+					+ " split into chunks, or some of its deletes were of sharded keys. Use the batch transactionMode"
+					+ " for larger transactions.");
+		}
+		long start = System.nanoTime();
+		try {
+			AsyncClient.await(transactWrite(items), tableName);
+		} catch (TransactionCanceledException ex) {
+			throw new DataSourceException("The transaction was cancelled by DynamoDB, and none of its values were"
+					+ " written: " + ex.getMessage(), ex);
+		} finally {
+			metrics.record(DataSourceMetrics.Operation.BATCH, start);
+		}
+	}
+
+	/**
+	 * Sends the items in a single TransactWriteItems call.
+	 *
+	 * @param items
+	 * @return
+	 */
+	private CompletableFuture<?> transactWrite(List<TransactWriteItem> items) {
+		// Transactional writes cost twice as much as normal ones
+		double estimate = 2 * items.size();
+		return limiter.writes.acquire(estimate, CapacityLimiter.Priority.INTERACTIVE)
+				.thenCompose(v -> asyncClient.transactWriteItems(new TransactWriteItemsRequest()
+						.withTransactItems(items).withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)))
+				.whenComplete((result, ex) -> limiter.writes.completed(estimate,
+						result == null ? Double.NaN : CapacityLimiter.units(result.getConsumedCapacity()), ex));
+	}
+
+	/**
+	 * Writes the items of a chunked value in a single transaction. Any chunks left over from an earlier write of the
+	 * same key with more chunks are deleted in the same transaction.
+	 *
+	 * @param items The value's item, followed by its chunk items
+	 * @return
+	 */
+	private CompletableFuture<?> writeChunked(List<Map<String, AttributeValue>> items) {
+		String key = items.get(0).get(KeyLayout.KEY_ATTRIBUTE).getS();
+		List<TransactWriteItem> transactItems = new ArrayList<>(ValueCodec.MAX_CHUNKS);
+		for(Map<String, AttributeValue> item : items) {
+			transactItems.add(new TransactWriteItem().withPut(new Put().withTableName(tableName).withItem(item)));
+		}
+		for(int i = items.size(); i < ValueCodec.MAX_CHUNKS; i++) {
+			transactItems.add(new TransactWriteItem().withDelete(new Delete().withTableName(tableName)
+					.withKey(layout.toKey(ValueCodec.chunkKey(key, i)))));
+		}
+		return transactWrite(transactItems);
+	}
+
+	/**
+	 * If the item that was just overwritten or deleted was a chunked value, deletes its chunks. Each chunk is only
+	 * deleted if it still belongs to that value, so that a concurrent write of a new chunked value is left alone.
+	 * Failures are ignored, since leftover chunks are never read, and are excluded from key listings.
+	 *
+	 * @param key The full dotted key
+	 * @param oldItem The item as it was before the write, or null if there wasn't one.
+	 * @return
+	 */
+	private CompletableFuture<?> deleteOldChunks(String key, Map<String, AttributeValue> oldItem) {
+		if(oldItem == null || ValueCodec.chunkCount(oldItem) == 1) {
+			return CompletableFuture.completedFuture(null);
+		}
+		Map<String, String> names = Collections.singletonMap("#v", ValueCodec.VERSION_ATTRIBUTE);
+		Map<String, AttributeValue> values = Collections.singletonMap(":v",
+				oldItem.get(ValueCodec.VERSION_ATTRIBUTE));
+		List<CompletableFuture<?>> deletes = new ArrayList<>();
+		for(int i = 1; i < ValueCodec.chunkCount(oldItem); i++) {
+			deletes.add(asyncClient.deleteItem(new DeleteItemRequest(tableName,
+					layout.toKey(ValueCodec.chunkKey(key, i)))
+					.withConditionExpression("#v = :v")
+					.withExpressionAttributeNames(names)
+					.withExpressionAttributeValues(values))
+					.exceptionally(ex -> null));
+		}
+		return CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[deletes.size()]));
 	}
 
 	@Override
 	protected boolean set0(DaemonManager dm, String[] key, String value) throws ReadOnlyException,
 			DataSourceException, IOException {
-		Item item = new Item()
-				.withPrimaryKey(PRIMARY_KEY_NAME, StringUtils.Join(key, "."))
-				.withString(VALUE_KEY_NAME, value);
-		table.putItem(item);
+		long start = System.nanoTime();
+		try {
+			return set(StringUtils.Join(key, "."), value);
+		} finally {
+			metrics.record(DataSourceMetrics.Operation.SET, start);
+		}
+	}
+
+	private boolean set(String k, String value) throws DataSourceException {
+		if(keyFilter != null && value != null) {
+			// This has to happen before the value can be read back from anywhere
+			keyFilter.add(k);
+		}
+		if(sharding != null && sharding.strategyFor(k) == KeySharding.Strategy.SUM) {
+			// This can't wait for a transaction or the write queue, since the difference has to be taken from the
+			// value this thread read
+			synchronized(transactionLock) {
+				if(transactionBuffer != null) {
+					throw new DataSourceException("The key \"" + k + "\" is a sum key, which can't be set in a"
+							+ " transaction, since the amount the set adds would be written immediately, and"
+							+ " couldn't be rolled back.");
+				}
+			}
+			awaitReady();
+			try {
+				addToSum(k, value);
+			} finally {
+				invalidate(k);
+			}
+			return true;
+		}
+		synchronized(transactionLock) {
+			if(transactionBuffer != null) {
+				transactionBuffer.put(k, value);
+				return true;
+			}
+		}
+		if(writeQueue != null) {
+			return enqueueWrite(k, value);
+		}
+		awaitReady();
+		try {
+			AsyncClient.await(writeAsync(k, value), tableName);
+		} finally {
+			invalidate(k);
+		}
 		return true;
 	}
 
+	/**
+	 * Writes the value directly to the table, bypassing the transaction buffer and write queue, but not invalidating
+	 * the cache.
+	 *
+	 * @param key The full dotted key
+	 * @param value The value, or null to delete the key.
+	 * @return
+	 */
+	private CompletableFuture<?> writeAsync(String key, String value) throws DataSourceException {
+		if(value == null && sharding != null && sharding.strategyFor(key) != null) {
+			return deleteShards(key);
+		}
+		List<Map<String, AttributeValue>> items = value == null ? null : toItems(key, value);
+		if(items != null && items.size() > 1) {
+			return writeChunked(items);
+		}
+		// With the binary codec, the key may have held a chunked value, whose chunks have to be cleaned up, so we
+		// need the old item back
+		ReturnValue returnValues = binaryValues ? ReturnValue.ALL_OLD : ReturnValue.NONE;
+		// An item of up to 1KB costs 1 unit. The rest is settled afterwards.
+		double estimate = 1;
+		CompletableFuture<Void> acquired = limiter.writes.acquire(estimate, CapacityLimiter.Priority.INTERACTIVE);
+		if(items == null) {
+			return acquired.thenCompose(v -> asyncClient.deleteItem(new DeleteItemRequest(tableName, layout.toKey(key))
+					.withReturnValues(returnValues)
+					.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)))
+					.whenComplete((result, ex) -> limiter.writes.completed(estimate,
+							result == null ? Double.NaN : CapacityLimiter.units(result.getConsumedCapacity()), ex))
+					.thenCompose(result -> deleteOldChunks(key, result.getAttributes()));
+		}
+		return acquired.thenCompose(v -> asyncClient.putItem(new PutItemRequest(tableName, items.get(0))
+				.withReturnValues(returnValues)
+				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)))
+				.whenComplete((result, ex) -> limiter.writes.completed(estimate,
+						result == null ? Double.NaN : CapacityLimiter.units(result.getConsumedCapacity()), ex))
+				.thenCompose(result -> deleteOldChunks(key, result.getAttributes()));
+	}
+
+	/**
+	 * Deletes all the shards of a sharded key.
+	 *
+	 * @param key The full dotted key
+	 * @return
+	 */
+	private CompletableFuture<?> deleteShards(String key) {
+		List<WriteRequest> requests = new ArrayList<>();
+		for(Map<String, AttributeValue> itemKey : deleteKeys(key)) {
+			requests.add(new WriteRequest(new DeleteRequest(itemKey)));
+		}
+		return batchWriter.writeAsync(requests);
+	}
+
+	/**
+	 * Sets a key with the SUM sharding strategy, by atomically adding the difference between the new value and the
+	 * value this thread last read or wrote to one of its shards. If this thread hasn't read the key, the difference is
+	 * taken from its current value. Setting it to null deletes all of its shards.
+	 *
+	 * @param key The full dotted key
+	 * @param value
+	 * @throws DataSourceException If the value is not a number.
+	 */
+	private void addToSum(String key, String value) throws DataSourceException {
+		if(value == null) {
+			AsyncClient.await(deleteShards(key), tableName);
+			return;
+		}
+		BigDecimal target = KeySharding.toNumber(key, value);
+		BigDecimal base = sharding.remembered(key);
+		if(base == null) {
+			String current = AsyncClient.await(readValueAsync(key, 1), tableName);
+			base = current == null ? BigDecimal.ZERO : KeySharding.toNumber(key, current);
+		}
+		int index = sharding.pickShard();
+		Map<String, String> names = new HashMap<>();
+		names.put("#n", KeySharding.SUM_ATTRIBUTE);
+		Map<String, AttributeValue> values = new HashMap<>();
+		values.put(":d", new AttributeValue().withN(target.subtract(base).toPlainString()));
+		String expression = "ADD #n :d";
+		if(index > 0) {
+			names.put("#o", KeySharding.SHARD_OF_ATTRIBUTE);
+			values.put(":o", new AttributeValue(key));
+			expression += " SET #o = :o";
+		}
+		UpdateItemRequest request = new UpdateItemRequest()
+				.withTableName(tableName)
+				.withKey(layout.toKey(KeySharding.shardKey(key, index)))
+				.withUpdateExpression(expression)
+				.withExpressionAttributeNames(names)
+				.withExpressionAttributeValues(values)
+				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+		double estimate = 1;
+		AsyncClient.await(limiter.writes.acquire(estimate, CapacityLimiter.Priority.INTERACTIVE)
+				.thenCompose(v -> asyncClient.updateItem(request))
+				.whenComplete((result, ex) -> limiter.writes.completed(estimate,
+						result == null ? Double.NaN : CapacityLimiter.units(result.getConsumedCapacity()), ex)),
+				tableName);
+		sharding.remember(key, value);
+	}
+
 	@Override
 	protected String get0(String[] key) throws DataSourceException {
-		GetItemSpec spec = new GetItemSpec();
-		spec.withConsistentRead(consistentRead)
-				.withPrimaryKey(PRIMARY_KEY_NAME, StringUtils.Join(key, "."));
+		long start = System.nanoTime();
+		try {
+			return get(StringUtils.Join(key, "."));
+		} finally {
+			metrics.record(DataSourceMetrics.Operation.GET, start);
+		}
+	}
 
-		Item item = table.getItem(spec);
-		if (item == null) {
+	private String get(String k) throws DataSourceException {
+		synchronized(transactionLock) {
+			// Within a transaction, we need to be able to read our own writes
+			if(transactionBuffer != null && transactionBuffer.containsKey(k)) {
+				return transactionBuffer.get(k);
+			}
+		}
+		if(writeQueue != null) {
+			WriteBehindQueue.PendingWrite pending = writeQueue.lookup(k);
+			if(pending != null) {
+				return pending.value;
+			}
+		}
+		awaitReady();
+		if(keyFilter != null && !keyFilter.mightContain(k)) {
 			return null;
 		}
-		return item.getString(VALUE_KEY_NAME);
+		if(sharding != null && sharding.strategyFor(k) == KeySharding.Strategy.SUM) {
+			// Sums aren't cached, or shared with reads that are already in flight, so that the difference the next
+			// set adds is taken from the value in the table, rather than an older one
+			String value = AsyncClient.await(readValueAsync(k, 1), tableName);
+			sharding.remember(k, value);
+			return value;
+		}
+		return readThroughCache(k);
+	}
+
+	/**
+	 * Reads the value with the given key from the cache, or if it isn't cached, from the table, and caches it.
+	 *
+	 * @param k The full dotted key
+	 * @return
+	 * @throws DataSourceException
+	 */
+	private String readThroughCache(String k) throws DataSourceException {
+		if(cache == null) {
+			return readValue(k);
+		}
+		ValueCache.CachedValue cached = cache.get(k);
+		if(cached != null) {
+			return cached.value;
+		}
+		long token = cache.readToken();
+		String value = readValue(k);
+		cache.put(k, value, token);
+		return value;
 	}
 
+	/**
+	 * Reads the value with the given key from the table, bypassing the cache.
+	 *
+	 * @param key The full dotted key
+	 * @return The value, or null if it doesn't exist.
+	 * @throws DataSourceException
+	 */
+	private String readValue(String key) throws DataSourceException {
+		if(readFlights == null) {
+			return AsyncClient.await(hedgedReadAsync(key), tableName);
+		}
+		CompletableFuture<String> flight = new CompletableFuture<>();
+		CompletableFuture<String> existing = readFlights.putIfAbsent(key, flight);
+		if(existing != null) {
+			sharedReads.increment();
+			return AsyncClient.await(existing, tableName);
+		}
+		try {
+			hedgedReadAsync(key).whenComplete((value, ex) -> {
+				readFlights.remove(key, flight);
+				if(ex != null) {
+					flight.completeExceptionally(ex);
+				} else {
+					flight.complete(value);
+				}
+			});
+		} catch (RuntimeException ex) {
+			readFlights.remove(key, flight);
+			flight.completeExceptionally(ex);
+		}
+		return AsyncClient.await(flight, tableName);
+	}
+
+	/**
+	 * Reads the value with the given key from the table, and if hedged reads are enabled, hedges the read if it is
+	 * slow.
+	 *
+	 * @param key The full dotted key
+	 * @return
+	 */
+	private CompletableFuture<String> hedgedReadAsync(String key) {
+		if(hedger == null) {
+			return readValueAsync(key, 1);
+		}
+		if(asyncClient.isAsync()) {
+			return hedger.read(() -> readValueAsync(key, 1));
+		}
+		// With the sync engine, the read blocks the thread that starts it, so it can only be hedged from another one
+		return hedger.read(() -> CompletableFuture.supplyAsync(() -> readValueAsync(key, 1), DynamoDBThreads.WORKERS)
+				.thenCompose(f -> f));
+	}
+
+	/**
+	 * Reads the value with the given key from the table, bypassing the cache. If it is chunked, the rest of the
+	 * chunks are read, and if they were overwritten in the meantime, the whole value is read again.
+	 *
+	 * @param key The full dotted key
+	 * @param attempt
+	 * @return The value, or null if it doesn't exist.
+	 */
+	private CompletableFuture<String> readValueAsync(String key, int attempt) {
+		KeySharding.Strategy strategy = sharding == null ? null : sharding.strategyFor(key);
+		if(strategy != null) {
+			// The shards of a sum are always read consistently, so that a set followed by a get sees its own write
+			return getItemsAsync(sharding.shardKeys(key), consistentRead || strategy == KeySharding.Strategy.SUM, 1,
+					INITIAL_CHUNK_BACKOFF, CapacityLimiter.Priority.INTERACTIVE).thenApply(items -> {
+						metrics.addBytesRead(ValueCodec.valueSize(items));
+						try {
+							return KeySharding.combine(strategy, codec, key, items);
+						} catch (DataSourceException ex) {
+							throw new CompletionException(ex);
+						}
+					});
+		}
+		return getItemAsync(key).thenCompose(item -> {
+			if(item == null) {
+				return CompletableFuture.completedFuture(null);
+			}
+			metrics.addBytesRead(ValueCodec.valueSize(Collections.singletonList(item)));
+			int chunks = ValueCodec.chunkCount(item);
+			if(chunks == 1) {
+				try {
+					return CompletableFuture.completedFuture(codec.decode(item));
+				} catch (DataSourceException ex) {
+					throw new CompletionException(ex);
+				}
+			}
+			List<String> chunkKeys = new ArrayList<>(chunks - 1);
+			for(int i = 1; i < chunks; i++) {
+				chunkKeys.add(ValueCodec.chunkKey(key, i));
+			}
+			return getItemsAsync(chunkKeys, consistentRead, 1, INITIAL_CHUNK_BACKOFF,
+					CapacityLimiter.Priority.INTERACTIVE)
+					.thenCompose(chunkItems -> {
+						metrics.addBytesRead(ValueCodec.valueSize(chunkItems));
+						try {
+							return CompletableFuture.completedFuture(codec.decode(key, item, chunkItems));
+						} catch (ValueCodec.StaleChunkException ex) {
+							if(attempt >= MAX_CHUNK_READ_ATTEMPTS) {
+								throw new CompletionException(ex);
+							}
+							return readValueAsync(key, attempt + 1);
+						} catch (DataSourceException ex) {
+							throw new CompletionException(ex);
+						}
+					});
+		});
+	}
+
+	/**
+	 * Reads the items with the given keys with BatchGetItem, retrying any unprocessed keys. There must be no more
+	 * than 100 keys.
+	 *
+	 * @param keys The full dotted keys
+	 * @param consistent Whether to read them with strongly consistent reads
+	 * @param attempt
+	 * @param backoff
+	 * @param priority
+	 * @return The items that exist, in no particular order.
+	 */
+	private CompletableFuture<List<Map<String, AttributeValue>>> getItemsAsync(Collection<String> keys,
+			boolean consistent, int attempt, long backoff, CapacityLimiter.Priority priority) {
+		List<Map<String, AttributeValue>> keyItems = new ArrayList<>(keys.size());
+		for(String key : keys) {
+			keyItems.add(layout.toKey(key));
+		}
+		double estimate = keys.size() * (consistent ? 1 : 0.5);
+		return limiter.reads.acquire(estimate, priority)
+				.thenCompose(v -> asyncClient.batchGetItem(new BatchGetItemRequest(Collections.singletonMap(tableName,
+						new KeysAndAttributes().withKeys(keyItems).withConsistentRead(consistent)))
+						.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)))
+				.whenComplete((result, ex) -> limiter.reads.completed(estimate,
+						result == null ? Double.NaN : CapacityLimiter.units(result.getConsumedCapacity()), ex))
+				.thenCompose(result -> {
+					List<Map<String, AttributeValue>> items = new ArrayList<>(keys.size());
+					if(result.getResponses().get(tableName) != null) {
+						items.addAll(result.getResponses().get(tableName));
+					}
+					KeysAndAttributes unprocessed = result.getUnprocessedKeys() == null ? null
+							: result.getUnprocessedKeys().get(tableName);
+					if(unprocessed == null || unprocessed.getKeys().isEmpty()) {
+						return CompletableFuture.completedFuture(items);
+					}
+					limiter.reads.unprocessed();
+					if(attempt >= MAX_CHUNK_READ_ATTEMPTS) {
+						throw new CompletionException(new DataSourceException("Could not read "
+								+ unprocessed.getKeys().size() + " keys from \"" + tableName + "\" after "
+								+ MAX_CHUNK_READ_ATTEMPTS + " attempts"));
+					}
+					List<String> remaining = new ArrayList<>(unprocessed.getKeys().size());
+					for(Map<String, AttributeValue> k : unprocessed.getKeys()) {
+						remaining.add(k.get(KeyLayout.KEY_ATTRIBUTE).getS());
+					}
+					CompletableFuture<List<Map<String, AttributeValue>>> retry = new CompletableFuture<>();
+					DynamoDBThreads.SCHEDULER.schedule(() -> getItemsAsync(remaining, consistent, attempt + 1,
+							backoff * 2, priority).whenComplete((more, ex) -> {
+								if(ex != null) {
+									retry.completeExceptionally(ex);
+								} else {
+									items.addAll(more);
+									retry.complete(items);
+								}
+							}), ThreadLocalRandom.current().nextLong(backoff) + 1, TimeUnit.MILLISECONDS);
+					return retry;
+				});
+	}
+
+	/**
+	 * Reads the item with the given key from the table, through the read coalescer, if it is enabled.
+	 *
+	 * @param key The full dotted key
+	 * @return The item, or null if it doesn't exist.
+	 */
+	private CompletableFuture<Map<String, AttributeValue>> getItemAsync(String key) {
+		if(readCoalescer != null) {
+			return readCoalescer.getAsync(key);
+		}
+		// An item of up to 4KB costs 1 unit, or half that if eventually consistent. The rest is settled afterwards.
+		double estimate = consistentRead ? 1 : 0.5;
+		return limiter.reads.acquire(estimate, CapacityLimiter.Priority.INTERACTIVE)
+				.thenCompose(v -> asyncClient.getItem(new GetItemRequest(tableName, layout.toKey(key))
+						.withConsistentRead(consistentRead)
+						.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)))
+				.whenComplete((result, ex) -> limiter.reads.completed(estimate,
+						result == null ? Double.NaN : CapacityLimiter.units(result.getConsumedCapacity()), ex))
+				.thenApply(GetItemResult::getItem);
+	}
+
+	/**
+	 * Returns the hit, miss, and eviction counters of the local cache, as well as its current size. If caching is not
+	 * enabled, the map is empty.
+	 *
+	 * @return
+	 */
+	public Map<String, Number> getCacheStatistics() {
+		Map<String, Number> ret = new LinkedHashMap<>();
+		if(cache != null) {
+			ret.put("hits", cache.getHits());
+			ret.put("misses", cache.getMisses());
+			ret.put("evictions", cache.getEvictions());
+			ret.put("size", cache.size());
+			long lookups = cache.getHits() + cache.getMisses();
+			ret.put("hitRatio", lookups == 0 ? 0.0 : cache.getHits() / (double) lookups);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the statistics of the write behind queue. The depth is the number of writes which have not yet reached
+	 * the table, failed is the number of writes which were discarded because they kept failing, such as because the
+	 * value was too large, and the flush times are in milliseconds. In the journal write mode, this also has the
+	 * number of journal segments, the number of times the journal was forced to disk, and the number of writes
+	 * replayed from it on startup. If neither the async nor the journal write mode is enabled, the map is empty.
+	 *
+	 * @return
+	 */
+	public Map<String, Number> getWriteQueueStatistics() {
+		Map<String, Number> ret = new LinkedHashMap<>();
+		if(writeQueue != null) {
+			ret.put("depth", writeQueue.getDepth());
+			ret.put("enqueued", writeQueue.getEnqueued());
+			ret.put("coalesced", writeQueue.getCoalesced());
+			ret.put("dropped", writeQueue.getDropped());
+			ret.put("flushed", writeQueue.getFlushed());
+			ret.put("failed", writeQueue.getFailed());
+			ret.put("lastFlushMillis", writeQueue.getLastFlushMillis());
+			ret.put("averageFlushMillis", writeQueue.getAverageFlushMillis());
+		}
+		WriteJournal journal = this.journal;
+		if(journal != null) {
+			ret.put("journalSegments", journal.getSegmentCount());
+			ret.put("journalSyncs", journal.getSyncs());
+			ret.put("journalReplayed", journal.getReplayed());
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the performance metrics of this data source, grouped by what they are about. These are the latencies of
+	 * each kind of operation, the bytes of values read and written, the request, retry, throttle, and consumed capacity
+	 * counters of reads and writes, and the cache and write queue statistics. If capacityShare is set, the read and
+	 * write counters are shared by all the routes to the same table, since they share the limit.
+	 *
+	 * @return
+	 */
+	public Map<String, Map<String, Number>> getMetrics() {
+		return metrics.getStatistics();
+	}
+
+	private Map<String, Map<String, Number>> getSourceStatistics() {
+		Map<String, Map<String, Number>> ret = new LinkedHashMap<>();
+		ret.put("reads", limiter.reads.getStatistics());
+		ret.put("writes", limiter.writes.getStatistics());
+		TableDescription description = this.description;
+		if(description != null) {
+			ret.put("tableDescription", getTableStatistics(description));
+		}
+		if(cache != null) {
+			ret.put("cache", getCacheStatistics());
+		}
+		if(writeQueue != null) {
+			ret.put("writeQueue", getWriteQueueStatistics());
+		}
+		if(keyFilter != null) {
+			ret.put("keyFilter", keyFilter.getStatistics());
+		}
+		if(readFlights != null) {
+			ret.put("singleFlight", Collections.singletonMap("shared", sharedReads.sum()));
+		}
+		if(hedger != null) {
+			ret.put("hedging", hedger.getStatistics());
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the table's approximate item count, which DynamoDB updates about every six hours, whether it is on
+	 * demand, and its provisioned read and write capacity units, from the most recent description of the table.
+	 *
+	 * @param description
+	 * @return
+	 */
+	private static Map<String, Number> getTableStatistics(TableDescription description) {
+		Map<String, Number> ret = new LinkedHashMap<>();
+		if(description.getItemCount() != null) {
+			ret.put("itemCount", description.getItemCount());
+		}
+		boolean onDemand = description.getBillingModeSummary() != null && BillingMode.PAY_PER_REQUEST.toString()
+				.equals(description.getBillingModeSummary().getBillingMode());
+		ret.put("onDemand", onDemand ? 1 : 0);
+		ProvisionedThroughputDescription throughput = description.getProvisionedThroughput();
+		if(!onDemand && throughput != null) {
+			ret.put("readCapacityUnits", throughput.getReadCapacityUnits());
+			ret.put("writeCapacityUnits", throughput.getWriteCapacityUnits());
+		}
+		return ret;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The keys are paged in lazily as the set is iterated. Only the first page is read here, so a failure to read any
+	 * later page is thrown from the set's iterator as a RuntimeException, rather than as a DataSourceException.
+	 */
 	@Override
 	public Set<String[]> keySet(String[] keyBase) throws DataSourceException {
-		ScanResult res = client.scan(new ScanRequest(tableName));
-		Set<String[]> ret = new HashSet<>();
-		for (Map<String, AttributeValue> r : res.getItems()) {
-			ret.add(r.get(PRIMARY_KEY_NAME).getS().split("\\."));
+		awaitReady();
+		return new LazyKeySet(metrics.timeListing(listKeys(client, keyBase)), KeyLayout.KEY_ATTRIBUTE, tableName)
+				.prefetch();
+	}
+
+	/**
+	 * Returns the items of all the keys that begin with the given prefix, with only their key attribute. Sharded keys
+	 * are listed once, whichever of their shards exist.
+	 *
+	 * @param client
+	 * @param keyBase
+	 * @return
+	 */
+	private Iterable<Map<String, AttributeValue>> listKeys(AmazonDynamoDB client, String[] keyBase) {
+		Iterable<Map<String, AttributeValue>> keys = layout.keysWithPrefix(client, tableName, keyBase, limiter.reads,
+				scanSegments);
+		if(sharding == null || !sharding.mayMatchUnder(keyBase)) {
+			return keys;
 		}
-		return ret;
+		return sharding.withShards(keys, layout.shardsWithPrefix(client, tableName, keyBase, limiter.reads,
+				scanSegments, sharding.getShardCount()));
 	}
 
+	/**
+	 * Starts prewarming in the background, if the key filter or prewarm prefixes are enabled. Gets are served as
+	 * normal while this runs, and benefit from each part of it as soon as that part is done.
+	 *
+	 * @throws DataSourceException
+	 */
 	@Override
-	public void populate() throws DataSourceException {
+	public synchronized void populate() throws DataSourceException {
+		if(prewarmTask != null || (keyFilter == null && prewarmPrefixes.isEmpty())) {
+			return;
+		}
+		keyFilterFilling = keyFilter != null;
+		prewarmTask = DynamoDBThreads.WORKERS.submit(this::prewarm);
+	}
+
+	/**
+	 * Fills the key filter with every key in the table, then reads the values under each of the prewarm prefixes into
+	 * the cache, until the cache is full. All of this is read as background traffic. If it fails, the key filter is
+	 * left disabled, and the cache simply fills up on demand.
+	 */
+	private void prewarm() {
+		try {
+			// Unlike operations, this waits through failed attempts to connect
+			ready.get();
+		} catch (InterruptedException | ExecutionException ex) {
+			// Either it was cancelled, or the failure has already been logged
+			return;
+		}
+		AmazonDynamoDB client = this.client;
+		try {
+			if(keyFilter != null && !fillKeyFilter(client)) {
+				return;
+			}
+			for(String[] prefix : prewarmPrefixes) {
+				if(!prewarmValues(client, prefix)) {
+					return;
+				}
+			}
+		} catch (DataSourceException | RuntimeException ex) {
+			if(!Thread.currentThread().isInterrupted()) {
+				LOGGER.log(Level.WARNING, "Could not prewarm the table \"" + tableName + "\"", ex);
+			}
+		}
+	}
+
+	/**
+	 * Fills the key filter with every key in the table, and marks it ready. The scan is only started once the stream is
+	 * being read from everywhere, since the keys created by other servers after that are only seen through it, and
+	 * is started over if the stream misses changes while it runs.
+	 *
+	 * @param client
+	 * @return False if this was cancelled, or the stream reader was stopped.
+	 * @throws DataSourceException
+	 */
+	private boolean fillKeyFilter(AmazonDynamoDB client) throws DataSourceException {
+		boolean filled = false;
+		try {
+			while(true) {
+				long epoch = keyFilter.getEpoch();
+				streamInvalidator.whenReading().get();
+				for(Map<String, AttributeValue> item : listKeys(client, new String[0])) {
+					if(Thread.currentThread().isInterrupted()) {
+						return false;
+					}
+					keyFilter.add(item.get(KeyLayout.KEY_ATTRIBUTE).getS());
+				}
+				synchronized(this) {
+					if(keyFilter.markReady(epoch)) {
+						keyFilterFilling = false;
+						filled = true;
+						return true;
+					}
+				}
+				LOGGER.log(Level.INFO, "The stream of the table \"" + tableName + "\" missed changes while the key"
+						+ " filter was being filled, so it is being filled again");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException ex) {
+			return false;
+		} finally {
+			if(!filled) {
+				synchronized(this) {
+					keyFilterFilling = false;
+				}
+			}
+		}
+	}
 
+	/**
+	 * Reads the values under the prefix into the cache. A value which was scanned after a write was made by this
+	 * process may be older than that write, so it isn't cached directly, but is read again, in batches, before it is
+	 * cached. Chunked values and sharded keys are left to be read when they are needed.
+	 *
+	 * @param client
+	 * @param keyBase
+	 * @return False if the cache is full, or the prewarm was cancelled.
+	 * @throws DataSourceException
+	 */
+	private boolean prewarmValues(AmazonDynamoDB client, String[] keyBase) throws DataSourceException {
+		long token = cache.readToken();
+		List<String> stale = new ArrayList<>(ReadCoalescer.MAX_BATCH_SIZE);
+		for(Map<String, AttributeValue> item : layout.itemsWithPrefix(client, tableName, keyBase, limiter.reads,
+				scanSegments)) {
+			if(Thread.currentThread().isInterrupted() || cache.isFull()) {
+				return false;
+			}
+			String key = item.get(KeyLayout.KEY_ATTRIBUTE).getS();
+			if(ValueCodec.chunkCount(item) > 1 || sharding != null && sharding.strategyFor(key) != null) {
+				continue;
+			}
+			if(cache.invalidatedSince(key, token)) {
+				stale.add(key);
+				if(stale.size() == ReadCoalescer.MAX_BATCH_SIZE) {
+					prewarmAgain(stale);
+					stale.clear();
+				}
+				continue;
+			}
+			metrics.addBytesRead(ValueCodec.valueSize(Collections.singletonList(item)));
+			try {
+				cache.put(key, codec.decode(item), token);
+			} catch (DataSourceException ex) {
+				// The error will surface if the value is ever read
+			}
+		}
+		if(!stale.isEmpty()) {
+			prewarmAgain(stale);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the values with BatchGetItem, and caches those that still exist.
+	 *
+	 * @param keys At most 100 full dotted keys
+	 * @throws DataSourceException
+	 */
+	private void prewarmAgain(List<String> keys) throws DataSourceException {
+		long token = cache.readToken();
+		List<Map<String, AttributeValue>> items = AsyncClient.await(getItemsAsync(keys, consistentRead, 1,
+				INITIAL_CHUNK_BACKOFF, CapacityLimiter.Priority.BACKGROUND), tableName);
+		metrics.addBytesRead(ValueCodec.valueSize(items));
+		for(Map<String, AttributeValue> item : items) {
+			String key = item.get(KeyLayout.KEY_ATTRIBUTE).getS();
+			if(ValueCodec.chunkCount(item) > 1 || sharding != null && sharding.strategyFor(key) != null) {
+				continue;
+			}
+			try {
+				cache.put(key, codec.decode(item), token);
+			} catch (DataSourceException ex) {
+				// The error will surface if the value is ever read
+			}
+		}
 	}
 
 	@Override
@@ -330,13 +1889,134 @@ public class DynamoDBDataSource extends AbstractDataSource {
 
 	@Override
 	public void disconnect() throws DataSourceException {
+		synchronized(connectLock) {
+			if(disconnected) {
+				// This may be called by the setup, when it fails, at the same time as by the user, but everything must
+				// only be released once
+				return;
+			}
+			disconnected = true;
+			if(connectTask != null) {
+				connectTask.cancel(false);
+			}
+		}
+		synchronized(this) {
+			if(prewarmTask != null) {
+				prewarmTask.cancel(true);
+			}
+			if(keyFilterTask != null) {
+				keyFilterTask.cancel(true);
+			}
+		}
+		try {
+			if(writeQueue != null) {
+				// This must come first, since the flush needs everything else. It also closes the journal.
+				writeQueue.close();
+				writeQueue = null;
+			} else if(journal != null) {
+				journal.close(false);
+			}
+			journal = null;
+		} finally {
+			// Not until the queue has been flushed, since the flush waits for this
+			ready.completeExceptionally(disconnectedException());
+		}
+		if(streamInvalidator != null) {
+			streamInvalidator.stop();
+			streamInvalidator = null;
+		}
+		if(metrics != null) {
+			metrics.unregister();
+		}
+		if(sharedClient != null) {
+			sharedClient.release();
+			sharedClient = null;
+		}
 		client = null;
-		table = null;
+		asyncClient = null;
 	}
 
 	@Override
 	public String docs() {
-		return "TODO";
+		return "DynamoDB {dynamodb://host?tableName=table&parameters} This type stores data in an AWS DynamoDB table."
+				+ " The host is either \"aws\", in which case the region parameter picks the region to connect to, or"
+				+ " the host and port of a self hosted DynamoDB. Key listings match whole key segments, so a.b lists"
+				+ " a.b and a.b.c, but not a.bc. The parameters are:\n"
+				+ "* tableName: The name of the table. Required.\n"
+				+ "* region: The AWS region to connect to, such as US_EAST_1. Required when the host is \"aws\","
+				+ " and ignored otherwise.\n"
+				+ "* protocol: The protocol used to connect to a self hosted DynamoDB. Defaults to http.\n"
+				+ "* accessKeyId, accessKeySecret: The credentials to use. If not set, the credentials configured"
+				+ " on the system are used.\n"
+				+ "* partitionDepth: If set, the table uses the hierarchical key layout, with this many key"
+				+ " segments in the partition key, which must match the depth the table was created with. Defaults"
+				+ " to 0, the flat layout.\n"
+				+ "* consistentRead: If true, reads are strongly consistent. Defaults to false.\n"
+				+ "* transactionMode: batch writes a transaction with parallel BatchWriteItem requests, and atomic"
+				+ " with a single TransactWriteItems request of at most 100 keys. Defaults to batch.\n"
+				+ "* writeMode: sync waits for each set to be written. async queues sets and writes them in batches"
+				+ " in the background. journal does the same, but also appends each set to a journal on disk first,"
+				+ " so that queued sets survive a crash. Defaults to sync.\n"
+				+ "* writeQueueSize: In the async and journal writeModes, the most distinct keys that may be"
+				+ " waiting to be written. Defaults to 10000.\n"
+				+ "* writeQueueFullPolicy: What a set does when the write queue is full: block, drop, or fail."
+				+ " Defaults to block.\n"
+				+ "* writeWorkers: The number of threads writing the write queue to the table. Defaults to 2.\n"
+				+ "* journalDir: In the journal writeMode, the directory the journal is kept in. Each route needs"
+				+ " its own. Required in the journal writeMode.\n"
+				+ "* journalSegmentSize: The size in bytes of each journal file. Defaults to 67108864.\n"
+				+ "* readCoalesceWindow: If greater than 0, concurrent gets within this many milliseconds of each"
+				+ " other are combined into one BatchGetItem. Defaults to 0.\n"
+				+ "* singleFlight: If true, concurrent gets of the same key share a single read. Defaults to false.\n"
+				+ "* hedgePercentile: If set, reads slower than this percentile of recent reads are sent again, and"
+				+ " the first answer is used. May not be used with consistentRead.\n"
+				+ "* hedgeBudget: The most reads that may be hedged, as a percentage of all reads. Defaults to 5.\n"
+				+ "* cacheSize: If greater than 0, up to this many values are cached locally. May not be used with"
+				+ " consistentRead. Defaults to 0.\n"
+				+ "* cacheTtl: How long, in milliseconds, values are cached for. Defaults to 60000.\n"
+				+ "* negativeCacheTtl: How long, in milliseconds, missing keys are cached for. Defaults to"
+				+ " cacheTtl.\n"
+				+ "* streamInvalidation: If true, the table's stream is tailed, so that other servers' writes"
+				+ " update the cache. Requires cacheSize, and a table with a stream. Defaults to false.\n"
+				+ "* streamPollInterval: How long, in milliseconds, to wait before polling the stream again when it"
+				+ " had no new changes. Defaults to 500.\n"
+				+ "* prewarm: A comma separated list of key prefixes whose values are read into the cache in the"
+				+ " background when the server starts.\n"
+				+ "* keyFilter: If true, a filter of every key in the table is built in the background, so that"
+				+ " gets of missing keys are answered locally. Requires streamInvalidation. Defaults to false.\n"
+				+ "* keyFilterSize: The number of keys the key filter is sized for. Defaults to 1000000.\n"
+				+ "* scanSegments: The number of segments a key listing which scans the whole table is split into,"
+				+ " and scanned in parallel. Defaults to 1.\n"
+				+ "* valueCodec: string stores values as they are, and binary compresses large values, and splits"
+				+ " values too large for one item into chunks. Defaults to string.\n"
+				+ "* compressThreshold: With the binary valueCodec, values larger than this many bytes are"
+				+ " compressed. Defaults to 1024.\n"
+				+ "* shardKeys: A comma separated list of key patterns, whose sets are spread across shardCount"
+				+ " items, so that a heavily written key isn't limited by a single partition. Gets read every"
+				+ " shard, and return the most recently written value. In a pattern, * matches any one segment of a"
+				+ " key, and ** as the last segment matches any number of them.\n"
+				+ "* sumKeys: A comma separated list of key patterns of counters, whose value is the sum of"
+				+ " shardCount items. A set of a sum key doesn't store the value it is given, but atomically adds"
+				+ " the difference between that value and the value the same thread last read or set, so that"
+				+ " increments made at the same time by several servers are all kept. Sums are read with strongly"
+				+ " consistent reads, and are never cached. They are set immediately, even in the async writeModes,"
+				+ " and can't be set inside a transaction, since the difference couldn't be rolled back.\n"
+				+ "* shardCount: The number of items each sharded key is spread across, at most 100. Defaults to"
+				+ " 10.\n"
+				+ "* engine: sync holds a thread for each request, and async sends requests with the non-blocking"
+				+ " client of version 2 of the AWS SDK. Defaults to sync.\n"
+				+ "* maxConnections: The most open connections to DynamoDB, shared by routes with the same"
+				+ " endpoint, region, credentials, and connection settings. Defaults to 50.\n"
+				+ "* tcpKeepAlive: If true, TCP keep alive is enabled on the connections. Defaults to false.\n"
+				+ "* connectionTtl: How long, in milliseconds, a pooled connection may be reused for.\n"
+				+ "* requestTimeout: How long, in milliseconds, a request may take before it is abandoned. Defaults"
+				+ " to 0, no timeout.\n"
+				+ "* socketTimeout: How long, in milliseconds, to wait for data on an open connection. Defaults to"
+				+ " 50000.\n"
+				+ "* capacityShare: If set, the percentage of the table's provisioned capacity this server may use."
+				+ " Requests wait on the server rather than being throttled.\n"
+				+ "* metadataRefreshInterval: How often, in milliseconds, the table's description is read again. 0"
+				+ " never reads it again. Defaults to 300000.";
 	}
 
 	@Override
@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.laytonsmith.PureUtilities.Version;
+import com.laytonsmith.annotations.api;
+import com.laytonsmith.core.MSVersion;
+import com.laytonsmith.core.constructs.CArray;
+import com.laytonsmith.core.constructs.CDouble;
+import com.laytonsmith.core.constructs.CInt;
+import com.laytonsmith.core.constructs.CString;
+import com.laytonsmith.core.constructs.Target;
+import com.laytonsmith.core.environments.Environment;
+import com.laytonsmith.core.exceptions.CRE.CREThrowable;
+import com.laytonsmith.core.exceptions.ConfigRuntimeException;
+import com.laytonsmith.core.functions.AbstractFunction;
+import com.laytonsmith.core.natives.interfaces.Mixed;
+import java.util.Map;
+
+/**
+ *
+ */
+public class DynamoDBFunctions {
+
+	public static String docs() {
+		return "Functions for inspecting the DynamoDB data source.";
+	}
+
+	@api
+	public static class dynamodb_metrics extends AbstractFunction {
+
+		@Override
+		public String getName() {
+			return "dynamodb_metrics";
+		}
+
+		@Override
+		public Integer[] numArgs() {
+			return new Integer[]{0, 1};
+		}
+
+		@Override
+		public String docs() {
+			return "array {[tableName]} Returns the performance metrics of each connected DynamoDB data source, or only"
+					+ " of those using the given table. Each is an associative array with the table name under"
+					+ " \"table\", and the metrics grouped by what they are about. The get, set, keySet, and batch"
+					+ " groups have the latency of that kind of operation, with the count, and the mean, p50, p90, p99,"
+					+ " p999, and max in milliseconds. The values group has the bytes of values read and written, after"
+					+ " compression. The reads and writes groups have the requests sent to DynamoDB, the batches"
+					+ " retried, the requests throttled, and the capacity units consumed. If caching or the async write"
+					+ " mode is enabled, the cache and writeQueue groups have their statistics. Once the data source has"
+					+ " connected, the tableDescription group has the table's approximate item count, whether it is on"
+					+ " demand, and its provisioned read and write capacity units, from the most recent description of"
+					+ " the table. The same metrics are available through JMX, under com.methodscript.msdynamodb.";
+		}
+
+		@Override
+		public Version since() {
+			return MSVersion.V3_3_4;
+		}
+
+		@Override
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public Class<? extends CREThrowable>[] thrown() {
+			return new Class[]{};
+		}
+
+		@Override
+		public boolean isRestricted() {
+			return true;
+		}
+
+		@Override
+		public Boolean runAsync() {
+			return null;
+		}
+
+		@Override
+		public Mixed exec(Target t, Environment environment, Mixed... args) throws ConfigRuntimeException {
+			String tableName = args.length == 0 ? null : args[0].val();
+			CArray ret = new CArray(t);
+			for(DataSourceMetrics metrics : DataSourceMetrics.active()) {
+				if(tableName != null && !tableName.equals(metrics.getTableName())) {
+					continue;
+				}
+				CArray source = CArray.GetAssociativeArray(t);
+				source.set("table", new CString(metrics.getTableName(), t), t);
+				for(Map.Entry<String, Map<String, Number>> group : metrics.getStatistics().entrySet()) {
+					CArray stats = CArray.GetAssociativeArray(t);
+					for(Map.Entry<String, Number> stat : group.getValue().entrySet()) {
+						stats.set(stat.getKey(), toMixed(stat.getValue(), t), t);
+					}
+					source.set(group.getKey(), stats, t);
+				}
+				ret.push(source, t);
+			}
+			return ret;
+		}
+
+		private static Mixed toMixed(Number n, Target t) {
+			if(n instanceof Double || n instanceof Float) {
+				return new CDouble(n.doubleValue(), t);
+			}
+			return new CInt(n.longValue(), t);
+		}
+	}
+
+}
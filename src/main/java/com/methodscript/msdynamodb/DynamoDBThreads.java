@@ -0,0 +1,51 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The background threads shared by all the DynamoDB data sources in the process. All of the threads are daemon
+ * threads, so that they never hold up shutdown. Work that must finish before shutdown should be flushed by the data
+ * source in {@link DynamoDBDataSource#disconnect()}.
+ */
+final class DynamoDBThreads {
+
+	private DynamoDBThreads() {
+	}
+
+	/**
+	 * A pool for blocking work that is handed off from the calling thread, such as the parallel chunks of a batch.
+	 */
+	static final ExecutorService WORKERS = Executors.newCachedThreadPool(factory("MSDynamoDB-worker"));
+
+	/**
+	 * A single thread for timers. Tasks run on this thread must be short, and should hand any blocking work off to
+	 * {@link #WORKERS}.
+	 */
+	static final ScheduledExecutorService SCHEDULER
+			= Executors.newSingleThreadScheduledExecutor(factory("MSDynamoDB-scheduler"));
+
+	/**
+	 * Returns a factory for daemon threads, which are named with the given prefix and a counter.
+	 *
+	 * @param prefix
+	 * @return
+	 */
+	static ThreadFactory factory(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+}
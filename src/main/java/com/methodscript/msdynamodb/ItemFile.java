@@ -0,0 +1,159 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.laytonsmith.persistence.DataSourceException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The format of the files written by {@link TableExporter} and read by {@link TableImporter}.
+ * <p>
+ * The file is gzip compressed text. The first line is a header, and each line after it is one item. Each attribute of
+ * the item is written as {@code name=type:data}, where the type is S, N, or B, and the data is the Base64 encoding of
+ * the string in UTF-8, the number, or the bytes, and the attributes are separated by tabs. Since the data is Base64,
+ * values can contain tabs and newlines. The partition attribute of the hierarchical layout is left out, so that a file
+ * can be imported into a table with either layout.
+ */
+class ItemFile {
+
+	static final String HEADER = "# MSDynamoDB export, version 1";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private ItemFile() {
+	}
+
+	/**
+	 * Opens a file for writing, and writes the header.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static BufferedWriter openWriter(Path file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+				Files.newOutputStream(file), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+		writer.write(HEADER);
+		writer.newLine();
+		return writer;
+	}
+
+	/**
+	 * Opens a file for reading, and checks its header.
+	 *
+	 * @param file
+	 * @return A reader positioned at the first item.
+	 * @throws IOException
+	 * @throws DataSourceException If the file is not an export.
+	 */
+	static BufferedReader openReader(Path file) throws IOException, DataSourceException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+				Files.newInputStream(file), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+		if(!HEADER.equals(reader.readLine())) {
+			reader.close();
+			throw new DataSourceException(file + " is not an export written by this version of MSDynamoDB.");
+		}
+		return reader;
+	}
+
+	/**
+	 * Returns the line for the item.
+	 *
+	 * @param item
+	 * @return
+	 * @throws DataSourceException If the item has an attribute of a type this extension doesn't write.
+	 */
+	static String toLine(Map<String, AttributeValue> item) throws DataSourceException {
+		Base64.Encoder base64 = Base64.getEncoder();
+		StringBuilder line = new StringBuilder();
+		for(Map.Entry<String, AttributeValue> e : item.entrySet()) {
+			if(KeyLayout.PARTITION_ATTRIBUTE.equals(e.getKey())) {
+				continue;
+			}
+			AttributeValue value = e.getValue();
+			char type;
+			byte[] data;
+			if(value.getS() != null) {
+				type = 'S';
+				data = value.getS().getBytes(StandardCharsets.UTF_8);
+			} else if(value.getN() != null) {
+				type = 'N';
+				data = value.getN().getBytes(StandardCharsets.UTF_8);
+			} else if(value.getB() != null) {
+				type = 'B';
+				ByteBuffer b = value.getB().duplicate();
+				data = new byte[b.remaining()];
+				b.get(data);
+			} else {
+				throw new DataSourceException("The attribute \"" + e.getKey() + "\" of the item with the key \""
+						+ item.get(KeyLayout.KEY_ATTRIBUTE).getS() + "\" is not a string, number, or binary.");
+			}
+			if(line.length() > 0) {
+				line.append('\t');
+			}
+			line.append(e.getKey()).append('=').append(type).append(':').append(base64.encodeToString(data));
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Returns the item on the line.
+	 *
+	 * @param line
+	 * @return
+	 * @throws DataSourceException If the line is malformed.
+	 */
+	static Map<String, AttributeValue> fromLine(String line) throws DataSourceException {
+		Base64.Decoder base64 = Base64.getDecoder();
+		Map<String, AttributeValue> item = new HashMap<>();
+		for(String attribute : line.split("\t")) {
+			int equals = attribute.indexOf('=');
+			if(equals < 1 || attribute.length() < equals + 3 || attribute.charAt(equals + 2) != ':') {
+				throw new DataSourceException("Malformed attribute \"" + attribute + "\"");
+			}
+			byte[] data;
+			try {
+				data = base64.decode(attribute.substring(equals + 3));
+			} catch (IllegalArgumentException ex) {
+				throw new DataSourceException("Malformed attribute \"" + attribute + "\"", ex);
+			}
+			AttributeValue value;
+			switch(attribute.charAt(equals + 1)) {
+				case 'S':
+					value = new AttributeValue(new String(data, StandardCharsets.UTF_8));
+					break;
+				case 'N':
+					value = new AttributeValue().withN(new String(data, StandardCharsets.UTF_8));
+					break;
+				case 'B':
+					value = new AttributeValue().withB(ByteBuffer.wrap(data));
+					break;
+				default:
+					throw new DataSourceException("Unknown attribute type in \"" + attribute + "\"");
+			}
+			item.put(attribute.substring(0, equals), value);
+		}
+		if(!item.containsKey(KeyLayout.KEY_ATTRIBUTE)) {
+			throw new DataSourceException("The item has no \"" + KeyLayout.KEY_ATTRIBUTE + "\" attribute");
+		}
+		return item;
+	}
+
+}
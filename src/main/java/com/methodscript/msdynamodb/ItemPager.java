@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily iterates over all the items returned by a Scan or Query, following the LastEvaluatedKey of each page. The
+ * next page is only requested once the current one is exhausted, so memory use is bounded by the page size. Each call
+ * to {@link #iterator()} starts the operation over from the beginning.
+ */
+class ItemPager implements Iterable<Map<String, AttributeValue>> {
+
+	/**
+	 * Fetches a single page, starting at the given key, which is null for the first page.
+	 */
+	interface PageSource {
+
+		Page fetch(Map<String, AttributeValue> exclusiveStartKey);
+	}
+
+	static class Page {
+
+		final List<Map<String, AttributeValue>> items;
+		final Map<String, AttributeValue> lastEvaluatedKey;
+
+		Page(List<Map<String, AttributeValue>> items, Map<String, AttributeValue> lastEvaluatedKey) {
+			this.items = items;
+			this.lastEvaluatedKey = lastEvaluatedKey == null || lastEvaluatedKey.isEmpty() ? null : lastEvaluatedKey;
+		}
+	}
+
+	/**
+	 * The read capacity units taken before a page is requested. The cost of a page isn't known until it has been
+	 * read, so the rest is settled afterwards.
+	 */
+	private static final double PAGE_ESTIMATE = 1;
+
+	private final PageSource source;
+
+	ItemPager(PageSource source) {
+		this.source = source;
+	}
+
+	/**
+	 * Returns a pager for the given scan. The request is copied for each page, so it is not modified, and the pager
+	 * may be iterated multiple times, or concurrently.
+	 *
+	 * @param client
+	 * @param request
+	 * @return
+	 */
+	static ItemPager scan(AmazonDynamoDB client, ScanRequest request) {
+		return scan(client, request, CapacityLimiter.unlimited().reads);
+	}
+
+	/**
+	 * Returns a pager for the given scan, which takes the capacity each page consumes from the given bucket, as
+	 * background traffic.
+	 *
+	 * @param client
+	 * @param request
+	 * @param reads
+	 * @return
+	 */
+	static ItemPager scan(AmazonDynamoDB client, ScanRequest request, CapacityLimiter.Bucket reads) {
+		return new ItemPager(scanPages(client, request, reads));
+	}
+
+	/**
+	 * Returns the page source for the given scan, which takes the capacity each page consumes from the given bucket,
+	 * as background traffic. The request is copied for each page, so it is not modified.
+	 *
+	 * @param client
+	 * @param request
+	 * @param reads
+	 * @return
+	 */
+	static PageSource scanPages(AmazonDynamoDB client, ScanRequest request, CapacityLimiter.Bucket reads) {
+		return startKey -> {
+			reads.acquire(PAGE_ESTIMATE, CapacityLimiter.Priority.BACKGROUND).join();
+			ScanResult result;
+			try {
+				result = client.scan(request.clone().withExclusiveStartKey(startKey)
+						.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+			} catch (RuntimeException ex) {
+				reads.completed(PAGE_ESTIMATE, Double.NaN, ex);
+				throw ex;
+			}
+			reads.completed(PAGE_ESTIMATE, CapacityLimiter.units(result.getConsumedCapacity()), null);
+			return new Page(result.getItems(), result.getLastEvaluatedKey());
+		};
+	}
+
+	/**
+	 * Returns a pager for the given query. The request is copied for each page, so it is not modified, and the pager
+	 * may be iterated multiple times, or concurrently.
+	 *
+	 * @param client
+	 * @param request
+	 * @return
+	 */
+	static ItemPager query(AmazonDynamoDB client, QueryRequest request) {
+		return query(client, request, CapacityLimiter.unlimited().reads);
+	}
+
+	/**
+	 * Returns a pager for the given query, which takes the capacity each page consumes from the given bucket, as
+	 * background traffic.
+	 *
+	 * @param client
+	 * @param request
+	 * @param reads
+	 * @return
+	 */
+	static ItemPager query(AmazonDynamoDB client, QueryRequest request, CapacityLimiter.Bucket reads) {
+		return new ItemPager(startKey -> {
+			reads.acquire(PAGE_ESTIMATE, CapacityLimiter.Priority.BACKGROUND).join();
+			QueryResult result;
+			try {
+				result = client.query(request.clone().withExclusiveStartKey(startKey)
+						.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+			} catch (RuntimeException ex) {
+				reads.completed(PAGE_ESTIMATE, Double.NaN, ex);
+				throw ex;
+			}
+			reads.completed(PAGE_ESTIMATE, CapacityLimiter.units(result.getConsumedCapacity()), null);
+			return new Page(result.getItems(), result.getLastEvaluatedKey());
+		});
+	}
+
+	@Override
+	public Iterator<Map<String, AttributeValue>> iterator() {
+		return new PageIterator();
+	}
+
+	/**
+	 * Note that a page may legitimately be empty if a filter removed all the items in it, so we must keep going until
+	 * DynamoDB stops returning a LastEvaluatedKey.
+	 */
+	private class PageIterator implements Iterator<Map<String, AttributeValue>> {
+
+		private Iterator<Map<String, AttributeValue>> page = Collections.emptyIterator();
+		private Map<String, AttributeValue> lastEvaluatedKey = null;
+		private boolean started = false;
+
+		@Override
+		public boolean hasNext() {
+			while(!page.hasNext()) {
+				if(started && lastEvaluatedKey == null) {
+					return false;
+				}
+				started = true;
+				Page p = source.fetch(lastEvaluatedKey);
+				lastEvaluatedKey = p.lastEvaluatedKey;
+				page = p.items.iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public Map<String, AttributeValue> next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return page.next();
+		}
+
+	}
+
+}
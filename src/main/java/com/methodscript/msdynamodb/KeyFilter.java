@@ -0,0 +1,182 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter of the keys that exist in the table, which lets gets of keys that don't exist be answered without a
+ * network call.
+ * <p>
+ * The filter is empty until it has been filled by a scan of every key in the table, and until then, it answers that
+ * every key might exist. Keys are added as they are written, including while the scan is running, and keys are never
+ * removed, so a deleted key remains a false positive. The filter only knows about writes made to the table by this
+ * process, or seen in the table's stream, so a key created by some other writer reads as missing until the stream
+ * catches up with it. This is why the filter may only be used along with stream invalidation. If the stream misses
+ * changes, the filter is marked stale, and answers that every key might exist again, until it has been filled by
+ * another scan.
+ * <p>
+ * The bits are updated with atomic operations, so keys may be added and looked up concurrently without locking.
+ */
+class KeyFilter {
+
+	/**
+	 * The false positive rate the filter is sized for, when it holds the expected number of keys.
+	 */
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private final AtomicLongArray bits;
+	private final long bitCount;
+	private final int hashCount;
+	private final long expectedKeys;
+	private volatile boolean ready = false;
+	/**
+	 * The number of times the filter has been marked stale. Guarded by this.
+	 */
+	private long epoch = 0;
+
+	private final LongAdder added = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param expectedKeys The number of keys the table is expected to hold. If the table holds more, the filter still
+	 * works, but has more false positives.
+	 */
+	KeyFilter(long expectedKeys) {
+		this.expectedKeys = Math.max(1, expectedKeys);
+		double ln2 = Math.log(2);
+		long words = Math.max(1, (long) Math.ceil(-this.expectedKeys * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2)
+				/ Long.SIZE));
+		bits = new AtomicLongArray((int) Math.min(words, Integer.MAX_VALUE - 8));
+		bitCount = (long) bits.length() * Long.SIZE;
+		hashCount = Math.max(1, (int) Math.round((double) bitCount / this.expectedKeys * ln2));
+	}
+
+	/**
+	 * Adds a key which exists in the table.
+	 *
+	 * @param key The full dotted key
+	 */
+	void add(String key) {
+		long hash1 = hash(key, 0x9E3779B97F4A7C15L);
+		long hash2 = hash(key, 0xC2B2AE3D27D4EB4FL) | 1;
+		for(int i = 0; i < hashCount; i++) {
+			long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long current = bits.get(word);
+			while((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+				current = bits.get(word);
+			}
+		}
+		added.increment();
+	}
+
+	/**
+	 * Returns false if the key definitely doesn't exist in the table. If the filter isn't ready yet, this is always
+	 * true.
+	 *
+	 * @param key The full dotted key
+	 * @return
+	 */
+	boolean mightContain(String key) {
+		if(!ready) {
+			return true;
+		}
+		long hash1 = hash(key, 0x9E3779B97F4A7C15L);
+		long hash2 = hash(key, 0xC2B2AE3D27D4EB4FL) | 1;
+		for(int i = 0; i < hashCount; i++) {
+			long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+			if((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				rejected.increment();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of times the filter has been marked stale, which must be read before a scan to fill the
+	 * filter is started, and passed to {@link #markReady} once it is done.
+	 *
+	 * @return
+	 */
+	synchronized long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Marks the filter as complete, unless it has been marked stale since the scan which filled it was started. This
+	 * must only be called once every key in the table has been added.
+	 *
+	 * @param epoch What {@link #getEpoch} returned before the scan was started
+	 * @return False if the filter was marked stale in the meantime, and must be filled again.
+	 */
+	synchronized boolean markReady(long epoch) {
+		if(this.epoch != epoch) {
+			return false;
+		}
+		ready = true;
+		return true;
+	}
+
+	/**
+	 * Marks the filter as no longer knowing every key, because keys may have been created without it seeing them.
+	 * Until it has been filled again, it answers that every key might exist.
+	 */
+	synchronized void markStale() {
+		epoch++;
+		ready = false;
+	}
+
+	boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * A 64 bit hash of the key's characters, with a final mix so that similar keys spread across the whole range.
+	 *
+	 * @param key
+	 * @param seed
+	 * @return
+	 */
+	private static long hash(String key, long seed) {
+		long h = seed ^ key.length();
+		for(int i = 0; i < key.length(); i++) {
+			h = (h ^ key.charAt(i)) * 0x100000001B3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Returns whether the filter is ready, the number of times it has been marked stale, the number of keys added to
+	 * it, which counts keys written more than once each time, the number of gets it answered as missing, and its size
+	 * in bytes.
+	 *
+	 * @return
+	 */
+	Map<String, Number> getStatistics() {
+		Map<String, Number> ret = new LinkedHashMap<>();
+		ret.put("ready", ready ? 1 : 0);
+		synchronized(this) {
+			ret.put("stale", epoch);
+		}
+		ret.put("added", added.sum());
+		ret.put("rejected", rejected.sum());
+		ret.put("expectedKeys", expectedKeys);
+		ret.put("bytes", bitCount / 8);
+		return ret;
+	}
+
+}
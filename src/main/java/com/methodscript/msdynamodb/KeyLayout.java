@@ -0,0 +1,358 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.laytonsmith.persistence.DataSourceException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Describes how a dotted Persistence Network key is mapped onto the primary key of the table. There are two layouts.
+ * <p>
+ * The flat layout, which is the original layout, stores the full dotted key in the HASH attribute "key". Since each
+ * key is in its own partition, looking up all the keys under a namespace requires a scan of the entire table.
+ * <p>
+ * The hierarchical layout stores the first N segments of the key in the HASH attribute "partition", and the full
+ * dotted key in the RANGE attribute "key". Keys with N or fewer segments use the whole key as the partition. All the
+ * keys under a namespace which is at least N segments deep are in the same partition, and so can be found with a
+ * Query, whose cost scales with the number of matching keys rather than the size of the table. In both layouts, the
+ * "key" attribute always contains the full dotted key.
+ */
+class KeyLayout {
+
+	static final String KEY_ATTRIBUTE = "key";
+	static final String PARTITION_ATTRIBUTE = "partition";
+	/**
+	 * Matches the items which are values of their own, rather than chunks of a chunked value, or the other shards of
+	 * a sharded key.
+	 */
+	private static final String VALUES_ONLY = "attribute_not_exists(#c) AND attribute_not_exists(#s)";
+	/**
+	 * Matches the keys which are the prefix itself, or are under it, so that a prefix only ever matches whole
+	 * segments, and a.b matches a.b and a.b.c, but not a.bc.
+	 */
+	private static final String UNDER_PREFIX = "(#k = :prefix OR begins_with(#k, :children))";
+	/**
+	 * Matches the other shards of the keys which match {@link #UNDER_PREFIX}, by the key they hold.
+	 */
+	private static final String SHARD_UNDER_PREFIX = "(#s = :prefix OR begins_with(#s, :children))";
+
+	private static final KeyLayout FLAT = new KeyLayout(0);
+
+	private final int partitionDepth;
+
+	private KeyLayout(int partitionDepth) {
+		this.partitionDepth = partitionDepth;
+	}
+
+	/**
+	 * Returns the layout with the given partition depth.
+	 *
+	 * @param partitionDepth The number of key segments that make up the partition key, or 0 for the flat layout.
+	 * @return
+	 * @throws DataSourceException If the partition depth is negative.
+	 */
+	static KeyLayout forDepth(int partitionDepth) throws DataSourceException {
+		if(partitionDepth < 0) {
+			throw new DataSourceException("The partition depth may not be negative, but was " + partitionDepth);
+		}
+		if(partitionDepth == 0) {
+			return FLAT;
+		}
+		return new KeyLayout(partitionDepth);
+	}
+
+	/**
+	 * The number of key segments that make up the partition key, or 0 for the flat layout.
+	 *
+	 * @return
+	 */
+	int getPartitionDepth() {
+		return partitionDepth;
+	}
+
+	boolean isHierarchical() {
+		return partitionDepth > 0;
+	}
+
+	/**
+	 * Returns the partition that the given dotted key belongs in. This is only meaningful for the hierarchical
+	 * layout. The other shards of a sharded key each have a partition of their own, so that writes to them are spread
+	 * out.
+	 *
+	 * @param key
+	 * @return
+	 */
+	String partitionOf(String key) {
+		int shard = key.lastIndexOf(KeySharding.SHARD_SEPARATOR);
+		if(shard != -1) {
+			return partitionOf(key.substring(0, shard)) + key.substring(shard);
+		}
+		int index = -1;
+		for(int i = 0; i < partitionDepth; i++) {
+			index = key.indexOf('.', index + 1);
+			if(index == -1) {
+				return key;
+			}
+		}
+		return key.substring(0, index);
+	}
+
+	/**
+	 * Returns the primary key attributes for the given dotted key.
+	 *
+	 * @param key
+	 * @return
+	 */
+	Map<String, AttributeValue> toKey(String key) {
+		Map<String, AttributeValue> ret = new HashMap<>();
+		ret.put(KEY_ATTRIBUTE, new AttributeValue(key));
+		if(isHierarchical()) {
+			ret.put(PARTITION_ATTRIBUTE, new AttributeValue(partitionOf(key)));
+		}
+		return ret;
+	}
+
+	/**
+	 * Converts the primary key attributes of an item in some other layout to this layout. The "key" attribute is
+	 * the same in all layouts, so it is used to derive the rest. Attributes which are not part of the primary key are
+	 * kept as is.
+	 *
+	 * @param item
+	 * @return A new item, which is in this layout
+	 */
+	Map<String, AttributeValue> convert(Map<String, AttributeValue> item) {
+		Map<String, AttributeValue> ret = new HashMap<>(item);
+		ret.remove(PARTITION_ATTRIBUTE);
+		ret.putAll(toKey(item.get(KEY_ATTRIBUTE).getS()));
+		return ret;
+	}
+
+	List<KeySchemaElement> getKeySchema() {
+		List<KeySchemaElement> keySchema = new ArrayList<>();
+		if(isHierarchical()) {
+			keySchema.add(new KeySchemaElement().withAttributeName(PARTITION_ATTRIBUTE).withKeyType(KeyType.HASH));
+			keySchema.add(new KeySchemaElement().withAttributeName(KEY_ATTRIBUTE).withKeyType(KeyType.RANGE));
+		} else {
+			keySchema.add(new KeySchemaElement().withAttributeName(KEY_ATTRIBUTE).withKeyType(KeyType.HASH));
+		}
+		return keySchema;
+	}
+
+	List<AttributeDefinition> getAttributeDefinitions() {
+		List<AttributeDefinition> attributeDefinitions = new ArrayList<>();
+		if(isHierarchical()) {
+			attributeDefinitions.add(new AttributeDefinition().withAttributeName(PARTITION_ATTRIBUTE)
+					.withAttributeType(ScalarAttributeType.S));
+		}
+		attributeDefinitions.add(new AttributeDefinition().withAttributeName(KEY_ATTRIBUTE)
+				.withAttributeType(ScalarAttributeType.S));
+		return attributeDefinitions;
+	}
+
+	/**
+	 * Checks that the key schema of an existing table matches this layout.
+	 *
+	 * @param tableName The name of the table, for the error message
+	 * @param keySchema The key schema of the existing table
+	 * @throws DataSourceException If the table is not in this layout.
+	 */
+	void verify(String tableName, List<KeySchemaElement> keySchema) throws DataSourceException {
+		boolean tableIsHierarchical = false;
+		for(KeySchemaElement e : keySchema) {
+			if(KeyType.RANGE.toString().equals(e.getKeyType())) {
+				tableIsHierarchical = true;
+			}
+		}
+		if(tableIsHierarchical && !isHierarchical()) {
+			throw new DataSourceException("The table \"" + tableName + "\" uses the hierarchical key layout, but no"
+					+ " partitionDepth was provided in the DynamoDB configuration. It must be set to the same depth the"
+					+ " table was created with.");
+		}
+		if(!tableIsHierarchical && isHierarchical()) {
+			throw new DataSourceException("The table \"" + tableName + "\" uses the flat key layout, but a"
+					+ " partitionDepth was provided in the DynamoDB configuration. Remove it, or migrate the table to"
+					+ " the hierarchical layout.");
+		}
+		if(!getKeySchema().equals(keySchema)) {
+			throw new DataSourceException("The key schema of the table \"" + tableName + "\" is not in the expected"
+					+ " format. Please see the documentation for details on how to set this up.");
+		}
+	}
+
+	/**
+	 * Returns all the items whose key begins with the given segments, which means that the key is either the prefix
+	 * itself, or begins with the prefix followed by a dot. If the layout is hierarchical and the prefix is at least as
+	 * deep as the partition, this is a Query on that partition, otherwise it is a full table Scan, with the prefix
+	 * applied as a filter. Only the key attribute is returned in the items. The chunk items of chunked
+	 * values, and the other shards of sharded keys, which are not values of their own, are left out.
+	 *
+	 * @param client
+	 * @param tableName
+	 * @param keyBase The key segments that the returned keys must begin with. May be empty.
+	 * @param reads The capacity each page consumes is taken from this bucket
+	 * @param scanSegments If this is a Scan, and this is greater than 1, it is a {@link ParallelScan} with this many
+	 * segments. Queries are always sequential.
+	 * @return
+	 */
+	Iterable<Map<String, AttributeValue>> keysWithPrefix(AmazonDynamoDB client, String tableName, String[] keyBase,
+			CapacityLimiter.Bucket reads, int scanSegments) {
+		return withPrefix(client, tableName, keyBase, reads, scanSegments, true);
+	}
+
+	/**
+	 * Returns all the items whose key begins with the given prefix, in the same way as {@link #keysWithPrefix}, but
+	 * with all their attributes.
+	 *
+	 * @param client
+	 * @param tableName
+	 * @param keyBase The key segments that the returned keys must begin with. May be empty.
+	 * @param reads The capacity each page consumes is taken from this bucket
+	 * @param scanSegments If this is a Scan, and this is greater than 1, it is a {@link ParallelScan} with this many
+	 * segments. Queries are always sequential.
+	 * @return
+	 */
+	Iterable<Map<String, AttributeValue>> itemsWithPrefix(AmazonDynamoDB client, String tableName, String[] keyBase,
+			CapacityLimiter.Bucket reads, int scanSegments) {
+		return withPrefix(client, tableName, keyBase, reads, scanSegments, false);
+	}
+
+	/**
+	 * Returns the other shards of the sharded keys which begin with the given segments, which {@link #keysWithPrefix}
+	 * leaves out, with only their key and {@link KeySharding#SHARD_OF_ATTRIBUTE} attributes. If the layout is
+	 * hierarchical and the prefix is at least as deep as the partition, this is a Query on each of the partitions the
+	 * other shards are in, otherwise it is a full table Scan.
+	 *
+	 * @param client
+	 * @param tableName
+	 * @param keyBase The key segments that the sharded keys must begin with. May be empty.
+	 * @param reads The capacity each page consumes is taken from this bucket
+	 * @param scanSegments If this is a Scan, and this is greater than 1, it is a {@link ParallelScan} with this many
+	 * segments.
+	 * @param shardCount The number of shards each sharded key is spread across
+	 * @return
+	 */
+	Iterable<Map<String, AttributeValue>> shardsWithPrefix(AmazonDynamoDB client, String tableName, String[] keyBase,
+			CapacityLimiter.Bucket reads, int scanSegments, int shardCount) {
+		String prefix = String.join(".", keyBase);
+		Map<String, String> names = new HashMap<>();
+		names.put("#k", KEY_ATTRIBUTE);
+		names.put("#s", KeySharding.SHARD_OF_ATTRIBUTE);
+		Map<String, AttributeValue> values = new HashMap<>();
+		if(isHierarchical() && keyBase.length >= partitionDepth) {
+			names.put("#p", PARTITION_ATTRIBUTE);
+			values.put(":prefix", new AttributeValue(prefix));
+			values.put(":children", new AttributeValue(prefix + "."));
+			List<Iterable<Map<String, AttributeValue>>> partitions = new ArrayList<>(shardCount - 1);
+			for(int i = 1; i < shardCount; i++) {
+				Map<String, AttributeValue> partitionValues = new HashMap<>(values);
+				partitionValues.put(":partition", new AttributeValue(partitionOf(KeySharding.shardKey(prefix, i))));
+				partitions.add(ItemPager.query(client, new QueryRequest(tableName)
+						.withKeyConditionExpression("#p = :partition AND begins_with(#k, :prefix)")
+						.withFilterExpression(SHARD_UNDER_PREFIX)
+						.withProjectionExpression("#k, #s")
+						.withExpressionAttributeNames(names)
+						.withExpressionAttributeValues(partitionValues), reads));
+			}
+			return concat(partitions);
+		}
+		ScanRequest request = new ScanRequest(tableName)
+				.withProjectionExpression("#k, #s")
+				.withExpressionAttributeNames(names)
+				.withFilterExpression("attribute_exists(#s)");
+		if(!prefix.isEmpty()) {
+			values.put(":prefix", new AttributeValue(prefix));
+			values.put(":children", new AttributeValue(prefix + "."));
+			request.withFilterExpression(SHARD_UNDER_PREFIX)
+					.withExpressionAttributeValues(values);
+		}
+		if(scanSegments > 1) {
+			return new ParallelScan(client, request, scanSegments, reads);
+		}
+		return ItemPager.scan(client, request, reads);
+	}
+
+	/**
+	 * Returns the items of each of the iterables in turn. Each is only started once the one before it is exhausted.
+	 *
+	 * @param parts
+	 * @return
+	 */
+	private static Iterable<Map<String, AttributeValue>> concat(List<Iterable<Map<String, AttributeValue>>> parts) {
+		return () -> new Iterator<Map<String, AttributeValue>>() {
+			private final Iterator<Iterable<Map<String, AttributeValue>>> remaining = parts.iterator();
+			private Iterator<Map<String, AttributeValue>> current = Collections.emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				while(!current.hasNext() && remaining.hasNext()) {
+					current = remaining.next().iterator();
+				}
+				return current.hasNext();
+			}
+
+			@Override
+			public Map<String, AttributeValue> next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return current.next();
+			}
+		};
+	}
+
+	private Iterable<Map<String, AttributeValue>> withPrefix(AmazonDynamoDB client, String tableName,
+			String[] keyBase, CapacityLimiter.Bucket reads, int scanSegments, boolean keysOnly) {
+		String prefix = String.join(".", keyBase);
+		// "key" is a reserved word in DynamoDB expressions, so the attribute names must always be aliased.
+		Map<String, String> names = new HashMap<>();
+		names.put("#k", KEY_ATTRIBUTE);
+		names.put("#c", ValueCodec.CHUNK_OF_ATTRIBUTE);
+		names.put("#s", KeySharding.SHARD_OF_ATTRIBUTE);
+		Map<String, AttributeValue> values = new HashMap<>();
+		if(isHierarchical() && keyBase.length >= partitionDepth) {
+			names.put("#p", PARTITION_ATTRIBUTE);
+			values.put(":partition", new AttributeValue(partitionOf(prefix)));
+			values.put(":prefix", new AttributeValue(prefix));
+			values.put(":children", new AttributeValue(prefix + "."));
+			// The key condition can't have an OR, so it narrows the range, and the filter matches whole segments
+			return ItemPager.query(client, new QueryRequest(tableName)
+					.withKeyConditionExpression("#p = :partition AND begins_with(#k, :prefix)")
+					.withFilterExpression(UNDER_PREFIX + " AND " + VALUES_ONLY)
+					.withProjectionExpression(keysOnly ? "#k" : null)
+					.withExpressionAttributeNames(names)
+					.withExpressionAttributeValues(values), reads);
+		}
+		ScanRequest request = new ScanRequest(tableName)
+				.withProjectionExpression(keysOnly ? "#k" : null)
+				.withExpressionAttributeNames(names)
+				.withFilterExpression(VALUES_ONLY);
+		if(!prefix.isEmpty()) {
+			values.put(":prefix", new AttributeValue(prefix));
+			values.put(":children", new AttributeValue(prefix + "."));
+			request.withFilterExpression(UNDER_PREFIX + " AND " + VALUES_ONLY)
+					.withExpressionAttributeValues(values);
+		}
+		if(scanSegments > 1) {
+			return new ParallelScan(client, request, scanSegments, reads);
+		}
+		return ItemPager.scan(client, request, reads);
+	}
+
+}
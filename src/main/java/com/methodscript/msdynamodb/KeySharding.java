@@ -0,0 +1,455 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.laytonsmith.persistence.DataSourceException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads the writes to heavily written keys across several items, called shards, so that a single key isn't limited
+ * to the write throughput of a single DynamoDB partition.
+ * <p>
+ * Which keys are sharded is set by two lists of patterns, where * matches any one segment of the key, and ** as the
+ * last segment matches any number of them. The first shard of a key is stored as the key itself, and the others are
+ * stored under the key with {@link #SHARD_SEPARATOR} and the index of the shard added. In the hierarchical layout,
+ * each of the other shards is in a partition of its own. The other shards hold the key in a
+ * {@link #SHARD_OF_ATTRIBUTE} attribute, and key listings read them separately, with {@link #withShards}, so that a
+ * key is listed once, whichever of its shards exist. Gets read all the shards with one BatchGetItem, and combine them
+ * with the key's strategy.
+ * <p>
+ * Keys matching the shardKeys patterns use the {@link Strategy#LWW} strategy, where each set writes the whole value to
+ * a random shard, along with the time it was written, and the newest shard wins. Keys matching the sumKeys patterns,
+ * which are checked first, use the {@link Strategy#SUM} strategy, where the value is the sum of the numbers in the
+ * shards, and each set adds the difference between the new value and the value that the same thread last read or
+ * wrote to a random shard, with an atomic update. This means that when several threads or servers each read a counter
+ * and set it to one more, none of the increments are lost, but it also means that a set is really an increment, so
+ * sum keys have to be opted into explicitly, aren't cached, and can't be set in a transaction.
+ */
+class KeySharding {
+
+	/**
+	 * The attribute that the other shards of a key hold the key in.
+	 */
+	static final String SHARD_OF_ATTRIBUTE = "shardOf";
+	/**
+	 * The attribute that the time a shard was written at is stored in, with the LWW strategy.
+	 */
+	static final String TIME_ATTRIBUTE = "shardTime";
+	/**
+	 * The attribute that a shard's part of the sum is stored in, with the SUM strategy.
+	 */
+	static final String SUM_ATTRIBUTE = "shardSum";
+	static final String SHARD_SEPARATOR = ":shard:";
+	/**
+	 * The most shards a key may have, which is the most keys a single BatchGetItem may read.
+	 */
+	static final int MAX_SHARDS = ReadCoalescer.MAX_BATCH_SIZE;
+	/**
+	 * The number of keys whose last read value is remembered per thread, for the SUM strategy.
+	 */
+	private static final int MAX_REMEMBERED = 1000;
+
+	/**
+	 * How the shards of a key are combined when it is read.
+	 */
+	enum Strategy {
+		/**
+		 * Last writer wins. The value in the most recently written shard is the value of the key.
+		 */
+		LWW,
+		/**
+		 * The numbers in the shards are added together.
+		 */
+		SUM
+	}
+
+	private static final class Rule {
+
+		private final String[] pattern;
+		private final Strategy strategy;
+
+		private Rule(String[] pattern, Strategy strategy) {
+			this.pattern = pattern;
+			this.strategy = strategy;
+		}
+	}
+
+	private final List<Rule> rules;
+	private final int shardCount;
+	private final AtomicLong lastTime = new AtomicLong();
+	@SuppressWarnings("serial")
+	private final ThreadLocal<Map<String, BigDecimal>> lastSeen = ThreadLocal.withInitial(
+			() -> new LinkedHashMap<String, BigDecimal>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, BigDecimal> eldest) {
+			return size() > MAX_REMEMBERED;
+		}
+	});
+
+	private KeySharding(List<Rule> rules, int shardCount) {
+		this.rules = rules;
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * Parses the rules. Each list is a comma separated list of key patterns, for instance
+	 * {@code storage.counters.**,storage.stats.*}.
+	 *
+	 * @param shardKeys The patterns of the keys which use the LWW strategy, or null if there are none.
+	 * @param sumKeys The patterns of the keys which use the SUM strategy, or null if there are none.
+	 * @param shardCount The number of shards each sharded key is spread across.
+	 * @return
+	 * @throws DataSourceException If the rules are malformed, or the shard count is out of range.
+	 */
+	static KeySharding parse(String shardKeys, String sumKeys, int shardCount) throws DataSourceException {
+		if(shardCount < 2 || shardCount > MAX_SHARDS) {
+			throw new DataSourceException("shardCount must be between 2 and " + MAX_SHARDS + ", but was "
+					+ shardCount);
+		}
+		List<Rule> rules = new ArrayList<>();
+		// The sum rules come first, so that a counter is never mistaken for an LWW key
+		parseRules(sumKeys, Strategy.SUM, rules);
+		parseRules(shardKeys, Strategy.LWW, rules);
+		return new KeySharding(rules, shardCount);
+	}
+
+	private static void parseRules(String spec, Strategy strategy, List<Rule> rules) throws DataSourceException {
+		if(spec == null) {
+			return;
+		}
+		for(String rule : spec.split(",")) {
+			rule = rule.trim();
+			if(rule.isEmpty()) {
+				continue;
+			}
+			if(rule.contains(":")) {
+				throw new DataSourceException("Key patterns may not contain \":\", but \"" + rule + "\" does. Keys"
+						+ " whose values are the sum of their shards are listed in sumKeys rather than shardKeys.");
+			}
+			String[] pattern = rule.split("\\.");
+			for(int i = 0; i < pattern.length - 1; i++) {
+				if("**".equals(pattern[i])) {
+					throw new DataSourceException("** may only be the last segment of a key pattern, but was used in"
+							+ " \"" + rule + "\"");
+				}
+			}
+			rules.add(new Rule(pattern, strategy));
+		}
+	}
+
+	/**
+	 * Returns the strategy of the first rule that the key matches, or null if the key isn't sharded.
+	 *
+	 * @param key The full dotted key
+	 * @return
+	 */
+	Strategy strategyFor(String key) {
+		if(key.contains(SHARD_SEPARATOR)) {
+			return null;
+		}
+		String[] segments = key.split("\\.");
+		for(Rule rule : rules) {
+			if(matches(rule.pattern, segments)) {
+				return rule.strategy;
+			}
+		}
+		return null;
+	}
+
+	private static boolean matches(String[] pattern, String[] key) {
+		for(int i = 0; i < pattern.length; i++) {
+			if(i == pattern.length - 1 && "**".equals(pattern[i])) {
+				return key.length > i;
+			}
+			if(i >= key.length || !("*".equals(pattern[i]) || pattern[i].equals(key[i]))) {
+				return false;
+			}
+		}
+		return key.length == pattern.length;
+	}
+
+	/**
+	 * Returns whether some of the keys that begin with the given segments may be sharded.
+	 *
+	 * @param keyBase
+	 * @return
+	 */
+	boolean mayMatchUnder(String[] keyBase) {
+		for(Rule rule : rules) {
+			boolean matches = true;
+			for(int i = 0; i < keyBase.length && matches; i++) {
+				if(i == rule.pattern.length - 1 && "**".equals(rule.pattern[i])) {
+					break;
+				}
+				matches = i < rule.pattern.length
+						&& ("*".equals(rule.pattern[i]) || rule.pattern[i].equals(keyBase[i]));
+			}
+			if(matches) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the items of a key listing, followed by the keys of the other shards, so that a sharded key is listed
+	 * even if its first shard doesn't exist. Each sharded key is only listed once. The returned items only have the
+	 * key attribute.
+	 *
+	 * @param values The listed items, which leave out the other shards.
+	 * @param shards The other shards, which must include the {@link #SHARD_OF_ATTRIBUTE}.
+	 * @return
+	 */
+	Iterable<Map<String, AttributeValue>> withShards(Iterable<Map<String, AttributeValue>> values,
+			Iterable<Map<String, AttributeValue>> shards) {
+		return () -> new Iterator<Map<String, AttributeValue>>() {
+			private final Set<String> listed = new HashSet<>();
+			private final Iterator<Map<String, AttributeValue>> valueIterator = values.iterator();
+			private Iterator<Map<String, AttributeValue>> shardIterator;
+			private Map<String, AttributeValue> next;
+
+			@Override
+			public boolean hasNext() {
+				if(next != null) {
+					return true;
+				}
+				if(valueIterator.hasNext()) {
+					next = valueIterator.next();
+					String key = next.get(KeyLayout.KEY_ATTRIBUTE).getS();
+					if(strategyFor(key) != null) {
+						listed.add(key);
+					}
+					return true;
+				}
+				if(shardIterator == null) {
+					shardIterator = shards.iterator();
+				}
+				while(shardIterator.hasNext()) {
+					String key = shardIterator.next().get(SHARD_OF_ATTRIBUTE).getS();
+					if(listed.add(key)) {
+						next = Collections.singletonMap(KeyLayout.KEY_ATTRIBUTE, new AttributeValue(key));
+						return true;
+					}
+				}
+				return false;
+			}
+
+			@Override
+			public Map<String, AttributeValue> next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Map<String, AttributeValue> ret = next;
+				next = null;
+				return ret;
+			}
+		};
+	}
+
+	int getShardCount() {
+		return shardCount;
+	}
+
+	/**
+	 * Returns the item key of the given shard of the key. The first shard is the key itself.
+	 *
+	 * @param key The full dotted key
+	 * @param index
+	 * @return
+	 */
+	static String shardKey(String key, int index) {
+		return index == 0 ? key : key + SHARD_SEPARATOR + index;
+	}
+
+	/**
+	 * Returns the item keys of all the shards of the key.
+	 *
+	 * @param key The full dotted key
+	 * @return
+	 */
+	List<String> shardKeys(String key) {
+		List<String> ret = new ArrayList<>(shardCount);
+		for(int i = 0; i < shardCount; i++) {
+			ret.add(shardKey(key, i));
+		}
+		return ret;
+	}
+
+	/**
+	 * If the item key is one of the other shards of a sharded key, returns that key, otherwise returns null.
+	 *
+	 * @param itemKey
+	 * @return
+	 */
+	static String baseKey(String itemKey) {
+		int index = itemKey.lastIndexOf(SHARD_SEPARATOR);
+		return index == -1 ? null : itemKey.substring(0, index);
+	}
+
+	/**
+	 * Picks the shard the next write to the key goes to.
+	 *
+	 * @return
+	 */
+	int pickShard() {
+		return ThreadLocalRandom.current().nextInt(shardCount);
+	}
+
+	/**
+	 * Called when the key is deleted, so that the current thread no longer remembers its value.
+	 *
+	 * @param key The full dotted key
+	 */
+	void deleted(String key) {
+		lastSeen.get().remove(key);
+	}
+
+	/**
+	 * Returns the item for the given shard of an LWW key, which is the item the codec would store the value in, with
+	 * the time it was written added.
+	 *
+	 * @param layout
+	 * @param codec
+	 * @param key The full dotted key
+	 * @param index
+	 * @param value
+	 * @return
+	 * @throws DataSourceException If the value doesn't fit in a single item.
+	 */
+	Map<String, AttributeValue> toItem(KeyLayout layout, ValueCodec codec, String key, int index, String value)
+			throws DataSourceException {
+		List<Map<String, AttributeValue>> items = codec.toItems(layout, shardKey(key, index), value);
+		if(items.size() > 1) {
+			throw new DataSourceException("The value of the sharded key \"" + key + "\" is too large. Values of"
+					+ " sharded keys must fit in a single item.");
+		}
+		Map<String, AttributeValue> item = items.get(0);
+		item.put(TIME_ATTRIBUTE, new AttributeValue().withN(Long.toString(nextTime())));
+		if(index > 0) {
+			item.put(SHARD_OF_ATTRIBUTE, new AttributeValue(key));
+		}
+		return item;
+	}
+
+	/**
+	 * Returns the current time in milliseconds, but always later than the last time this returned, so that two writes
+	 * from this process are never tied.
+	 *
+	 * @return
+	 */
+	private long nextTime() {
+		return lastTime.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Combines the shards of a key into its value.
+	 *
+	 * @param strategy
+	 * @param codec
+	 * @param key The full dotted key
+	 * @param items The shards that exist, in any order.
+	 * @return The value, or null if none of the shards exist.
+	 * @throws DataSourceException
+	 */
+	static String combine(Strategy strategy, ValueCodec codec, String key, List<Map<String, AttributeValue>> items)
+			throws DataSourceException {
+		if(strategy == Strategy.SUM) {
+			BigDecimal sum = null;
+			for(Map<String, AttributeValue> item : items) {
+				BigDecimal part = BigDecimal.ZERO;
+				if(item.containsKey(SUM_ATTRIBUTE)) {
+					part = new BigDecimal(item.get(SUM_ATTRIBUTE).getN());
+				}
+				if(item.containsKey(ValueCodec.VALUE_ATTRIBUTE)) {
+					// A value that was written before the key was sharded
+					part = part.add(toNumber(key, codec.decode(item)));
+				}
+				sum = sum == null ? part : sum.add(part);
+			}
+			return sum == null ? null : format(sum);
+		}
+		Map<String, AttributeValue> newest = null;
+		long newestTime = -1;
+		for(Map<String, AttributeValue> item : items) {
+			if(!item.containsKey(ValueCodec.VALUE_ATTRIBUTE)) {
+				continue;
+			}
+			// A value that was written before the key was sharded is older than any shard
+			long time = item.containsKey(TIME_ATTRIBUTE) ? Long.parseLong(item.get(TIME_ATTRIBUTE).getN()) : 0;
+			if(time > newestTime) {
+				newest = item;
+				newestTime = time;
+			}
+		}
+		if(newest == null) {
+			return null;
+		}
+		if(ValueCodec.chunkCount(newest) > 1) {
+			throw new DataSourceException("The sharded key \"" + key + "\" holds a chunked value, which was written"
+					+ " before it was sharded. Values of sharded keys must fit in a single item.");
+		}
+		return codec.decode(newest);
+	}
+
+	/**
+	 * Remembers the value of a SUM key that the current thread has read or written, so that its next set can add the
+	 * difference.
+	 *
+	 * @param key The full dotted key
+	 * @param value The value, or null if the key doesn't exist.
+	 * @throws DataSourceException If the value isn't a number.
+	 */
+	void remember(String key, String value) throws DataSourceException {
+		if(value == null) {
+			lastSeen.get().remove(key);
+		} else {
+			lastSeen.get().put(key, toNumber(key, value));
+		}
+	}
+
+	/**
+	 * Returns the value of the SUM key that the current thread last read or wrote, or null if it hasn't.
+	 *
+	 * @param key The full dotted key
+	 * @return
+	 */
+	BigDecimal remembered(String key) {
+		return lastSeen.get().get(key);
+	}
+
+	static BigDecimal toNumber(String key, String value) throws DataSourceException {
+		try {
+			return new BigDecimal(value.trim());
+		} catch (NumberFormatException ex) {
+			throw new DataSourceException("The sharded key \"" + key + "\" uses the sum strategy, but the value \""
+					+ value + "\" is not a number.");
+		}
+	}
+
+	/**
+	 * Formats the sum, as an integer if it is whole.
+	 *
+	 * @param sum
+	 * @return
+	 */
+	static String format(BigDecimal sum) {
+		BigDecimal stripped = sum.stripTrailingZeros();
+		return stripped.scale() <= 0 ? stripped.toBigInteger().toString() : stripped.toPlainString();
+	}
+
+}
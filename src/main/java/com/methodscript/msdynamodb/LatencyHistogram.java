@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies, in the style of HdrHistogram, which can be recorded into from many threads at once,
+ * without locking or allocating.
+ * <p>
+ * Latencies are recorded in microseconds. Each power of two range is split into 16 linear sub buckets, so any
+ * recorded value is off by at most 1/16th, about 6%, which is plenty for percentiles, and the whole range from 1
+ * microsecond up to several days fits in about 600 counters.
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/**
+	 * Values are capped to this many bits, which is about 12 days in microseconds.
+	 */
+	private static final int MAX_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	private static int indexOf(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Returns the highest value that is recorded in the given bucket.
+	 */
+	private static long highestValueAt(int index) {
+		if(index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long base = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+		return base + (1L << shift) - 1;
+	}
+
+	/**
+	 * Records the time since the given start.
+	 *
+	 * @param startNanos The start, from {@link System#nanoTime()}
+	 */
+	void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param micros The latency in microseconds
+	 */
+	void record(long micros) {
+		long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+		counts.incrementAndGet(indexOf(value));
+		count.increment();
+		total.add(value);
+		max.accumulate(value);
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the latency that the given percentage of the recorded latencies were at or below, in microseconds.
+	 *
+	 * @param percentile Between 0 and 100
+	 * @return The latency, or 0 if nothing was recorded.
+	 */
+	long getPercentile(double percentile) {
+		long[] snapshot = new long[counts.length()];
+		long recorded = 0;
+		for(int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			recorded += snapshot[i];
+		}
+		if(recorded == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(recorded * percentile / 100));
+		long seen = 0;
+		for(int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if(seen >= target) {
+				// The bucket's upper bound can be a little above the largest value actually recorded
+				return Math.min(highestValueAt(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns the count, and the mean, percentiles, and maximum in milliseconds.
+	 *
+	 * @return
+	 */
+	Map<String, Number> getStatistics() {
+		Map<String, Number> ret = new LinkedHashMap<>();
+		long n = count.sum();
+		ret.put("count", n);
+		ret.put("meanMillis", n == 0 ? 0.0 : total.sum() / (double) n / 1000);
+		ret.put("p50Millis", getPercentile(50) / 1000.0);
+		ret.put("p90Millis", getPercentile(90) / 1000.0);
+		ret.put("p99Millis", getPercentile(99) / 1000.0);
+		ret.put("p999Millis", getPercentile(99.9) / 1000.0);
+		ret.put("maxMillis", max.get() / 1000.0);
+		return ret;
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.laytonsmith.persistence.DataSourceException;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A read only view of the keys returned by a Scan or Query, which lazily pages through the results as it is iterated.
+ * Each call to {@link #iterator()} starts the operation over, and pages are only requested as they are consumed, so
+ * memory use is independent of the size of the table.
+ * <p>
+ * Because the set is not materialized, {@link #size()} must run the entire operation, and should be avoided on large
+ * tables. Iteration is the intended use.
+ * <p>
+ * Since the pages are requested during iteration, failures can't be reported as a {@link DataSourceException} from
+ * there. {@link #prefetch()} requests the first page up front, so that errors such as a missing table still surface
+ * when the set is created, but a failure on a later page is thrown from the iterator as a RuntimeException, with the
+ * name of the table in the message and the SDK's exception as the cause.
+ */
+class LazyKeySet extends AbstractSet<String[]> {
+
+	private final Iterable<Map<String, AttributeValue>> items;
+	private final String keyAttribute;
+	private final String tableName;
+	private Iterator<Map<String, AttributeValue>> prefetched;
+
+	/**
+	 * @param items The items to read the keys from. These only need to contain the key attribute, so the underlying
+	 * request should use a projection.
+	 * @param keyAttribute The name of the attribute which contains the full dotted key
+	 * @param tableName The name of the table, for error messages
+	 */
+	LazyKeySet(Iterable<Map<String, AttributeValue>> items, String keyAttribute, String tableName) {
+		this.items = items;
+		this.keyAttribute = keyAttribute;
+		this.tableName = tableName;
+	}
+
+	/**
+	 * Requests the first page of the results, which the next call to {@link #iterator()} then continues from.
+	 *
+	 * @return This set
+	 * @throws DataSourceException If the first page could not be read
+	 */
+	LazyKeySet prefetch() throws DataSourceException {
+		Iterator<Map<String, AttributeValue>> it = items.iterator();
+		try {
+			it.hasNext();
+		} catch (AmazonClientException ex) {
+			throw new DataSourceException("Could not list the keys of \"" + tableName + "\"", ex);
+		}
+		prefetched = it;
+		return this;
+	}
+
+	@Override
+	public Iterator<String[]> iterator() {
+		Iterator<Map<String, AttributeValue>> it;
+		if(prefetched != null) {
+			it = prefetched;
+			prefetched = null;
+		} else {
+			it = items.iterator();
+		}
+		return new Iterator<String[]>() {
+			@Override
+			public boolean hasNext() {
+				try {
+					return it.hasNext();
+				} catch (AmazonClientException ex) {
+					throw new RuntimeException("Could not list the keys of \"" + tableName + "\"", ex);
+				}
+			}
+
+			@Override
+			public String[] next() {
+				Map<String, AttributeValue> item;
+				try {
+					item = it.next();
+				} catch (AmazonClientException ex) {
+					throw new RuntimeException("Could not list the keys of \"" + tableName + "\"", ex);
+				}
+				return item.get(keyAttribute).getS().split("\\.");
+			}
+		};
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !iterator().hasNext();
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		Iterator<String[]> it = iterator();
+		while(it.hasNext()) {
+			it.next();
+			size++;
+		}
+		return size;
+	}
+
+}
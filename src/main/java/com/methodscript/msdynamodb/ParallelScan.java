@@ -0,0 +1,233 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterates over all the items returned by a Scan, split into segments which are scanned in parallel. A single Scan
+ * reads the table one page at a time, but with segments, DynamoDB reads several parts of the table at once, so a large
+ * table can be read many times faster.
+ * <p>
+ * Each segment is read by its own worker, which puts its pages into a small, bounded queue that the iterator takes
+ * them from, so the items from all the segments come back as one stream, in no particular order, and the workers can
+ * get at most a couple of pages ahead of the reader. Every page takes its read capacity from the limiter as background
+ * traffic, so a parallel scan doesn't starve gets.
+ * <p>
+ * As with {@link ItemPager}, each call to {@link #iterator()} starts the scan over. A reader may take as long as it
+ * likes over each item, the workers just wait for room in the queue. If the reader stops before reaching the end, it
+ * should {@link ScanIterator#close() close} the iterator, which stops the workers. If it doesn't, they stop once the
+ * iterator has been garbage collected, since nothing can read their pages after that.
+ */
+class ParallelScan implements Iterable<Map<String, AttributeValue>> {
+
+	/**
+	 * How often a worker which is waiting for room in the queue, and the reader while it waits for a page, check
+	 * whether the scan has been stopped.
+	 */
+	private static final long POLL_INTERVAL = 1000;
+	private static final Object END = new Object();
+
+	private final AmazonDynamoDB client;
+	private final ScanRequest request;
+	private final int segments;
+	private final CapacityLimiter.Bucket reads;
+
+	/**
+	 * @param client
+	 * @param request The scan. It is copied for each segment, so it is not modified.
+	 * @param segments The number of segments, and so workers.
+	 * @param reads The capacity each page consumes is taken from this bucket
+	 */
+	ParallelScan(AmazonDynamoDB client, ScanRequest request, int segments, CapacityLimiter.Bucket reads) {
+		this.client = client;
+		this.request = request;
+		this.segments = segments;
+		this.reads = reads;
+	}
+
+	@Override
+	public ScanIterator iterator() {
+		return new ScanIterator();
+	}
+
+	/**
+	 * Wraps an exception thrown by a worker, so that it can be passed to the reader through the queue.
+	 */
+	private static final class Failure {
+
+		private final RuntimeException exception;
+
+		private Failure(RuntimeException exception) {
+			this.exception = exception;
+		}
+	}
+
+	/**
+	 * The state that is shared between the reader and the workers. The workers only hold this, and a weak reference
+	 * to the iterator, so that they can tell when the iterator has been abandoned.
+	 */
+	private static final class Workers {
+
+		/**
+		 * Holds pages, each a List of items, the END marker of a finished segment, or a Failure.
+		 */
+		private final BlockingQueue<Object> queue;
+		private final String tableName;
+		private volatile boolean cancelled = false;
+		/**
+		 * Set if a worker had to stop without being able to put its END or Failure into the queue, in which case
+		 * the reader must not wait for it.
+		 */
+		private volatile RuntimeException stopped;
+
+		private Workers(int segments, String tableName) {
+			this.queue = new ArrayBlockingQueue<>(segments * 2);
+			this.tableName = tableName;
+		}
+
+		private void readSegment(ItemPager.PageSource source, WeakReference<?> reader) {
+			Object last;
+			try {
+				Map<String, AttributeValue> startKey = null;
+				do {
+					ItemPager.Page p = source.fetch(startKey);
+					if(!p.items.isEmpty() && !offer(p.items, reader)) {
+						return;
+					}
+					startKey = p.lastEvaluatedKey;
+				} while(startKey != null && !cancelled);
+				last = END;
+			} catch (RuntimeException ex) {
+				last = new Failure(ex);
+			}
+			offer(last, reader);
+		}
+
+		/**
+		 * Puts the object in the queue, waiting for as long as it takes the reader to make room, unless the scan is
+		 * cancelled, or the reader is garbage collected in the meantime.
+		 *
+		 * @return False if the object could not be put in the queue, and the worker must stop.
+		 */
+		private boolean offer(Object o, WeakReference<?> reader) {
+			try {
+				while(!cancelled) {
+					if(queue.offer(o, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+					if(reader.get() == null) {
+						cancelled = true;
+					}
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				// The reader would otherwise wait forever for this segment
+				stopped = new RuntimeException("Interrupted while scanning \"" + tableName + "\"", ex);
+				cancelled = true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The iterator over the merged segments. Closing it stops the scan, so that the workers don't keep reading pages
+	 * that will never be used.
+	 */
+	class ScanIterator implements Iterator<Map<String, AttributeValue>>, AutoCloseable {
+
+		private final Workers workers = new Workers(segments, request.getTableName());
+		private boolean started = false;
+		private int finished = 0;
+		private Iterator<Map<String, AttributeValue>> page = Collections.emptyIterator();
+
+		private ScanIterator() {
+		}
+
+		private void start() {
+			started = true;
+			WeakReference<ScanIterator> reader = new WeakReference<>(this);
+			Workers w = workers;
+			for(int i = 0; i < segments; i++) {
+				ItemPager.PageSource source = ItemPager.scanPages(client, request.clone().withSegment(i)
+						.withTotalSegments(segments), reads);
+				DynamoDBThreads.WORKERS.execute(() -> w.readSegment(source, reader));
+			}
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean hasNext() {
+			if(!started) {
+				start();
+			}
+			while(!page.hasNext()) {
+				if(finished == segments) {
+					return false;
+				}
+				Object o;
+				try {
+					o = workers.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					close();
+					throw new RuntimeException("Interrupted while scanning \"" + workers.tableName + "\"", ex);
+				}
+				if(o == null) {
+					if(workers.stopped != null) {
+						RuntimeException ex = workers.stopped;
+						close();
+						throw ex;
+					}
+					if(workers.cancelled) {
+						close();
+						throw new IllegalStateException("The scan of \"" + workers.tableName + "\" was stopped");
+					}
+				} else if(o == END) {
+					finished++;
+				} else if(o instanceof Failure) {
+					close();
+					throw ((Failure) o).exception;
+				} else {
+					page = ((List<Map<String, AttributeValue>>) o).iterator();
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public Map<String, AttributeValue> next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return page.next();
+		}
+
+		/**
+		 * Stops the remaining workers, and unblocks any that are waiting for room in the queue. After this, the
+		 * iterator has no more items.
+		 */
+		@Override
+		public void close() {
+			workers.cancelled = true;
+			finished = segments;
+			page = Collections.emptyIterator();
+			workers.queue.clear();
+		}
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.laytonsmith.persistence.DataSourceException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the gets made by concurrent threads over a short window, and sends them to DynamoDB as a single
+ * BatchGetItem request. If several threads ask for the same key in the same window, it is only requested once. Each
+ * caller blocks until the batch containing its key has been read, and then gets its own item back, so from the
+ * caller's point of view, this behaves just like a GetItem.
+ * <p>
+ * A batch is sent when the window closes, or as soon as it contains 100 keys, which is the most DynamoDB allows in
+ * one BatchGetItem, whichever comes first. The first key in a batch therefore waits at most one window longer than it
+ * otherwise would have, in exchange for fewer requests overall.
+ */
+class ReadCoalescer {
+
+	/**
+	 * The maximum number of keys that may be sent in a single BatchGetItem request.
+	 */
+	static final int MAX_BATCH_SIZE = 100;
+
+	private static final int MAX_ATTEMPTS = 10;
+	private static final long INITIAL_BACKOFF = 10;
+	private static final long MAX_BACKOFF = 2000;
+
+	private final AsyncClient client;
+	private final String tableName;
+	private final KeyLayout layout;
+	private final boolean consistentRead;
+	private final long windowMillis;
+	private final CapacityLimiter.Bucket reads;
+
+	/**
+	 * The batch that is currently collecting keys, keyed by the full dotted key. Guarded by this.
+	 */
+	private Map<String, CompletableFuture<Map<String, AttributeValue>>> pending = new HashMap<>();
+
+	/**
+	 * @param client The batches are sent with this client. If it is blocking, it must use an executor, since the
+	 * batches are sent from the scheduler thread.
+	 * @param tableName
+	 * @param layout
+	 * @param consistentRead
+	 * @param windowMillis How long to collect keys for, after the first key in a batch arrives.
+	 * @param reads The read capacity for each batch is taken from this bucket. Since scripts are waiting on the
+	 * batches, they are interactive traffic.
+	 */
+	ReadCoalescer(AsyncClient client, String tableName, KeyLayout layout, boolean consistentRead,
+			long windowMillis, CapacityLimiter.Bucket reads) {
+		this.client = client;
+		this.tableName = tableName;
+		this.layout = layout;
+		this.consistentRead = consistentRead;
+		this.windowMillis = windowMillis;
+		this.reads = reads;
+	}
+
+	/**
+	 * Returns the item with the given key, or null if it doesn't exist, blocking until the batch containing it has
+	 * been read.
+	 *
+	 * @param key The full dotted key
+	 * @return
+	 * @throws DataSourceException If the batch could not be read.
+	 */
+	Map<String, AttributeValue> get(String key) throws DataSourceException {
+		return AsyncClient.await(getAsync(key), tableName);
+	}
+
+	/**
+	 * Returns the item with the given key, or null if it doesn't exist, once the batch containing it has been read.
+	 *
+	 * @param key The full dotted key
+	 * @return
+	 */
+	CompletableFuture<Map<String, AttributeValue>> getAsync(String key) {
+		CompletableFuture<Map<String, AttributeValue>> future;
+		Map<String, CompletableFuture<Map<String, AttributeValue>>> full = null;
+		synchronized(this) {
+			future = pending.get(key);
+			if(future == null) {
+				future = new CompletableFuture<>();
+				pending.put(key, future);
+				if(pending.size() == 1) {
+					Map<String, CompletableFuture<Map<String, AttributeValue>>> batch = pending;
+					DynamoDBThreads.SCHEDULER.schedule(() -> flushIfPending(batch), windowMillis,
+							TimeUnit.MILLISECONDS);
+				}
+				if(pending.size() >= MAX_BATCH_SIZE) {
+					full = pending;
+					pending = new HashMap<>();
+				}
+			}
+		}
+		if(full != null) {
+			read(full);
+		}
+		return future;
+	}
+
+	/**
+	 * Called when the window for the given batch closes. If the batch is still the one collecting keys, it is closed
+	 * and read, otherwise it filled up and was already read.
+	 *
+	 * @param batch
+	 */
+	private void flushIfPending(Map<String, CompletableFuture<Map<String, AttributeValue>>> batch) {
+		synchronized(this) {
+			if(pending != batch) {
+				return;
+			}
+			pending = new HashMap<>();
+		}
+		read(batch);
+	}
+
+	/**
+	 * Reads all the keys in the batch, and completes their futures. Keys that don't exist are completed with null.
+	 *
+	 * @param batch
+	 */
+	private void read(Map<String, CompletableFuture<Map<String, AttributeValue>>> batch) {
+		List<Map<String, AttributeValue>> keys = new ArrayList<>(batch.size());
+		for(String key : batch.keySet()) {
+			keys.add(layout.toKey(key));
+		}
+		read(batch, Collections.singletonMap(tableName,
+				new KeysAndAttributes().withKeys(keys).withConsistentRead(consistentRead)), 1, INITIAL_BACKOFF);
+	}
+
+	/**
+	 * Sends one BatchGetItem for the given keys, once there is read capacity for it.
+	 */
+	private void read(Map<String, CompletableFuture<Map<String, AttributeValue>>> batch,
+			Map<String, KeysAndAttributes> requestItems, int attempt, long backoff) {
+		// An item of up to 4KB costs 1 unit, or half that if eventually consistent. The rest is settled afterwards.
+		double estimate = requestItems.get(tableName).getKeys().size() * (consistentRead ? 1 : 0.5);
+		reads.acquire(estimate, CapacityLimiter.Priority.INTERACTIVE)
+				.thenCompose(v -> client.batchGetItem(new BatchGetItemRequest(requestItems)
+						.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)))
+				.whenComplete((result, ex) -> {
+					reads.completed(estimate,
+							result == null ? Double.NaN : CapacityLimiter.units(result.getConsumedCapacity()), ex);
+					batchCompleted(batch, attempt, backoff, result, ex);
+				});
+	}
+
+	/**
+	 * Completes the futures of the items that were returned, and schedules a retry of any unprocessed keys.
+	 */
+	private void batchCompleted(Map<String, CompletableFuture<Map<String, AttributeValue>>> batch, int attempt,
+			long backoff, BatchGetItemResult result, Throwable ex) {
+		if(ex != null) {
+			fail(batch, AsyncClient.unwrap(ex));
+			return;
+		}
+		List<Map<String, AttributeValue>> items = result.getResponses().get(tableName);
+		if(items != null) {
+			for(Map<String, AttributeValue> item : items) {
+				CompletableFuture<Map<String, AttributeValue>> f
+						= batch.get(item.get(KeyLayout.KEY_ATTRIBUTE).getS());
+				if(f != null) {
+					f.complete(item);
+				}
+			}
+		}
+		Map<String, KeysAndAttributes> unprocessed = result.getUnprocessedKeys();
+		if(unprocessed == null || unprocessed.isEmpty()) {
+			// Anything that wasn't returned doesn't exist. Futures that were already completed are unaffected.
+			for(CompletableFuture<Map<String, AttributeValue>> f : batch.values()) {
+				f.complete(null);
+			}
+			return;
+		}
+		reads.unprocessed();
+		if(attempt >= MAX_ATTEMPTS) {
+			fail(batch, new DataSourceException("Could not read " + unprocessed.get(tableName).getKeys().size()
+					+ " keys from \"" + tableName + "\" after " + MAX_ATTEMPTS + " attempts"));
+			return;
+		}
+		DynamoDBThreads.SCHEDULER.schedule(
+				() -> read(batch, unprocessed, attempt + 1, Math.min(backoff * 2, MAX_BACKOFF)),
+				ThreadLocalRandom.current().nextLong(backoff) + 1, TimeUnit.MILLISECONDS);
+	}
+
+	private static void fail(Map<String, CompletableFuture<Map<String, AttributeValue>>> batch, Throwable ex) {
+		for(CompletableFuture<Map<String, AttributeValue>> f : batch.values()) {
+			f.completeExceptionally(ex);
+		}
+	}
+
+}
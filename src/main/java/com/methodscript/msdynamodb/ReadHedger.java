@@ -0,0 +1,140 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Hedges reads, to cut the tail latency caused by the occasional slow response. If a read hasn't completed after the
+ * configured percentile of recent read latencies, a second, identical read is sent, and whichever completes first is
+ * used.
+ * <p>
+ * The latency percentile is taken from the reads in the previous window of {@link #WINDOW_NANOS}, so it follows
+ * changes in the table's latency, and reads are not hedged until the first window with enough reads in it has ended.
+ * The number of hedges is limited by a budget, which is a percentage of the number of reads, so that a general
+ * slowdown can't double the load on the table. Only reads which can safely be sent twice, and whose results are
+ * interchangeable, such as eventually consistent gets, may be hedged.
+ */
+class ReadHedger {
+
+	private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+	/**
+	 * The fewest reads a window needs for its percentile to be used.
+	 */
+	private static final long MIN_SAMPLES = 100;
+	/**
+	 * Reads are never hedged sooner than this, in microseconds.
+	 */
+	private static final long MIN_DELAY = 1000;
+	/**
+	 * The budget is kept in hundredths of a hedge. This is the most that can be saved up, which is the number of
+	 * hedges that can be sent in a burst.
+	 */
+	private static final long MAX_CREDITS = 10 * 100;
+
+	private final double percentile;
+	private final long budget;
+
+	private volatile LatencyHistogram window = new LatencyHistogram();
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+	/**
+	 * The hedge delay in microseconds, or 0 if reads aren't hedged yet.
+	 */
+	private volatile long delay = 0;
+	private final AtomicLong credits = new AtomicLong();
+
+	private final LongAdder hedged = new LongAdder();
+	private final LongAdder hedgeWins = new LongAdder();
+
+	/**
+	 * @param percentile The percentile of read latencies after which a read is hedged, between 0 and 100.
+	 * @param budget The most reads that may be hedged, as a percentage of all reads.
+	 */
+	ReadHedger(double percentile, long budget) {
+		this.percentile = percentile;
+		this.budget = budget;
+	}
+
+	/**
+	 * Starts the read, and if it is slow, a hedge.
+	 *
+	 * @param <T>
+	 * @param read Starts a read. This is called once for the read, and again from the scheduler thread for the hedge,
+	 * so it must hand off any blocking work.
+	 * @return The result of whichever read completes first. If the first read fails, the read fails, unless the hedge
+	 * has already succeeded.
+	 */
+	<T> CompletableFuture<T> read(Supplier<CompletableFuture<T>> read) {
+		long start = System.nanoTime();
+		rotate(start);
+		credits.getAndUpdate(c -> Math.min(MAX_CREDITS, c + budget));
+		LatencyHistogram recording = window;
+		CompletableFuture<T> result = new CompletableFuture<>();
+		read.get().whenComplete((value, ex) -> {
+			if(ex != null) {
+				result.completeExceptionally(ex);
+			} else {
+				recording.recordSince(start);
+				result.complete(value);
+			}
+		});
+		long hedgeDelay = delay;
+		if(hedgeDelay > 0 && !result.isDone()) {
+			ScheduledFuture<?> timer = DynamoDBThreads.SCHEDULER.schedule(() -> {
+				if(result.isDone() || credits.getAndUpdate(c -> c >= 100 ? c - 100 : c) < 100) {
+					return;
+				}
+				hedged.increment();
+				read.get().whenComplete((value, ex) -> {
+					if(ex == null && result.complete(value)) {
+						hedgeWins.increment();
+					}
+				});
+			}, hedgeDelay, TimeUnit.MICROSECONDS);
+			result.whenComplete((value, ex) -> timer.cancel(false));
+		}
+		return result;
+	}
+
+	/**
+	 * If the current window has ended, starts a new one, and takes the hedge delay from the one that ended.
+	 *
+	 * @param now
+	 */
+	private void rotate(long now) {
+		long started = windowStart.get();
+		if(now - started < WINDOW_NANOS || !windowStart.compareAndSet(started, now)) {
+			return;
+		}
+		LatencyHistogram ended = window;
+		window = new LatencyHistogram();
+		if(ended.getCount() >= MIN_SAMPLES) {
+			delay = Math.max(MIN_DELAY, ended.getPercentile(percentile));
+		}
+	}
+
+	/**
+	 * Returns the number of reads that were hedged, the number of those where the hedge completed first, and the
+	 * current hedge delay.
+	 *
+	 * @return
+	 */
+	Map<String, Number> getStatistics() {
+		Map<String, Number> ret = new LinkedHashMap<>();
+		ret.put("hedged", hedged.sum());
+		ret.put("hedgeWins", hedgeWins.sum());
+		ret.put("delayMillis", delay / 1000.0);
+		return ret;
+	}
+
+}
@@ -0,0 +1,583 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.Capacity;
+import com.amazonaws.services.dynamodbv2.model.ConditionCheck;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.Delete;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.RequestLimitExceededException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+/**
+ * Translates the requests the data source makes, which are built with the model of version 1 of the AWS SDK, to the
+ * model of version 2, and the responses and exceptions back, so that the non-blocking client of version 2 can be used
+ * behind {@link AsyncClient} without the rest of the data source knowing about it.
+ * <p>
+ * Only the operations and parameters that {@link AsyncClient} supports are translated. The legacy parameters, such as
+ * Expected and AttributeUpdates, which predate expressions, are rejected rather than silently dropped.
+ */
+final class SdkV2Translator {
+
+	private SdkV2Translator() {
+	}
+
+	static software.amazon.awssdk.services.dynamodb.model.AttributeValue toV2(AttributeValue value) {
+		software.amazon.awssdk.services.dynamodb.model.AttributeValue.Builder builder
+				= software.amazon.awssdk.services.dynamodb.model.AttributeValue.builder();
+		if(value.getS() != null) {
+			builder.s(value.getS());
+		} else if(value.getN() != null) {
+			builder.n(value.getN());
+		} else if(value.getB() != null) {
+			builder.b(SdkBytes.fromByteBuffer(value.getB().duplicate()));
+		} else if(value.getSS() != null) {
+			builder.ss(value.getSS());
+		} else if(value.getNS() != null) {
+			builder.ns(value.getNS());
+		} else if(value.getBS() != null) {
+			List<SdkBytes> bs = new ArrayList<>(value.getBS().size());
+			for(ByteBuffer b : value.getBS()) {
+				bs.add(SdkBytes.fromByteBuffer(b.duplicate()));
+			}
+			builder.bs(bs);
+		} else if(value.getM() != null) {
+			builder.m(toV2Item(value.getM()));
+		} else if(value.getL() != null) {
+			List<software.amazon.awssdk.services.dynamodb.model.AttributeValue> l
+					= new ArrayList<>(value.getL().size());
+			for(AttributeValue v : value.getL()) {
+				l.add(toV2(v));
+			}
+			builder.l(l);
+		} else if(value.getNULL() != null) {
+			builder.nul(value.getNULL());
+		} else if(value.getBOOL() != null) {
+			builder.bool(value.getBOOL());
+		}
+		return builder.build();
+	}
+
+	static AttributeValue fromV2(software.amazon.awssdk.services.dynamodb.model.AttributeValue value) {
+		AttributeValue ret = new AttributeValue();
+		if(value.s() != null) {
+			ret.setS(value.s());
+		} else if(value.n() != null) {
+			ret.setN(value.n());
+		} else if(value.b() != null) {
+			ret.setB(value.b().asByteBuffer());
+		} else if(value.hasSs()) {
+			ret.setSS(value.ss());
+		} else if(value.hasNs()) {
+			ret.setNS(value.ns());
+		} else if(value.hasBs()) {
+			List<ByteBuffer> bs = new ArrayList<>(value.bs().size());
+			for(SdkBytes b : value.bs()) {
+				bs.add(b.asByteBuffer());
+			}
+			ret.setBS(bs);
+		} else if(value.hasM()) {
+			ret.setM(fromV2Item(value.m()));
+		} else if(value.hasL()) {
+			List<AttributeValue> l = new ArrayList<>(value.l().size());
+			for(software.amazon.awssdk.services.dynamodb.model.AttributeValue v : value.l()) {
+				l.add(fromV2(v));
+			}
+			ret.setL(l);
+		} else if(value.nul() != null) {
+			ret.setNULL(value.nul());
+		} else if(value.bool() != null) {
+			ret.setBOOL(value.bool());
+		}
+		return ret;
+	}
+
+	/**
+	 * Translates an item, key, or map of expression attribute values.
+	 *
+	 * @param item
+	 * @return The translated map, or null if the map is null.
+	 */
+	static Map<String, software.amazon.awssdk.services.dynamodb.model.AttributeValue> toV2Item(
+			Map<String, AttributeValue> item) {
+		if(item == null) {
+			return null;
+		}
+		Map<String, software.amazon.awssdk.services.dynamodb.model.AttributeValue> ret
+				= new LinkedHashMap<>(item.size() * 2);
+		for(Map.Entry<String, AttributeValue> entry : item.entrySet()) {
+			ret.put(entry.getKey(), toV2(entry.getValue()));
+		}
+		return ret;
+	}
+
+	static Map<String, AttributeValue> fromV2Item(
+			Map<String, software.amazon.awssdk.services.dynamodb.model.AttributeValue> item) {
+		Map<String, AttributeValue> ret = new LinkedHashMap<>(item.size() * 2);
+		for(Map.Entry<String, software.amazon.awssdk.services.dynamodb.model.AttributeValue> entry
+				: item.entrySet()) {
+			ret.put(entry.getKey(), fromV2(entry.getValue()));
+		}
+		return ret;
+	}
+
+	private static List<Map<String, software.amazon.awssdk.services.dynamodb.model.AttributeValue>> toV2Items(
+			List<Map<String, AttributeValue>> items) {
+		List<Map<String, software.amazon.awssdk.services.dynamodb.model.AttributeValue>> ret
+				= new ArrayList<>(items.size());
+		for(Map<String, AttributeValue> item : items) {
+			ret.add(toV2Item(item));
+		}
+		return ret;
+	}
+
+	private static List<Map<String, AttributeValue>> fromV2Items(
+			List<Map<String, software.amazon.awssdk.services.dynamodb.model.AttributeValue>> items) {
+		List<Map<String, AttributeValue>> ret = new ArrayList<>(items.size());
+		for(Map<String, software.amazon.awssdk.services.dynamodb.model.AttributeValue> item : items) {
+			ret.add(fromV2Item(item));
+		}
+		return ret;
+	}
+
+	private static Capacity fromV2(software.amazon.awssdk.services.dynamodb.model.Capacity capacity) {
+		if(capacity == null) {
+			return null;
+		}
+		return new Capacity().withCapacityUnits(capacity.capacityUnits())
+				.withReadCapacityUnits(capacity.readCapacityUnits())
+				.withWriteCapacityUnits(capacity.writeCapacityUnits());
+	}
+
+	private static Map<String, Capacity> fromV2Capacities(
+			Map<String, software.amazon.awssdk.services.dynamodb.model.Capacity> capacities) {
+		Map<String, Capacity> ret = new LinkedHashMap<>();
+		for(Map.Entry<String, software.amazon.awssdk.services.dynamodb.model.Capacity> entry
+				: capacities.entrySet()) {
+			ret.put(entry.getKey(), fromV2(entry.getValue()));
+		}
+		return ret;
+	}
+
+	private static ConsumedCapacity fromV2(software.amazon.awssdk.services.dynamodb.model.ConsumedCapacity consumed) {
+		if(consumed == null) {
+			return null;
+		}
+		ConsumedCapacity ret = new ConsumedCapacity().withTableName(consumed.tableName())
+				.withCapacityUnits(consumed.capacityUnits()).withReadCapacityUnits(consumed.readCapacityUnits())
+				.withWriteCapacityUnits(consumed.writeCapacityUnits()).withTable(fromV2(consumed.table()));
+		if(consumed.hasLocalSecondaryIndexes()) {
+			ret.setLocalSecondaryIndexes(fromV2Capacities(consumed.localSecondaryIndexes()));
+		}
+		if(consumed.hasGlobalSecondaryIndexes()) {
+			ret.setGlobalSecondaryIndexes(fromV2Capacities(consumed.globalSecondaryIndexes()));
+		}
+		return ret;
+	}
+
+	private static List<ConsumedCapacity> fromV2Capacity(
+			List<software.amazon.awssdk.services.dynamodb.model.ConsumedCapacity> consumed) {
+		List<ConsumedCapacity> ret = new ArrayList<>(consumed.size());
+		for(software.amazon.awssdk.services.dynamodb.model.ConsumedCapacity c : consumed) {
+			ret.add(fromV2(c));
+		}
+		return ret;
+	}
+
+	/**
+	 * Throws if any of the legacy parameters, which aren't translated, were set.
+	 */
+	private static void rejectLegacy(Object... parameters) {
+		for(Object parameter : parameters) {
+			if(parameter != null) {
+				throw new IllegalArgumentException("The legacy conditional parameters are not supported by the async"
+						+ " engine, use expressions instead");
+			}
+		}
+	}
+
+	static software.amazon.awssdk.services.dynamodb.model.GetItemRequest toV2(GetItemRequest request) {
+		return software.amazon.awssdk.services.dynamodb.model.GetItemRequest.builder()
+				.tableName(request.getTableName())
+				.key(toV2Item(request.getKey()))
+				.attributesToGet(request.getAttributesToGet())
+				.consistentRead(request.getConsistentRead())
+				.returnConsumedCapacity(request.getReturnConsumedCapacity())
+				.projectionExpression(request.getProjectionExpression())
+				.expressionAttributeNames(request.getExpressionAttributeNames())
+				.build();
+	}
+
+	static GetItemResult fromV2(GetItemResponse response) {
+		return new GetItemResult()
+				.withItem(response.hasItem() ? fromV2Item(response.item()) : null)
+				.withConsumedCapacity(fromV2(response.consumedCapacity()));
+	}
+
+	static software.amazon.awssdk.services.dynamodb.model.PutItemRequest toV2(PutItemRequest request) {
+		rejectLegacy(request.getExpected(), request.getConditionalOperator());
+		return software.amazon.awssdk.services.dynamodb.model.PutItemRequest.builder()
+				.tableName(request.getTableName())
+				.item(toV2Item(request.getItem()))
+				.conditionExpression(request.getConditionExpression())
+				.expressionAttributeNames(request.getExpressionAttributeNames())
+				.expressionAttributeValues(toV2Item(request.getExpressionAttributeValues()))
+				.returnValues(request.getReturnValues())
+				.returnConsumedCapacity(request.getReturnConsumedCapacity())
+				.returnItemCollectionMetrics(request.getReturnItemCollectionMetrics())
+				.build();
+	}
+
+	static PutItemResult fromV2(PutItemResponse response) {
+		return new PutItemResult()
+				.withAttributes(response.hasAttributes() ? fromV2Item(response.attributes()) : null)
+				.withConsumedCapacity(fromV2(response.consumedCapacity()));
+	}
+
+	static software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest toV2(UpdateItemRequest request) {
+		rejectLegacy(request.getExpected(), request.getConditionalOperator(), request.getAttributeUpdates());
+		return software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest.builder()
+				.tableName(request.getTableName())
+				.key(toV2Item(request.getKey()))
+				.updateExpression(request.getUpdateExpression())
+				.conditionExpression(request.getConditionExpression())
+				.expressionAttributeNames(request.getExpressionAttributeNames())
+				.expressionAttributeValues(toV2Item(request.getExpressionAttributeValues()))
+				.returnValues(request.getReturnValues())
+				.returnConsumedCapacity(request.getReturnConsumedCapacity())
+				.returnItemCollectionMetrics(request.getReturnItemCollectionMetrics())
+				.build();
+	}
+
+	static UpdateItemResult fromV2(UpdateItemResponse response) {
+		return new UpdateItemResult()
+				.withAttributes(response.hasAttributes() ? fromV2Item(response.attributes()) : null)
+				.withConsumedCapacity(fromV2(response.consumedCapacity()));
+	}
+
+	static software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest toV2(DeleteItemRequest request) {
+		rejectLegacy(request.getExpected(), request.getConditionalOperator());
+		return software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest.builder()
+				.tableName(request.getTableName())
+				.key(toV2Item(request.getKey()))
+				.conditionExpression(request.getConditionExpression())
+				.expressionAttributeNames(request.getExpressionAttributeNames())
+				.expressionAttributeValues(toV2Item(request.getExpressionAttributeValues()))
+				.returnValues(request.getReturnValues())
+				.returnConsumedCapacity(request.getReturnConsumedCapacity())
+				.returnItemCollectionMetrics(request.getReturnItemCollectionMetrics())
+				.build();
+	}
+
+	static DeleteItemResult fromV2(DeleteItemResponse response) {
+		return new DeleteItemResult()
+				.withAttributes(response.hasAttributes() ? fromV2Item(response.attributes()) : null)
+				.withConsumedCapacity(fromV2(response.consumedCapacity()));
+	}
+
+	private static software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes toV2(KeysAndAttributes keys) {
+		return software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes.builder()
+				.keys(toV2Items(keys.getKeys()))
+				.attributesToGet(keys.getAttributesToGet())
+				.consistentRead(keys.getConsistentRead())
+				.projectionExpression(keys.getProjectionExpression())
+				.expressionAttributeNames(keys.getExpressionAttributeNames())
+				.build();
+	}
+
+	private static KeysAndAttributes fromV2(software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes keys) {
+		return new KeysAndAttributes()
+				.withKeys(fromV2Items(keys.keys()))
+				.withAttributesToGet(keys.hasAttributesToGet() ? keys.attributesToGet() : null)
+				.withConsistentRead(keys.consistentRead())
+				.withProjectionExpression(keys.projectionExpression())
+				.withExpressionAttributeNames(keys.hasExpressionAttributeNames() ? keys.expressionAttributeNames()
+						: null);
+	}
+
+	static software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest toV2(BatchGetItemRequest request) {
+		Map<String, software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes> items = new LinkedHashMap<>();
+		for(Map.Entry<String, KeysAndAttributes> entry : request.getRequestItems().entrySet()) {
+			items.put(entry.getKey(), toV2(entry.getValue()));
+		}
+		return software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest.builder()
+				.requestItems(items)
+				.returnConsumedCapacity(request.getReturnConsumedCapacity())
+				.build();
+	}
+
+	static BatchGetItemResult fromV2(BatchGetItemResponse response) {
+		Map<String, List<Map<String, AttributeValue>>> responses = new LinkedHashMap<>();
+		for(Map.Entry<String, List<Map<String, software.amazon.awssdk.services.dynamodb.model.AttributeValue>>> entry
+				: response.responses().entrySet()) {
+			responses.put(entry.getKey(), fromV2Items(entry.getValue()));
+		}
+		Map<String, KeysAndAttributes> unprocessed = new LinkedHashMap<>();
+		for(Map.Entry<String, software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes> entry
+				: response.unprocessedKeys().entrySet()) {
+			unprocessed.put(entry.getKey(), fromV2(entry.getValue()));
+		}
+		return new BatchGetItemResult()
+				.withResponses(responses)
+				.withUnprocessedKeys(unprocessed)
+				.withConsumedCapacity(response.hasConsumedCapacity() ? fromV2Capacity(response.consumedCapacity())
+						: null);
+	}
+
+	private static software.amazon.awssdk.services.dynamodb.model.WriteRequest toV2(WriteRequest request) {
+		software.amazon.awssdk.services.dynamodb.model.WriteRequest.Builder builder
+				= software.amazon.awssdk.services.dynamodb.model.WriteRequest.builder();
+		if(request.getPutRequest() != null) {
+			builder.putRequest(software.amazon.awssdk.services.dynamodb.model.PutRequest.builder()
+					.item(toV2Item(request.getPutRequest().getItem())).build());
+		}
+		if(request.getDeleteRequest() != null) {
+			builder.deleteRequest(software.amazon.awssdk.services.dynamodb.model.DeleteRequest.builder()
+					.key(toV2Item(request.getDeleteRequest().getKey())).build());
+		}
+		return builder.build();
+	}
+
+	private static WriteRequest fromV2(software.amazon.awssdk.services.dynamodb.model.WriteRequest request) {
+		WriteRequest ret = new WriteRequest();
+		if(request.putRequest() != null) {
+			ret.setPutRequest(new PutRequest(fromV2Item(request.putRequest().item())));
+		}
+		if(request.deleteRequest() != null) {
+			ret.setDeleteRequest(new DeleteRequest(fromV2Item(request.deleteRequest().key())));
+		}
+		return ret;
+	}
+
+	static software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest toV2(BatchWriteItemRequest request) {
+		Map<String, List<software.amazon.awssdk.services.dynamodb.model.WriteRequest>> items = new LinkedHashMap<>();
+		for(Map.Entry<String, List<WriteRequest>> entry : request.getRequestItems().entrySet()) {
+			List<software.amazon.awssdk.services.dynamodb.model.WriteRequest> requests
+					= new ArrayList<>(entry.getValue().size());
+			for(WriteRequest r : entry.getValue()) {
+				requests.add(toV2(r));
+			}
+			items.put(entry.getKey(), requests);
+		}
+		return software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest.builder()
+				.requestItems(items)
+				.returnConsumedCapacity(request.getReturnConsumedCapacity())
+				.returnItemCollectionMetrics(request.getReturnItemCollectionMetrics())
+				.build();
+	}
+
+	static BatchWriteItemResult fromV2(BatchWriteItemResponse response) {
+		Map<String, List<WriteRequest>> unprocessed = new LinkedHashMap<>();
+		for(Map.Entry<String, List<software.amazon.awssdk.services.dynamodb.model.WriteRequest>> entry
+				: response.unprocessedItems().entrySet()) {
+			List<WriteRequest> requests = new ArrayList<>(entry.getValue().size());
+			for(software.amazon.awssdk.services.dynamodb.model.WriteRequest r : entry.getValue()) {
+				requests.add(fromV2(r));
+			}
+			unprocessed.put(entry.getKey(), requests);
+		}
+		return new BatchWriteItemResult()
+				.withUnprocessedItems(unprocessed)
+				.withConsumedCapacity(response.hasConsumedCapacity() ? fromV2Capacity(response.consumedCapacity())
+						: null);
+	}
+
+	private static software.amazon.awssdk.services.dynamodb.model.TransactWriteItem toV2(TransactWriteItem item) {
+		software.amazon.awssdk.services.dynamodb.model.TransactWriteItem.Builder builder
+				= software.amazon.awssdk.services.dynamodb.model.TransactWriteItem.builder();
+		if(item.getPut() != null) {
+			Put put = item.getPut();
+			builder.put(software.amazon.awssdk.services.dynamodb.model.Put.builder()
+					.tableName(put.getTableName())
+					.item(toV2Item(put.getItem()))
+					.conditionExpression(put.getConditionExpression())
+					.expressionAttributeNames(put.getExpressionAttributeNames())
+					.expressionAttributeValues(toV2Item(put.getExpressionAttributeValues()))
+					.returnValuesOnConditionCheckFailure(put.getReturnValuesOnConditionCheckFailure())
+					.build());
+		}
+		if(item.getDelete() != null) {
+			Delete delete = item.getDelete();
+			builder.delete(software.amazon.awssdk.services.dynamodb.model.Delete.builder()
+					.tableName(delete.getTableName())
+					.key(toV2Item(delete.getKey()))
+					.conditionExpression(delete.getConditionExpression())
+					.expressionAttributeNames(delete.getExpressionAttributeNames())
+					.expressionAttributeValues(toV2Item(delete.getExpressionAttributeValues()))
+					.returnValuesOnConditionCheckFailure(delete.getReturnValuesOnConditionCheckFailure())
+					.build());
+		}
+		if(item.getUpdate() != null) {
+			Update update = item.getUpdate();
+			builder.update(software.amazon.awssdk.services.dynamodb.model.Update.builder()
+					.tableName(update.getTableName())
+					.key(toV2Item(update.getKey()))
+					.updateExpression(update.getUpdateExpression())
+					.conditionExpression(update.getConditionExpression())
+					.expressionAttributeNames(update.getExpressionAttributeNames())
+					.expressionAttributeValues(toV2Item(update.getExpressionAttributeValues()))
+					.returnValuesOnConditionCheckFailure(update.getReturnValuesOnConditionCheckFailure())
+					.build());
+		}
+		if(item.getConditionCheck() != null) {
+			ConditionCheck check = item.getConditionCheck();
+			builder.conditionCheck(software.amazon.awssdk.services.dynamodb.model.ConditionCheck.builder()
+					.tableName(check.getTableName())
+					.key(toV2Item(check.getKey()))
+					.conditionExpression(check.getConditionExpression())
+					.expressionAttributeNames(check.getExpressionAttributeNames())
+					.expressionAttributeValues(toV2Item(check.getExpressionAttributeValues()))
+					.returnValuesOnConditionCheckFailure(check.getReturnValuesOnConditionCheckFailure())
+					.build());
+		}
+		return builder.build();
+	}
+
+	static software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest toV2(
+			TransactWriteItemsRequest request) {
+		List<software.amazon.awssdk.services.dynamodb.model.TransactWriteItem> items
+				= new ArrayList<>(request.getTransactItems().size());
+		for(TransactWriteItem item : request.getTransactItems()) {
+			items.add(toV2(item));
+		}
+		return software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest.builder()
+				.transactItems(items)
+				.returnConsumedCapacity(request.getReturnConsumedCapacity())
+				.returnItemCollectionMetrics(request.getReturnItemCollectionMetrics())
+				.clientRequestToken(request.getClientRequestToken())
+				.build();
+	}
+
+	static TransactWriteItemsResult fromV2(TransactWriteItemsResponse response) {
+		return new TransactWriteItemsResult()
+				.withConsumedCapacity(response.hasConsumedCapacity() ? fromV2Capacity(response.consumedCapacity())
+						: null);
+	}
+
+	/**
+	 * Translates an exception thrown by the version 2 client to the exception the version 1 client would have thrown,
+	 * so that the callers' handling of throttling, failed conditions, and cancelled transactions works with either
+	 * engine. Exceptions which aren't from the SDK are returned as they are.
+	 *
+	 * @param t
+	 * @return
+	 */
+	static Throwable fromV2(Throwable t) {
+		if(t instanceof AwsServiceException) {
+			AwsServiceException ex = (AwsServiceException) t;
+			String code = ex.awsErrorDetails() == null ? null : ex.awsErrorDetails().errorCode();
+			String message = ex.awsErrorDetails() == null ? ex.getMessage() : ex.awsErrorDetails().errorMessage();
+			AmazonServiceException ret;
+			if(ex instanceof software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException) {
+				ret = new ProvisionedThroughputExceededException(message);
+			} else if(ex instanceof software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException) {
+				ret = new ConditionalCheckFailedException(message);
+			} else if(ex instanceof software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException) {
+				ret = new ResourceNotFoundException(message);
+			} else if(ex instanceof software.amazon.awssdk.services.dynamodb.model.RequestLimitExceededException) {
+				ret = new RequestLimitExceededException(message);
+			} else if(ex instanceof software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException) {
+				software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException cancelled
+						= (software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException) ex;
+				List<CancellationReason> reasons = new ArrayList<>();
+				for(software.amazon.awssdk.services.dynamodb.model.CancellationReason reason
+						: cancelled.cancellationReasons()) {
+					reasons.add(new CancellationReason().withCode(reason.code()).withMessage(reason.message())
+							.withItem(reason.hasItem() ? fromV2Item(reason.item()) : null));
+				}
+				ret = new TransactionCanceledException(message).withCancellationReasons(reasons);
+			} else {
+				ret = new AmazonDynamoDBException(message);
+			}
+			ret.setErrorCode(code);
+			ret.setStatusCode(ex.statusCode());
+			ret.setRequestId(ex.requestId());
+			ret.setServiceName("AmazonDynamoDBv2");
+			ret.setErrorType(ex.statusCode() >= 500 ? AmazonServiceException.ErrorType.Service
+					: AmazonServiceException.ErrorType.Client);
+			ret.initCause(ex);
+			return ret;
+		}
+		if(t instanceof SdkException) {
+			return new SdkClientException(t.getMessage(), t);
+		}
+		return t;
+	}
+
+	/**
+	 * Returns a future which completes with the translated result of the given future, or fails with the translated
+	 * exception.
+	 *
+	 * @param <T> The version 2 response
+	 * @param <R> The version 1 result
+	 * @param future
+	 * @param translator
+	 * @return
+	 */
+	static <T, R> CompletableFuture<R> fromV2(CompletableFuture<T> future,
+			Function<T, R> translator) {
+		CompletableFuture<R> ret = new CompletableFuture<>();
+		future.whenComplete((response, ex) -> {
+			if(ex != null) {
+				ret.completeExceptionally(fromV2(AsyncClient.unwrap(ex)));
+				return;
+			}
+			try {
+				ret.complete(translator.apply(response));
+			} catch (RuntimeException e) {
+				ret.completeExceptionally(e);
+			}
+		});
+		return ret;
+	}
+
+}
@@ -0,0 +1,357 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DescribeStreamRequest;
+import com.amazonaws.services.dynamodbv2.model.ExpiredIteratorException;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
+import com.amazonaws.services.dynamodbv2.model.GetShardIteratorRequest;
+import com.amazonaws.services.dynamodbv2.model.OperationType;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.Shard;
+import com.amazonaws.services.dynamodbv2.model.ShardIteratorType;
+import com.amazonaws.services.dynamodbv2.model.StreamDescription;
+import com.amazonaws.services.dynamodbv2.model.TrimmedDataAccessException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tails the DynamoDB Stream of a table, and reports every change to a listener, so that other servers' writes to the
+ * table can be applied to the local cache. Each shard of the stream is read by its own background thread, and the
+ * stream is periodically described to find new shards, which DynamoDB creates as the table's partitions split, and
+ * roughly every four hours regardless.
+ * <p>
+ * A child shard is not read until its parent has been read to the end, so that the changes to any one key are always
+ * reported in the order they were made. Shards which are already open when the reader starts are read from the
+ * latest record, since anything older is already reflected in the table, but shards found later are read from the
+ * beginning, so that nothing written in between is missed.
+ * <p>
+ * {@link #whenReading} tells when every change made from then on will be reported. If changes may have been missed,
+ * because records were trimmed from the stream before they were read, or a shard couldn't be read for
+ * {@link #PROLONGED_FAILURE} milliseconds, the missed callback is run.
+ * <p>
+ * DynamoDB allows no more than about five GetRecords calls per second per shard, across all readers, so the poll
+ * interval should be increased as the number of servers tailing the same stream grows.
+ */
+class StreamInvalidator {
+
+	private static final Logger LOGGER = Logger.getLogger(StreamInvalidator.class.getName());
+	private static final long DISCOVERY_INTERVAL = 10000;
+	/**
+	 * How long a shard may fail to be read before it is reported as missing changes, in milliseconds.
+	 */
+	static final long PROLONGED_FAILURE = 30000;
+	private static final ThreadFactory THREADS = DynamoDBThreads.factory("MSDynamoDB-stream");
+
+	/**
+	 * Receives the changes read from the stream.
+	 */
+	interface Listener {
+
+		/**
+		 * Called for each change to the table.
+		 *
+		 * @param key The full dotted key of the item that changed
+		 * @param newImage The item as it is after the change, or null if the item was removed.
+		 */
+		void changed(String key, Map<String, AttributeValue> newImage);
+	}
+
+	private final AmazonDynamoDBStreams streams;
+	private final String streamArn;
+	private final long pollInterval;
+	private final Listener listener;
+	private final Runnable missed;
+
+	/**
+	 * The shards that are being read, or have been read to the end, keyed by shard id.
+	 */
+	private final Set<String> knownShards = ConcurrentHashMap.newKeySet();
+	/**
+	 * The shards that have been read to the end, so that their children may be started.
+	 */
+	private final Set<String> finishedShards = ConcurrentHashMap.newKeySet();
+	private final List<Thread> threads = new ArrayList<>();
+	private volatile boolean running = false;
+	private boolean firstDiscovery = true;
+	/**
+	 * The shards which were open when the reader started, and which don't yet have an iterator, and the shards which
+	 * have failed to be read for a prolonged time. These, and the following fields, are guarded by this.
+	 */
+	private final Set<String> unpositioned = new HashSet<>();
+	private final Set<String> failing = new HashSet<>();
+	private boolean discovered = false;
+	/**
+	 * Completed while every change is being reported, and replaced when that stops being the case.
+	 */
+	private CompletableFuture<Void> reading = new CompletableFuture<>();
+
+	/**
+	 * @param streams The streams client
+	 * @param streamArn The ARN of the table's stream, which must include the new image.
+	 * @param pollInterval How long to wait, in milliseconds, before polling a shard again when there were no new
+	 * records.
+	 * @param listener
+	 * @param missed Run, from a background thread, whenever some changes may not have been reported.
+	 */
+	StreamInvalidator(AmazonDynamoDBStreams streams, String streamArn, long pollInterval, Listener listener,
+			Runnable missed) {
+		this.streams = streams;
+		this.streamArn = streamArn;
+		this.pollInterval = pollInterval;
+		this.listener = listener;
+		this.missed = missed;
+	}
+
+	/**
+	 * Returns a future which completes once every shard which was open when the reader started has been positioned at
+	 * its latest record, and no shard is failing to be read, so that every change made from then on is reported. If
+	 * that stops being the case later on, the missed callback is run. The future fails if the reader is stopped.
+	 *
+	 * @return
+	 */
+	synchronized CompletableFuture<Void> whenReading() {
+		return reading;
+	}
+
+	/**
+	 * Completes or replaces {@link #reading}, to match the state of the shards. Must be called while synchronized.
+	 */
+	private void updateReading() {
+		if(!running) {
+			return;
+		}
+		if(discovered && unpositioned.isEmpty() && failing.isEmpty()) {
+			reading.complete(null);
+		} else if(reading.isDone()) {
+			reading = new CompletableFuture<>();
+		}
+	}
+
+	/**
+	 * Starts reading the stream in the background.
+	 */
+	synchronized void start() {
+		if(running) {
+			return;
+		}
+		running = true;
+		Thread discovery = THREADS.newThread(() -> {
+			while(running) {
+				try {
+					discover();
+				} catch (AmazonClientException ex) {
+					LOGGER.log(Level.WARNING, "Could not describe the stream " + streamArn, ex);
+				}
+				try {
+					Thread.sleep(DISCOVERY_INTERVAL);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		});
+		startThread(discovery);
+	}
+
+	/**
+	 * Stops reading the stream. Records that are currently being processed may still be reported after this returns.
+	 */
+	synchronized void stop() {
+		running = false;
+		if(reading.isDone()) {
+			reading = new CompletableFuture<>();
+		}
+		reading.completeExceptionally(new IllegalStateException("The stream reader has been stopped."));
+		for(Thread t : threads) {
+			t.interrupt();
+		}
+		threads.clear();
+	}
+
+	private synchronized void startThread(Thread t) {
+		if(!running) {
+			return;
+		}
+		threads.removeIf(thread -> !thread.isAlive());
+		threads.add(t);
+		t.start();
+	}
+
+	/**
+	 * Describes the stream, and starts a reader for each shard that hasn't been seen yet, and whose parent, if any,
+	 * has been read to the end.
+	 */
+	private void discover() {
+		List<Shard> shards = new ArrayList<>();
+		String lastShardId = null;
+		do {
+			StreamDescription description = streams.describeStream(new DescribeStreamRequest()
+					.withStreamArn(streamArn).withExclusiveStartShardId(lastShardId)).getStreamDescription();
+			shards.addAll(description.getShards());
+			lastShardId = description.getLastEvaluatedShardId();
+		} while(lastShardId != null);
+		Set<String> present = new HashSet<>();
+		for(Shard shard : shards) {
+			present.add(shard.getShardId());
+		}
+		for(Shard shard : shards) {
+			String shardId = shard.getShardId();
+			if(knownShards.contains(shardId)) {
+				continue;
+			}
+			boolean closed = shard.getSequenceNumberRange().getEndingSequenceNumber() != null;
+			if(firstDiscovery && closed) {
+				// History from before we started, which is already reflected in the table
+				knownShards.add(shardId);
+				finishedShards.add(shardId);
+				continue;
+			}
+			String parent = shard.getParentShardId();
+			if(parent != null && present.contains(parent) && !finishedShards.contains(parent)) {
+				// Wait for the parent to finish, we'll pick this up in a later pass
+				continue;
+			}
+			knownShards.add(shardId);
+			ShardIteratorType start = firstDiscovery ? ShardIteratorType.LATEST : ShardIteratorType.TRIM_HORIZON;
+			if(firstDiscovery) {
+				synchronized(this) {
+					unpositioned.add(shardId);
+				}
+			}
+			startThread(THREADS.newThread(() -> readShard(shardId, start)));
+		}
+		if(firstDiscovery) {
+			synchronized(this) {
+				discovered = true;
+				updateReading();
+			}
+		}
+		firstDiscovery = false;
+	}
+
+	/**
+	 * Reads the given shard until it ends, or until we are stopped.
+	 *
+	 * @param shardId
+	 * @param start Where to start reading the shard from
+	 */
+	private void readShard(String shardId, ShardIteratorType start) {
+		String iterator = null;
+		String lastSequenceNumber = null;
+		boolean positioned = false;
+		long failingSince = 0;
+		try {
+			while(running) {
+				try {
+					if(iterator == null) {
+						GetShardIteratorRequest request = new GetShardIteratorRequest().withStreamArn(streamArn)
+								.withShardId(shardId);
+						if(lastSequenceNumber != null) {
+							request.withShardIteratorType(ShardIteratorType.AFTER_SEQUENCE_NUMBER)
+									.withSequenceNumber(lastSequenceNumber);
+						} else {
+							request.withShardIteratorType(start);
+						}
+						iterator = streams.getShardIterator(request).getShardIterator();
+						if(!positioned) {
+							positioned = true;
+							synchronized(this) {
+								unpositioned.remove(shardId);
+								updateReading();
+							}
+						}
+					}
+					GetRecordsResult result = streams.getRecords(new GetRecordsRequest().withShardIterator(iterator));
+					if(failingSince != 0) {
+						failingSince = 0;
+						synchronized(this) {
+							if(failing.remove(shardId)) {
+								updateReading();
+							}
+						}
+					}
+					for(Record record : result.getRecords()) {
+						apply(record);
+						lastSequenceNumber = record.getDynamodb().getSequenceNumber();
+					}
+					iterator = result.getNextShardIterator();
+					if(iterator == null) {
+						// The shard is closed, and we've read all of it
+						finishedShards.add(shardId);
+						return;
+					}
+					if(result.getRecords().isEmpty()) {
+						Thread.sleep(pollInterval);
+					}
+				} catch (ExpiredIteratorException ex) {
+					iterator = null;
+				} catch (TrimmedDataAccessException ex) {
+					// We fell so far behind that the records were removed from the stream. Anything we've missed may
+					// still be in the cache, but all we can do is start from the oldest records that are left.
+					LOGGER.log(Level.WARNING, "Records in shard " + shardId + " of " + streamArn + " were trimmed"
+							+ " before they could be read, so some changes were missed.");
+					missed.run();
+					lastSequenceNumber = null;
+					start = ShardIteratorType.TRIM_HORIZON;
+					iterator = null;
+				} catch (AmazonClientException ex) {
+					LOGGER.log(Level.WARNING, "Could not read shard " + shardId + " of " + streamArn, ex);
+					iterator = null;
+					long now = System.currentTimeMillis();
+					if(failingSince == 0) {
+						failingSince = now;
+					} else if(now - failingSince >= PROLONGED_FAILURE) {
+						boolean prolonged;
+						synchronized(this) {
+							prolonged = failing.add(shardId);
+							updateReading();
+						}
+						if(prolonged) {
+							missed.run();
+						}
+					}
+					try {
+						Thread.sleep(Math.max(pollInterval, 1000));
+					} catch (InterruptedException e) {
+						return;
+					}
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		} finally {
+			synchronized(this) {
+				// Whether it was read to the end, or we were stopped, it no longer holds anything up
+				unpositioned.remove(shardId);
+				failing.remove(shardId);
+				updateReading();
+			}
+		}
+	}
+
+	private void apply(Record record) {
+		Map<String, AttributeValue> keys = record.getDynamodb().getKeys();
+		String key = keys.get(KeyLayout.KEY_ATTRIBUTE).getS();
+		if(OperationType.REMOVE.toString().equals(record.getEventName())) {
+			listener.changed(key, null);
+		} else {
+			listener.changed(key, record.getDynamodb().getNewImage());
+		}
+	}
+
+}
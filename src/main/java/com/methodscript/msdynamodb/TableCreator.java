@@ -29,6 +29,8 @@ public class TableCreator extends AbstractCommandLineTool {
 	private static final String READ_CAPACITY_UNITS = "read-capacity-units";
 	private static final String WRITE_CAPACITY_UNITS = "write-capacity-units";
 	private static final String BILLING_MODE = "billing-mode";
+	private static final String PARTITION_DEPTH = "partition-depth";
+	private static final String ENABLE_STREAM = "enable-stream";
 
 	@Override
 	public ArgumentParser getArgumentParser() {
@@ -94,7 +96,24 @@ public class TableCreator extends AbstractCommandLineTool {
 						.setUsageName("billing mode")
 						.setRequired()
 						.setName(BILLING_MODE)
-						.setArgType(BuilderTypeNonFlag.STRING));
+						.setArgType(BuilderTypeNonFlag.STRING))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The number of key segments that make up the partition key. If 0, the default,"
+								+ " the whole key is the partition key, and looking up all the keys under a namespace"
+								+ " requires scanning the entire table. Otherwise, the first N segments of the key are"
+								+ " the partition key, and the full key is the sort key, which allows the keys under a"
+								+ " namespace that is at least N segments deep to be looked up with a query instead."
+								+ " Routes using this table must set the partitionDepth parameter to the same value.")
+						.setUsageName("partition depth")
+						.setOptional()
+						.setName(PARTITION_DEPTH)
+						.setArgType(BuilderTypeNonFlag.NUMBER)
+						.setDefaultVal("0"))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("If set, a DynamoDB Stream is enabled on the table, which routes can use with"
+								+ " the streamInvalidation parameter to see each other's writes in their local caches.")
+						.asFlag()
+						.setName(ENABLE_STREAM));
 	}
 
 	@Override
@@ -122,6 +141,8 @@ public class TableCreator extends AbstractCommandLineTool {
 		BillingMode billingMode = BillingMode.fromValue(parsedArgs.getStringArgument(BILLING_MODE));
 		long readCapacityUnits = parsedArgs.getNumberArgument(READ_CAPACITY_UNITS).longValue();
 		long writeCapacityUnits = parsedArgs.getNumberArgument(WRITE_CAPACITY_UNITS).longValue();
+		int partitionDepth = parsedArgs.getNumberArgument(PARTITION_DEPTH).intValue();
+		boolean enableStream = parsedArgs.isFlagSet(ENABLE_STREAM);
 		System.out.println("Using the following settings:");
 		System.out.println("Host: " + host);
 		System.out.println("Port: " + port);
@@ -135,11 +156,14 @@ public class TableCreator extends AbstractCommandLineTool {
 		System.out.println("Read Capacity Units: " + readCapacityUnits);
 		System.out.println("Write Capacity Units: " + writeCapacityUnits);
 		System.out.println("Billing Mode: " + billingMode);
+		System.out.println("Partition Depth: " + partitionDepth);
+		System.out.println("Stream Enabled: " + enableStream);
 		char c = prompt_char.promptChar("If this looks correct, type Y to continue: ");
 		if(c == 'y' || c == 'Y') {
 			System.out.println("Creating table...");
 			AmazonDynamoDB client = DynamoDBDataSource.buildClient("http", host, port, r, sAccessKeyId, sAccessKeySecret);
-			DynamoDBDataSource.createTable(sTableName, client, readCapacityUnits, writeCapacityUnits, billingMode);
+			DynamoDBDataSource.createTable(sTableName, client, readCapacityUnits, writeCapacityUnits, billingMode,
+					partitionDepth, enableStream);
 			System.out.println("Done.");
 			System.exit(0);
 		} else {
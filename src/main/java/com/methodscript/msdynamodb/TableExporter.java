@@ -0,0 +1,161 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.laytonsmith.PureUtilities.ArgumentParser;
+import com.laytonsmith.PureUtilities.ArgumentParser.ArgumentBuilder;
+import com.laytonsmith.PureUtilities.ArgumentParser.ArgumentBuilder.BuilderTypeNonFlag;
+import com.laytonsmith.core.AbstractCommandLineTool;
+import com.laytonsmith.core.tool;
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * Cmdline tool to write all the items in a table to a file, which can be read back with {@link TableImporter}. The
+ * table is scanned in parallel segments, and the items are streamed to the file as they arrive, so the memory used
+ * doesn't depend on the size of the table.
+ */
+@tool("x-msdynamodb-exporttable")
+public class TableExporter extends AbstractCommandLineTool {
+
+	private static final String REGION = "region";
+	private static final String TABLE_NAME = "table-name";
+	private static final String FILE = "file";
+	private static final String SEGMENTS = "segments";
+	private static final String CAPACITY_SHARE = "capacity-share";
+	private static final String ACCESS_KEY_ID = "access-key-id";
+	private static final String ACCESS_KEY_SECRET = "access-key-secret";
+
+	private static final long PROGRESS_INTERVAL = 100000;
+
+	@Override
+	public ArgumentParser getArgumentParser() {
+		return ArgumentParser.GetParser()
+				.addDescription("Writes all the items in a table to a gzip compressed file, which can be imported into"
+						+ " the same or another table with " + TableImporter.class.getAnnotation(tool.class).value()
+						+ ". The file does not depend on the table's key layout. Writes made to the table while the"
+						+ " export is running may or may not be included. The file is written under a temporary name,"
+						+ " and only renamed once the export is complete.")
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The region where the table is. As a special argument, if this argument is of"
+								+ " the form \"<host>:<port>\", then the table in the provided url is used instead.")
+						.setUsageName("region")
+						.setRequired()
+						.setName(REGION)
+						.setArgType(BuilderTypeNonFlag.STRING))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The name of the table to export.")
+						.setUsageName("table name")
+						.setRequired()
+						.setName(TABLE_NAME)
+						.setArgType(BuilderTypeNonFlag.STRING))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The file to write to. If it exists, it is replaced.")
+						.setUsageName("file")
+						.setRequired()
+						.setName(FILE)
+						.setArgType(BuilderTypeNonFlag.STRING))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The number of segments the table is split into, which are scanned in"
+								+ " parallel.")
+						.setUsageName("segments")
+						.setOptional()
+						.setName(SEGMENTS)
+						.setArgType(BuilderTypeNonFlag.NUMBER)
+						.setDefaultVal("8"))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("If set, the percentage of the table's provisioned read capacity the export may"
+								+ " use, so that it can run alongside a live server. Has no effect on on-demand tables.")
+						.setUsageName("capacity share")
+						.setOptional()
+						.setName(CAPACITY_SHARE)
+						.setArgType(BuilderTypeNonFlag.NUMBER)
+						.setDefaultVal("0"))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The access key id. This is optional, and if left off, it will use the"
+								+ " credentials saved with the system. To set these up, see "
+								+ "https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/setup-credentials.html.")
+						.setUsageName("access key id")
+						.setOptional()
+						.setName(ACCESS_KEY_ID)
+						.setArgType(BuilderTypeNonFlag.STRING)
+						.setDefaultVal(null))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The access key secret. This is required if " + ACCESS_KEY_ID + " was provided,"
+								+ " but not required otherwise.")
+						.setUsageName("access key secret")
+						.setOptional()
+						.setName(ACCESS_KEY_SECRET)
+						.setArgType(BuilderTypeNonFlag.STRING)
+						.setDefaultVal(null));
+	}
+
+	@Override
+	public void execute(ArgumentParser.ArgumentParserResults parsedArgs) throws Exception {
+		String sRegion = parsedArgs.getStringArgument(REGION);
+		String tableName = parsedArgs.getStringArgument(TABLE_NAME);
+		Path file = Paths.get(parsedArgs.getStringArgument(FILE)).toAbsolutePath();
+		String sAccessKeyId = parsedArgs.getStringArgument(ACCESS_KEY_ID);
+		String sAccessKeySecret = parsedArgs.getStringArgument(ACCESS_KEY_SECRET);
+		if(sAccessKeyId == null && sAccessKeySecret != null || sAccessKeyId != null && sAccessKeySecret == null) {
+			System.err.println(ACCESS_KEY_ID + " and " + ACCESS_KEY_SECRET + " must either both be provided, or"
+					+ " neither");
+			System.exit(1);
+		}
+		String host;
+		int port = -1;
+		Regions r;
+		if(sRegion.contains(":")) {
+			host = sRegion.split(":")[0];
+			port = Integer.parseInt(sRegion.split(":")[1]);
+			r = Regions.US_EAST_1;
+		} else {
+			host = null;
+			r = Regions.fromName(sRegion);
+		}
+		int segments = Math.max(1, parsedArgs.getNumberArgument(SEGMENTS).intValue());
+		long capacityShare = Math.min(100, Math.max(0, parsedArgs.getNumberArgument(CAPACITY_SHARE).longValue()));
+		System.out.println("Using the following settings:");
+		System.out.println("Host: " + host);
+		System.out.println("Port: " + port);
+		System.out.println("Region: " + r);
+		System.out.println("Table Name: " + tableName);
+		System.out.println("File: " + file);
+		System.out.println("Segments: " + segments);
+		System.out.println("Capacity Share: " + (capacityShare == 0 ? "unlimited" : capacityShare + "%"));
+		AmazonDynamoDB client = DynamoDBDataSource.buildClient("http", host, port, r, sAccessKeyId, sAccessKeySecret);
+		CapacityLimiter limiter = capacityShare == 0 ? CapacityLimiter.unlimited()
+				: CapacityLimiter.forTable(client.describeTable(tableName).getTable(), capacityShare);
+		Path partial = file.resolveSibling(file.getFileName() + ".part");
+		System.out.println("Exporting items...");
+		long count = 0;
+		long start = System.currentTimeMillis();
+		try(BufferedWriter out = ItemFile.openWriter(partial)) {
+			for(Map<String, AttributeValue> item : new ParallelScan(client, new ScanRequest(tableName), segments,
+					limiter.reads)) {
+				out.write(ItemFile.toLine(item));
+				out.newLine();
+				count++;
+				if(count % PROGRESS_INTERVAL == 0) {
+					System.out.println("Exported " + count + " items");
+				}
+			}
+		}
+		Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		System.out.println("Done. Exported " + count + " items in " + (System.currentTimeMillis() - start) / 1000
+				+ " seconds.");
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,329 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.laytonsmith.PureUtilities.ArgumentParser;
+import com.laytonsmith.PureUtilities.ArgumentParser.ArgumentBuilder;
+import com.laytonsmith.PureUtilities.ArgumentParser.ArgumentBuilder.BuilderTypeNonFlag;
+import com.laytonsmith.core.AbstractCommandLineTool;
+import com.laytonsmith.core.functions.Cmdline.prompt_char;
+import com.laytonsmith.core.tool;
+import com.laytonsmith.persistence.DataSourceException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Cmdline tool to write all the items in a file written by {@link TableExporter} into a table. Batches are written in
+ * parallel, and the number of items that have definitely been written is saved in a checkpoint file as the import
+ * goes, so that if it is stopped, it can be resumed from where it left off.
+ */
+@tool("x-msdynamodb-importtable")
+public class TableImporter extends AbstractCommandLineTool {
+
+	private static final String REGION = "region";
+	private static final String TABLE_NAME = "table-name";
+	private static final String FILE = "file";
+	private static final String PARTITION_DEPTH = "partition-depth";
+	private static final String WRITERS = "writers";
+	private static final String CAPACITY_SHARE = "capacity-share";
+	private static final String CHECKPOINT = "checkpoint";
+	private static final String ACCESS_KEY_ID = "access-key-id";
+	private static final String ACCESS_KEY_SECRET = "access-key-secret";
+
+	/**
+	 * The number of items handed to the {@link BatchWriter} at once, which sends them in parallel chunks.
+	 */
+	private static final int BATCH_SIZE = BatchWriter.BATCH_SIZE * 8;
+	private static final long PROGRESS_INTERVAL = 100000;
+	/**
+	 * How often the checkpoint is saved, in milliseconds.
+	 */
+	private static final long CHECKPOINT_INTERVAL = 5000;
+
+	@Override
+	public ArgumentParser getArgumentParser() {
+		return ArgumentParser.GetParser()
+				.addDescription("Writes all the items in a file written by "
+						+ TableExporter.class.getAnnotation(tool.class).value() + " into a table. The table must"
+						+ " already exist, and may use either key layout. Items already in the table with the same keys"
+						+ " are overwritten, and other items are left alone. As the import goes, the number of items"
+						+ " written is saved to a checkpoint file, and if the import is stopped, running it again with"
+						+ " the same checkpoint resumes it. The checkpoint is deleted once the import is complete.")
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The region where the table is. As a special argument, if this argument is of"
+								+ " the form \"<host>:<port>\", then the table in the provided url is used instead.")
+						.setUsageName("region")
+						.setRequired()
+						.setName(REGION)
+						.setArgType(BuilderTypeNonFlag.STRING))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The name of the table to import into.")
+						.setUsageName("table name")
+						.setRequired()
+						.setName(TABLE_NAME)
+						.setArgType(BuilderTypeNonFlag.STRING))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The file to read from.")
+						.setUsageName("file")
+						.setRequired()
+						.setName(FILE)
+						.setArgType(BuilderTypeNonFlag.STRING))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The partition depth that the table was created with. 0, the default, is the"
+								+ " flat layout.")
+						.setUsageName("partition depth")
+						.setOptional()
+						.setName(PARTITION_DEPTH)
+						.setArgType(BuilderTypeNonFlag.NUMBER)
+						.setDefaultVal("0"))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The number of batches of " + BATCH_SIZE + " items which may be in flight at"
+								+ " once.")
+						.setUsageName("writers")
+						.setOptional()
+						.setName(WRITERS)
+						.setArgType(BuilderTypeNonFlag.NUMBER)
+						.setDefaultVal("8"))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("If set, the percentage of the table's provisioned write capacity the import may"
+								+ " use, so that it can run alongside a live server. Has no effect on on-demand tables.")
+						.setUsageName("capacity share")
+						.setOptional()
+						.setName(CAPACITY_SHARE)
+						.setArgType(BuilderTypeNonFlag.NUMBER)
+						.setDefaultVal("0"))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The checkpoint file. Defaults to the file's name with .checkpoint added.")
+						.setUsageName("checkpoint")
+						.setOptional()
+						.setName(CHECKPOINT)
+						.setArgType(BuilderTypeNonFlag.STRING)
+						.setDefaultVal(null))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The access key id. This is optional, and if left off, it will use the"
+								+ " credentials saved with the system. To set these up, see "
+								+ "https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/setup-credentials.html.")
+						.setUsageName("access key id")
+						.setOptional()
+						.setName(ACCESS_KEY_ID)
+						.setArgType(BuilderTypeNonFlag.STRING)
+						.setDefaultVal(null))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The access key secret. This is required if " + ACCESS_KEY_ID + " was provided,"
+								+ " but not required otherwise.")
+						.setUsageName("access key secret")
+						.setOptional()
+						.setName(ACCESS_KEY_SECRET)
+						.setArgType(BuilderTypeNonFlag.STRING)
+						.setDefaultVal(null));
+	}
+
+	@Override
+	public void execute(ArgumentParser.ArgumentParserResults parsedArgs) throws Exception {
+		String sRegion = parsedArgs.getStringArgument(REGION);
+		String tableName = parsedArgs.getStringArgument(TABLE_NAME);
+		Path file = Paths.get(parsedArgs.getStringArgument(FILE)).toAbsolutePath();
+		String sCheckpoint = parsedArgs.getStringArgument(CHECKPOINT);
+		Path checkpointFile = sCheckpoint == null ? file.resolveSibling(file.getFileName() + ".checkpoint")
+				: Paths.get(sCheckpoint).toAbsolutePath();
+		String sAccessKeyId = parsedArgs.getStringArgument(ACCESS_KEY_ID);
+		String sAccessKeySecret = parsedArgs.getStringArgument(ACCESS_KEY_SECRET);
+		if(sAccessKeyId == null && sAccessKeySecret != null || sAccessKeyId != null && sAccessKeySecret == null) {
+			System.err.println(ACCESS_KEY_ID + " and " + ACCESS_KEY_SECRET + " must either both be provided, or"
+					+ " neither");
+			System.exit(1);
+		}
+		String host;
+		int port = -1;
+		Regions r;
+		if(sRegion.contains(":")) {
+			host = sRegion.split(":")[0];
+			port = Integer.parseInt(sRegion.split(":")[1]);
+			r = Regions.US_EAST_1;
+		} else {
+			host = null;
+			r = Regions.fromName(sRegion);
+		}
+		KeyLayout layout = KeyLayout.forDepth(parsedArgs.getNumberArgument(PARTITION_DEPTH).intValue());
+		int writers = Math.max(1, parsedArgs.getNumberArgument(WRITERS).intValue());
+		long capacityShare = Math.min(100, Math.max(0, parsedArgs.getNumberArgument(CAPACITY_SHARE).longValue()));
+		long skip = readCheckpoint(checkpointFile);
+		System.out.println("Using the following settings:");
+		System.out.println("Host: " + host);
+		System.out.println("Port: " + port);
+		System.out.println("Region: " + r);
+		System.out.println("Table Name: " + tableName);
+		System.out.println("Partition Depth: " + layout.getPartitionDepth());
+		System.out.println("File: " + file);
+		System.out.println("Writers: " + writers);
+		System.out.println("Capacity Share: " + (capacityShare == 0 ? "unlimited" : capacityShare + "%"));
+		System.out.println("Checkpoint: " + checkpointFile + (skip > 0 ? " (resuming after " + skip + " items)" : ""));
+		char c = prompt_char.promptChar("If this looks correct, type Y to continue: ");
+		if(c != 'y' && c != 'Y') {
+			System.out.println("Aborting operation.");
+			System.exit(1);
+		}
+		AmazonDynamoDB client = DynamoDBDataSource.buildClient("http", host, port, r, sAccessKeyId, sAccessKeySecret);
+		DynamoDBDataSource.validateTableName(tableName);
+		TableDescription description = client.describeTable(tableName).getTable();
+		layout.verify(tableName, description.getKeySchema());
+		CapacityLimiter limiter = capacityShare == 0 ? CapacityLimiter.unlimited()
+				: CapacityLimiter.forTable(description, capacityShare);
+		BatchWriter writer = new BatchWriter(client, tableName, limiter.writes);
+		Progress progress = new Progress(skip);
+		Semaphore inFlight = new Semaphore(writers);
+		System.out.println("Importing items...");
+		long start = System.currentTimeMillis();
+		long lastSaved = start;
+		long line = 0;
+		try(BufferedReader in = ItemFile.openReader(file)) {
+			List<WriteRequest> batch = new ArrayList<>(BATCH_SIZE);
+			String l;
+			while((l = in.readLine()) != null) {
+				line++;
+				if(line <= skip) {
+					continue;
+				}
+				try {
+					batch.add(new WriteRequest(new PutRequest(layout.convert(ItemFile.fromLine(l)))));
+				} catch (DataSourceException ex) {
+					throw new DataSourceException("Line " + line + " of " + file + " is malformed: "
+							+ ex.getMessage(), ex);
+				}
+				if(batch.size() == BATCH_SIZE) {
+					progress.check();
+					inFlight.acquire();
+					progress.send(writer, batch, line).whenComplete((v, ex) -> inFlight.release());
+					batch = new ArrayList<>(BATCH_SIZE);
+					if(line % PROGRESS_INTERVAL < BATCH_SIZE) {
+						System.out.println("Imported " + progress.getWritten() + " items");
+					}
+					if(System.currentTimeMillis() - lastSaved > CHECKPOINT_INTERVAL) {
+						writeCheckpoint(checkpointFile, progress.getWritten());
+						lastSaved = System.currentTimeMillis();
+					}
+				}
+			}
+			if(!batch.isEmpty()) {
+				progress.check();
+				inFlight.acquire();
+				progress.send(writer, batch, line).whenComplete((v, ex) -> inFlight.release());
+			}
+			// Wait for the rest of the batches
+			inFlight.acquire(writers);
+			progress.check();
+		} catch (DataSourceException | RuntimeException ex) {
+			writeCheckpoint(checkpointFile, progress.getWritten());
+			System.err.println("The import failed: " + ex.getMessage());
+			System.err.println(progress.getWritten() + " items were written. Run the import again to resume it.");
+			System.exit(1);
+		}
+		Files.deleteIfExists(checkpointFile);
+		System.out.println("Done. Imported " + (line - skip) + " items in " + (System.currentTimeMillis() - start)
+				/ 1000 + " seconds.");
+		System.exit(0);
+	}
+
+	private static long readCheckpoint(Path checkpointFile) throws IOException {
+		if(!Files.exists(checkpointFile)) {
+			return 0;
+		}
+		return Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim());
+	}
+
+	private static void writeCheckpoint(Path checkpointFile, long written) throws IOException {
+		Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+		Files.write(temp, Long.toString(written).getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Tracks the batches in flight. Batches can finish in any order, so the checkpoint is the end of the last batch
+	 * which, along with every batch before it, has been written.
+	 */
+	private static final class Progress {
+
+		private static final class Batch {
+
+			private final long end;
+			private boolean done = false;
+
+			private Batch(long end) {
+				this.end = end;
+			}
+		}
+
+		/**
+		 * The batches in flight, in the order they were read. Guarded by this.
+		 */
+		private final Deque<Batch> pending = new ArrayDeque<>();
+		private long written;
+		private Throwable failure = null;
+
+		private Progress(long written) {
+			this.written = written;
+		}
+
+		CompletableFuture<Void> send(BatchWriter writer, List<WriteRequest> requests, long end) {
+			Batch batch = new Batch(end);
+			synchronized(this) {
+				pending.addLast(batch);
+			}
+			return writer.writeAsync(requests).whenComplete((v, ex) -> completed(batch, ex));
+		}
+
+		private synchronized void completed(Batch batch, Throwable ex) {
+			if(ex != null) {
+				if(failure == null) {
+					failure = ex;
+				}
+				return;
+			}
+			batch.done = true;
+			while(!pending.isEmpty() && pending.peekFirst().done) {
+				written = pending.removeFirst().end;
+			}
+		}
+
+		/**
+		 * The number of items in the file which have definitely been written.
+		 */
+		synchronized long getWritten() {
+			return written;
+		}
+
+		/**
+		 * Throws the exception a batch failed with, if any did.
+		 */
+		synchronized void check() throws DataSourceException {
+			if(failure == null) {
+				return;
+			}
+			Throwable cause = AsyncClient.unwrap(failure);
+			if(cause instanceof DataSourceException) {
+				throw (DataSourceException) cause;
+			}
+			throw new DataSourceException("A batch could not be written: " + cause.getMessage(), cause);
+		}
+	}
+
+}
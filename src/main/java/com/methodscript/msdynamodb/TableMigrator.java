@@ -0,0 +1,176 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.laytonsmith.PureUtilities.ArgumentParser;
+import com.laytonsmith.PureUtilities.ArgumentParser.ArgumentBuilder;
+import com.laytonsmith.PureUtilities.ArgumentParser.ArgumentBuilder.BuilderTypeNonFlag;
+import com.laytonsmith.core.AbstractCommandLineTool;
+import com.laytonsmith.core.functions.Cmdline.prompt_char;
+import com.laytonsmith.core.tool;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cmdline tool to copy all the data from one table into another, which may use a different key layout. This is the
+ * migration path between the flat and hierarchical key layouts.
+ */
+@tool("x-msdynamodb-migratetable")
+public class TableMigrator extends AbstractCommandLineTool {
+
+	private static final String REGION = "region";
+	private static final String SOURCE_TABLE_NAME = "source-table-name";
+	private static final String TARGET_TABLE_NAME = "target-table-name";
+	private static final String TARGET_PARTITION_DEPTH = "target-partition-depth";
+	private static final String SEGMENTS = "segments";
+	private static final String ACCESS_KEY_ID = "access-key-id";
+	private static final String ACCESS_KEY_SECRET = "access-key-secret";
+
+	/**
+	 * The number of items to collect before handing them to the {@link BatchWriter}, which sends them in parallel
+	 * chunks.
+	 */
+	private static final int BATCH_SIZE = BatchWriter.BATCH_SIZE * 8;
+
+	@Override
+	public ArgumentParser getArgumentParser() {
+		return ArgumentParser.GetParser()
+				.addDescription("Copies all the data from one table into another. The target table may use a different"
+						+ " key layout than the source table, which makes this the way to move between the flat and"
+						+ " hierarchical layouts. The target table must already exist, and should be created with "
+						+ TableCreator.class.getAnnotation(tool.class).value() + " using the desired partition depth."
+						+ " Once the copy is done, update the route's tableName and partitionDepth parameters. Writes"
+						+ " made to the source table while the copy is running may not be copied, so it should be run"
+						+ " while the server is stopped.")
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The region where the tables are. As a special argument, if this argument is of"
+								+ " the form \"<host>:<port>\", then the tables in the provided url are used instead.")
+						.setUsageName("region")
+						.setRequired()
+						.setName(REGION)
+						.setArgType(BuilderTypeNonFlag.STRING))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The name of the table to copy from.")
+						.setUsageName("source table name")
+						.setRequired()
+						.setName(SOURCE_TABLE_NAME)
+						.setArgType(BuilderTypeNonFlag.STRING))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The name of the table to copy into.")
+						.setUsageName("target table name")
+						.setRequired()
+						.setName(TARGET_TABLE_NAME)
+						.setArgType(BuilderTypeNonFlag.STRING))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The partition depth that the target table was created with. 0, the default,"
+								+ " is the flat layout.")
+						.setUsageName("target partition depth")
+						.setOptional()
+						.setName(TARGET_PARTITION_DEPTH)
+						.setArgType(BuilderTypeNonFlag.NUMBER)
+						.setDefaultVal("0"))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The number of segments the source table is split into, which are scanned in"
+								+ " parallel. For large tables, this makes the copy much faster, as long as the table"
+								+ " has the read capacity for it.")
+						.setUsageName("segments")
+						.setOptional()
+						.setName(SEGMENTS)
+						.setArgType(BuilderTypeNonFlag.NUMBER)
+						.setDefaultVal("1"))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The access key id. This is optional, and if left off, it will use the"
+								+ " credentials saved with the system. To set these up, see "
+								+ "https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/setup-credentials.html.")
+						.setUsageName("access key id")
+						.setOptional()
+						.setName(ACCESS_KEY_ID)
+						.setArgType(BuilderTypeNonFlag.STRING)
+						.setDefaultVal(null))
+				.addArgument(new ArgumentBuilder()
+						.setDescription("The access key secret. This is required if " + ACCESS_KEY_ID + " was provided,"
+								+ " but not required otherwise.")
+						.setUsageName("access key secret")
+						.setOptional()
+						.setName(ACCESS_KEY_SECRET)
+						.setArgType(BuilderTypeNonFlag.STRING)
+						.setDefaultVal(null));
+	}
+
+	@Override
+	public void execute(ArgumentParser.ArgumentParserResults parsedArgs) throws Exception {
+		String sRegion = parsedArgs.getStringArgument(REGION);
+		String sourceTableName = parsedArgs.getStringArgument(SOURCE_TABLE_NAME);
+		String targetTableName = parsedArgs.getStringArgument(TARGET_TABLE_NAME);
+		String sAccessKeyId = parsedArgs.getStringArgument(ACCESS_KEY_ID);
+		String sAccessKeySecret = parsedArgs.getStringArgument(ACCESS_KEY_SECRET);
+		if(sAccessKeyId == null && sAccessKeySecret != null || sAccessKeyId != null && sAccessKeySecret == null) {
+			System.err.println(ACCESS_KEY_ID + " and " + ACCESS_KEY_SECRET + " must either both be provided, or"
+					+ " neither");
+			System.exit(1);
+		}
+		String host;
+		int port = -1;
+		Regions r;
+		if(sRegion.contains(":")) {
+			host = sRegion.split(":")[0];
+			port = Integer.parseInt(sRegion.split(":")[1]);
+			r = Regions.US_EAST_1;
+		} else {
+			host = null;
+			r = Regions.fromName(sRegion);
+		}
+		KeyLayout targetLayout = KeyLayout.forDepth(parsedArgs.getNumberArgument(TARGET_PARTITION_DEPTH).intValue());
+		int segments = Math.max(1, parsedArgs.getNumberArgument(SEGMENTS).intValue());
+		System.out.println("Using the following settings:");
+		System.out.println("Host: " + host);
+		System.out.println("Port: " + port);
+		System.out.println("Region: " + r);
+		System.out.println("Source Table Name: " + sourceTableName);
+		System.out.println("Target Table Name: " + targetTableName);
+		System.out.println("Target Partition Depth: " + targetLayout.getPartitionDepth());
+		System.out.println("Segments: " + segments);
+		char c = prompt_char.promptChar("If this looks correct, type Y to continue: ");
+		if(c != 'y' && c != 'Y') {
+			System.out.println("Aborting operation.");
+			System.exit(1);
+		}
+		AmazonDynamoDB client = DynamoDBDataSource.buildClient("http", host, port, r, sAccessKeyId, sAccessKeySecret);
+		DynamoDBDataSource.validateTableName(targetTableName);
+		targetLayout.verify(targetTableName, client.describeTable(targetTableName).getTable().getKeySchema());
+		System.out.println("Copying items...");
+		long count = 0;
+		BatchWriter writer = new BatchWriter(client, targetTableName);
+		List<WriteRequest> batch = new ArrayList<>();
+		Iterable<Map<String, AttributeValue>> items = segments > 1
+				? new ParallelScan(client, new ScanRequest(sourceTableName), segments,
+						CapacityLimiter.unlimited().reads)
+				: ItemPager.scan(client, new ScanRequest(sourceTableName));
+		for(Map<String, AttributeValue> item : items) {
+			batch.add(new WriteRequest(new PutRequest(targetLayout.convert(item))));
+			if(batch.size() == BATCH_SIZE) {
+				writer.write(batch);
+				count += batch.size();
+				batch = new ArrayList<>();
+				if(count % (BATCH_SIZE * 5) == 0) {
+					System.out.println("Copied " + count + " items");
+				}
+			}
+		}
+		writer.write(batch);
+		count += batch.size();
+		System.out.println("Done. Copied " + count + " items.");
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,248 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded, least recently used cache of values, where each entry expires after a fixed time to live. Keys
+ * that don't exist in the table may also be cached, with their own time to live, so that repeated lookups of missing
+ * keys don't each go to the network.
+ * <p>
+ * Since the entries may be stale for up to their time to live, this is only suitable for eventually consistent
+ * reads. Writes made by this process invalidate the entry for that key. To prevent a read which started before a
+ * write from putting the old value back into the cache after the write has invalidated it, callers must get a token
+ * with {@link #readToken()} before reading from the table, and pass it to {@link #put}, which skips the put if that
+ * key has been invalidated since.
+ * <p>
+ * Each invalidation is numbered, and the number is remembered for the key, so that writes to other keys don't
+ * prevent a read from being cached. Only as many of these are kept as there may be entries, and once the oldest is
+ * dropped, reads which started before it was made can't be cached at all, since it is no longer known which key it
+ * was for.
+ */
+class ValueCache {
+
+	/**
+	 * A cached value. If value is null, the key is cached as not existing.
+	 */
+	static final class CachedValue {
+
+		final String value;
+		private final long expires;
+
+		private CachedValue(String value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxSize;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+	/**
+	 * Guarded by itself. This is in access order, so the eldest entry is the least recently used one.
+	 */
+	private final Map<String, CachedValue> entries;
+	/**
+	 * The number of the most recent invalidation of each key. Guarded by entries, and in insertion order, which is
+	 * kept the same as the order of the numbers, so the eldest is the oldest invalidation.
+	 */
+	private final LinkedHashMap<String, Long> invalidations = new LinkedHashMap<>();
+	/**
+	 * The number of the last invalidation. Guarded by entries.
+	 */
+	private long lastInvalidation;
+	/**
+	 * The number of the newest invalidation which has been dropped from invalidations. Guarded by entries.
+	 */
+	private long forgottenInvalidation;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxSize The maximum number of entries. Once this is reached, the least recently used entry is evicted.
+	 * @param ttlMillis How long values are cached for.
+	 * @param negativeTtlMillis How long keys that don't exist are cached for. If 0, they aren't cached at all.
+	 */
+	@SuppressWarnings("serial")
+	ValueCache(int maxSize, long ttlMillis, long negativeTtlMillis) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		this.entries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+				if(size() > ValueCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached entry for the given key, or null if it isn't cached, or has expired.
+	 *
+	 * @param key
+	 * @return
+	 */
+	CachedValue get(String key) {
+		CachedValue entry;
+		synchronized(entries) {
+			entry = entries.get(key);
+			if(entry != null && entry.expires <= System.currentTimeMillis()) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if(entry == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns a token which must be passed to {@link #put}. This must be called before the value is read from the
+	 * table.
+	 *
+	 * @return
+	 */
+	long readToken() {
+		synchronized(entries) {
+			return lastInvalidation;
+		}
+	}
+
+	/**
+	 * Returns true if the key may have been invalidated since the token was obtained, in which case a value read with
+	 * that token may be older than what is in the table.
+	 *
+	 * @param key
+	 * @param token The token obtained from {@link #readToken()} before the value was read.
+	 * @return
+	 */
+	boolean invalidatedSince(String key, long token) {
+		synchronized(entries) {
+			if(token < forgottenInvalidation) {
+				return true;
+			}
+			Long invalidation = invalidations.get(key);
+			return invalidation != null && invalidation > token;
+		}
+	}
+
+	/**
+	 * Records that the key has been invalidated, so that reads which started before now aren't cached. This must be
+	 * called while holding the lock on entries.
+	 *
+	 * @param key
+	 */
+	private void recordInvalidation(String key) {
+		// This is removed first, so that it is moved to the end, and the order stays the same as that of the numbers
+		invalidations.remove(key);
+		invalidations.put(key, ++lastInvalidation);
+		if(invalidations.size() > maxSize) {
+			Iterator<Long> eldest = invalidations.values().iterator();
+			forgottenInvalidation = eldest.next();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Caches the value that was read from the table, unless the key has been invalidated since the token was
+	 * obtained.
+	 *
+	 * @param key
+	 * @param value The value, or null if the key doesn't exist.
+	 * @param token The token obtained from {@link #readToken()} before the value was read.
+	 */
+	void put(String key, String value, long token) {
+		long ttl = value == null ? negativeTtlMillis : ttlMillis;
+		if(ttl <= 0) {
+			return;
+		}
+		CachedValue entry = new CachedValue(value, System.currentTimeMillis() + ttl);
+		synchronized(entries) {
+			if(invalidatedSince(key, token)) {
+				return;
+			}
+			entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * Removes the given key from the cache. This must be called after a write to the key has completed.
+	 *
+	 * @param key
+	 */
+	void invalidate(String key) {
+		synchronized(entries) {
+			recordInvalidation(key);
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Replaces the cached value for the given key with a newer value that is known to be in the table, such as one
+	 * read from the table's stream. If the key isn't cached, it is not added, so that changes to keys this server
+	 * doesn't use don't evict the ones it does.
+	 *
+	 * @param key
+	 * @param value
+	 */
+	void refresh(String key, String value) {
+		CachedValue entry = new CachedValue(value, System.currentTimeMillis() + ttlMillis);
+		synchronized(entries) {
+			// This also has to prevent in flight reads from putting the old value back
+			recordInvalidation(key);
+			if(entries.containsKey(key)) {
+				entries.put(key, entry);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the cache holds as many entries as it can, so adding another would evict one.
+	 *
+	 * @return
+	 */
+	boolean isFull() {
+		return size() >= maxSize;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getEvictions() {
+		return evictions.get();
+	}
+
+	int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ValueCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+				+ ", evictions=" + getEvictions() + "}";
+	}
+
+}
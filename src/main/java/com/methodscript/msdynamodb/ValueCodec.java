@@ -0,0 +1,338 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.laytonsmith.persistence.DataSourceException;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Converts values to and from the items they are stored in.
+ * <p>
+ * Values are either stored as a plain String attribute, which is the original format, or as a Binary attribute, whose
+ * first byte says how the rest is encoded: either as plain UTF-8, or, for values over the compression threshold,
+ * compressed with DEFLATE. Both formats can always be read, so the binary format can be switched on for an existing
+ * table, and items written before that keep working.
+ * <p>
+ * A binary value that is still too large for a single item, which DynamoDB limits to 400KB, is split into chunks. The
+ * first chunk is stored in the item itself, along with the number of chunks, and a random version. The rest are
+ * stored in chunk items, whose keys are derived from the value's key, and which record the key they are a chunk of,
+ * so that they can be left out of key listings, and the same version, so that a reader can tell if it has read chunks
+ * from two different writes. All the items of a chunked value must be written in a single transaction, which DynamoDB
+ * limits to 4MB, so that is also the limit on the size of a value.
+ */
+class ValueCodec {
+
+	static final String VALUE_ATTRIBUTE = "value";
+	/**
+	 * On a chunked value's own item, the total number of chunks, including the one in the item.
+	 */
+	static final String CHUNKS_ATTRIBUTE = "chunks";
+	/**
+	 * On a chunk item, the key of the value it is a chunk of.
+	 */
+	static final String CHUNK_OF_ATTRIBUTE = "chunkOf";
+	/**
+	 * On all the items of a chunked value, a random number which is different for every write.
+	 */
+	static final String VERSION_ATTRIBUTE = "version";
+	/**
+	 * The most chunks a value may be split into.
+	 */
+	static final int MAX_CHUNKS = 10;
+	/**
+	 * The size of each chunk. This leaves plenty of room in the 400KB item for the key and the other attributes.
+	 */
+	private static final int CHUNK_SIZE = 384 * 1024;
+
+	private static final byte FORMAT_UTF8 = 0;
+	private static final byte FORMAT_DEFLATE = 1;
+
+	private final boolean binary;
+	private final int compressThreshold;
+
+	/**
+	 * @param binary If true, values are written in the binary format, otherwise they are written as plain strings.
+	 * Both formats can always be read.
+	 * @param compressThreshold In the binary format, values whose UTF-8 encoding is larger than this many bytes are
+	 * compressed.
+	 */
+	ValueCodec(boolean binary, int compressThreshold) {
+		this.binary = binary;
+		this.compressThreshold = compressThreshold;
+	}
+
+	/**
+	 * Returns the key of the given chunk of a chunked value. The chunks are numbered from 1, since chunk 0 is stored
+	 * in the value's own item. The separator is not allowed in Persistence Network keys, so this can't collide with a
+	 * real key.
+	 *
+	 * @param key The full dotted key of the value
+	 * @param index
+	 * @return
+	 */
+	static String chunkKey(String key, int index) {
+		return key + ":chunk:" + index;
+	}
+
+	/**
+	 * Returns the items the value is stored in. The first is the value's own item, and the rest, if any, are its chunk
+	 * items, which must all be written together, in a single transaction.
+	 *
+	 * @param layout
+	 * @param key The full dotted key
+	 * @param value
+	 * @return
+	 * @throws DataSourceException If the value is too large to store, even in chunks.
+	 */
+	List<Map<String, AttributeValue>> toItems(KeyLayout layout, String key, String value) throws DataSourceException {
+		Map<String, AttributeValue> item = layout.toKey(key);
+		List<Map<String, AttributeValue>> items = new ArrayList<>(1);
+		items.add(item);
+		if(!binary) {
+			item.put(VALUE_ATTRIBUTE, new AttributeValue(value));
+			return items;
+		}
+		byte[] encoded = encode(value);
+		if(encoded.length <= CHUNK_SIZE) {
+			item.put(VALUE_ATTRIBUTE, new AttributeValue().withB(ByteBuffer.wrap(encoded)));
+			return items;
+		}
+		int chunks = (encoded.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if(chunks > MAX_CHUNKS) {
+			throw new DataSourceException("The value for \"" + key + "\" is " + encoded.length + " bytes after"
+					+ " compression, but the most that can be stored is " + MAX_CHUNKS * CHUNK_SIZE + " bytes.");
+		}
+		AttributeValue version = new AttributeValue().withN(Long.toString(ThreadLocalRandom.current().nextLong()));
+		item.put(VALUE_ATTRIBUTE, new AttributeValue().withB(ByteBuffer.wrap(encoded, 0, CHUNK_SIZE)));
+		item.put(CHUNKS_ATTRIBUTE, new AttributeValue().withN(Integer.toString(chunks)));
+		item.put(VERSION_ATTRIBUTE, version);
+		for(int i = 1; i < chunks; i++) {
+			Map<String, AttributeValue> chunk = layout.toKey(chunkKey(key, i));
+			int start = i * CHUNK_SIZE;
+			chunk.put(VALUE_ATTRIBUTE, new AttributeValue().withB(ByteBuffer.wrap(encoded, start,
+					Math.min(CHUNK_SIZE, encoded.length - start))));
+			chunk.put(CHUNK_OF_ATTRIBUTE, new AttributeValue(key));
+			chunk.put(VERSION_ATTRIBUTE, version);
+			items.add(chunk);
+		}
+		return items;
+	}
+
+	/**
+	 * Returns the number of chunks the item's value is split into, which is 1 if it isn't chunked.
+	 *
+	 * @param item
+	 * @return
+	 */
+	static int chunkCount(Map<String, AttributeValue> item) {
+		AttributeValue chunks = item.get(CHUNKS_ATTRIBUTE);
+		return chunks == null || chunks.getN() == null ? 1 : Integer.parseInt(chunks.getN());
+	}
+
+	/**
+	 * Returns the number of bytes the values in the items take up, as stored, so after any compression.
+	 *
+	 * @param items
+	 * @return
+	 */
+	static long valueSize(Iterable<Map<String, AttributeValue>> items) {
+		long size = 0;
+		for(Map<String, AttributeValue> item : items) {
+			AttributeValue value = item.get(VALUE_ATTRIBUTE);
+			if(value == null) {
+				continue;
+			}
+			if(value.getS() != null) {
+				size += utf8Length(value.getS());
+			} else if(value.getB() != null) {
+				size += value.getB().remaining();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the length of the string in UTF-8, without encoding it.
+	 */
+	private static long utf8Length(String s) {
+		long length = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				length++;
+			} else if(c < 0x800) {
+				length += 2;
+			} else if(Character.isHighSurrogate(c)) {
+				// The pair is a single 4 byte character
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Returns true if the item is a chunk of another value, rather than a value of its own.
+	 *
+	 * @param item
+	 * @return
+	 */
+	static boolean isChunk(Map<String, AttributeValue> item) {
+		return item.containsKey(CHUNK_OF_ATTRIBUTE);
+	}
+
+	/**
+	 * Returns the value stored in an item which is not chunked.
+	 *
+	 * @param item
+	 * @return
+	 * @throws DataSourceException If the value is corrupt.
+	 */
+	String decode(Map<String, AttributeValue> item) throws DataSourceException {
+		AttributeValue value = item.get(VALUE_ATTRIBUTE);
+		if(value.getS() != null) {
+			return value.getS();
+		}
+		return decode(toBytes(value.getB()));
+	}
+
+	/**
+	 * Returns the value stored in a chunked item, and the rest of its chunks.
+	 *
+	 * @param key The full dotted key, for error messages
+	 * @param item The value's own item
+	 * @param chunks The chunk items, in any order. They must all be present.
+	 * @return
+	 * @throws DataSourceException If a chunk is missing, or is from a different write than the item.
+	 */
+	String decode(String key, Map<String, AttributeValue> item, List<Map<String, AttributeValue>> chunks)
+			throws DataSourceException {
+		int count = chunkCount(item);
+		String version = item.get(VERSION_ATTRIBUTE).getN();
+		byte[][] parts = new byte[count][];
+		parts[0] = toBytes(item.get(VALUE_ATTRIBUTE).getB());
+		for(Map<String, AttributeValue> chunk : chunks) {
+			String chunkKey = chunk.get(KeyLayout.KEY_ATTRIBUTE).getS();
+			int index = Integer.parseInt(chunkKey.substring(chunkKey.lastIndexOf(':') + 1));
+			if(!version.equals(chunk.get(VERSION_ATTRIBUTE).getN())) {
+				throw new StaleChunkException(key);
+			}
+			parts[index] = toBytes(chunk.get(VALUE_ATTRIBUTE).getB());
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(count * CHUNK_SIZE);
+		for(int i = 0; i < count; i++) {
+			if(parts[i] == null) {
+				throw new StaleChunkException(key);
+			}
+			out.write(parts[i], 0, parts[i].length);
+		}
+		return decode(out.toByteArray());
+	}
+
+	/**
+	 * Thrown when the chunks of a value that were read don't all belong to the same write, which means the value was
+	 * overwritten while it was being read, and should be read again.
+	 */
+	static class StaleChunkException extends DataSourceException {
+
+		StaleChunkException(String key) {
+			super("The chunks of the value for \"" + key + "\" changed while they were being read.");
+		}
+	}
+
+	private static byte[] toBytes(ByteBuffer buffer) {
+		ByteBuffer b = buffer.duplicate();
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return bytes;
+	}
+
+	private byte[] encode(String value) {
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		if(utf8.length > compressThreshold) {
+			byte[] compressed = deflate(utf8);
+			// Already compressed data can get bigger, in which case there's no point
+			if(compressed.length < utf8.length) {
+				return compressed;
+			}
+		}
+		byte[] encoded = new byte[utf8.length + 1];
+		encoded[0] = FORMAT_UTF8;
+		System.arraycopy(utf8, 0, encoded, 1, utf8.length);
+		return encoded;
+	}
+
+	/**
+	 * Returns the marker, the uncompressed length, and the compressed data.
+	 */
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+			out.write(FORMAT_DEFLATE);
+			out.write(ByteBuffer.allocate(4).putInt(data.length).array(), 0, 4);
+			byte[] buffer = new byte[8192];
+			while(!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static String decode(byte[] encoded) throws DataSourceException {
+		if(encoded.length == 0) {
+			throw new DataSourceException("A binary value is empty, and is missing its format marker.");
+		}
+		switch(encoded[0]) {
+			case FORMAT_UTF8:
+				return new String(encoded, 1, encoded.length - 1, StandardCharsets.UTF_8);
+			case FORMAT_DEFLATE:
+				int length = ByteBuffer.wrap(encoded, 1, 4).getInt();
+				Inflater inflater = new Inflater();
+				try {
+					inflater.setInput(encoded, 5, encoded.length - 5);
+					byte[] data = new byte[length];
+					int read = 0;
+					while(read < length && !inflater.finished()) {
+						int n = inflater.inflate(data, read, length - read);
+						if(n == 0 && inflater.needsInput()) {
+							break;
+						}
+						read += n;
+					}
+					if(read != length) {
+						throw new DataSourceException("A compressed value is truncated.");
+					}
+					return new String(data, StandardCharsets.UTF_8);
+				} catch (DataFormatException ex) {
+					throw new DataSourceException("A compressed value is corrupt.", ex);
+				} finally {
+					inflater.end();
+				}
+			default:
+				throw new DataSourceException("A binary value has the unknown format " + encoded[0] + ". It may have"
+						+ " been written by a newer version of this extension.");
+		}
+	}
+
+}
@@ -0,0 +1,661 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.laytonsmith.persistence.DataSourceException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded queue of writes, which are sent to the table in the background, so that the thread making the write
+ * doesn't have to wait for it. If a key is written again while an earlier write to it is still queued, the earlier
+ * value is replaced, so only the latest value is sent. Background workers take batches of queued writes and hand them
+ * to a {@link Flusher}.
+ * <p>
+ * A key is never being flushed by more than one worker at a time, so writes to the same key always reach the table in
+ * the order they were made. Writes that are queued or being flushed are visible through {@link #lookup}, so that
+ * reads made by this process see them immediately.
+ * <p>
+ * The queue is bounded by the number of distinct keys waiting to be flushed. What happens when it is full is decided
+ * by the {@link FullPolicy}.
+ * <p>
+ * If the queue has a {@link WriteJournal}, each write is appended to the journal before it is queued, and
+ * {@link #enqueue} only returns once the journal has been forced to disk. The writes left in the journal are queued
+ * again when the queue is created, and as writes are flushed, the journal is told the oldest write that still hasn't
+ * reached the table, so that the segments before it can be deleted.
+ * <p>
+ * A batch which fails because of throttling, or any other error which isn't down to the writes in it, is retried for
+ * as long as it takes. A batch which fails because of one of its writes, such as a value that is too large, is split
+ * in half until the writes that fail are found, so that they don't hold back the rest. Each of those is retried up
+ * to {@link #MAX_ATTEMPTS} times, and then discarded, and is no longer kept in the journal.
+ */
+class WriteBehindQueue {
+
+	private static final Logger LOGGER = Logger.getLogger(WriteBehindQueue.class.getName());
+	private static final ThreadFactory THREADS = DynamoDBThreads.factory("MSDynamoDB-write-behind");
+	private static final long MAX_RETRY_DELAY = 10000;
+	/**
+	 * The number of times a write that fails because of the write itself is tried, before it is discarded.
+	 */
+	static final int MAX_ATTEMPTS = 3;
+	/**
+	 * The error codes, and the transaction cancellation reasons, which mean that the request can't succeed as it is,
+	 * so retrying it won't help.
+	 */
+	private static final Set<String> PERMANENT_ERRORS = new HashSet<>(Arrays.asList("ValidationException",
+			"ConditionalCheckFailedException", "ItemCollectionSizeLimitExceededException", "SerializationException"));
+	private static final Set<String> PERMANENT_REASONS = new HashSet<>(Arrays.asList("ValidationError",
+			"ConditionalCheckFailed", "ItemCollectionSizeLimitExceeded"));
+
+	/**
+	 * What to do when a write is made to a new key while the queue is full.
+	 */
+	enum FullPolicy {
+		/**
+		 * Block the writing thread until there is room.
+		 */
+		BLOCK,
+		/**
+		 * Discard the write.
+		 */
+		DROP,
+		/**
+		 * Throw an exception to the writing thread.
+		 */
+		FAIL
+	}
+
+	/**
+	 * Writes a batch of values to the table.
+	 */
+	interface Flusher {
+
+		/**
+		 * Writes all the values in the batch, blocking until they are written.
+		 *
+		 * @param batch The values to write, keyed by the full dotted key. A null value is a delete.
+		 * @throws DataSourceException If the batch could not be written. If this is a {@link RetryLaterException},
+		 * or caused by an SDK exception which isn't down to the writes themselves, the batch is retried for as long
+		 * as it takes.
+		 */
+		void flush(Map<String, String> batch) throws DataSourceException;
+	}
+
+	/**
+	 * Thrown by a {@link Flusher} when a batch couldn't be written for a reason which has nothing to do with the
+	 * writes in it, such as the table not being reachable yet, so that they are retried however long it takes.
+	 */
+	static class RetryLaterException extends DataSourceException {
+
+		RetryLaterException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * A write that has not yet reached the table.
+	 */
+	static final class PendingWrite {
+
+		/**
+		 * The value that was written, or null if it was a delete.
+		 */
+		final String value;
+
+		private PendingWrite(String value) {
+			this.value = value;
+		}
+	}
+
+	private final int capacity;
+	private final int batchSize;
+	private final FullPolicy fullPolicy;
+	private final Flusher flusher;
+	/**
+	 * If writes are journaled, the journal, otherwise it is null.
+	 */
+	private final WriteJournal journal;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Condition drained = lock.newCondition();
+	/**
+	 * The writes waiting to be flushed, in the order their keys were first written. Guarded by lock.
+	 */
+	private final LinkedHashMap<String, String> queued = new LinkedHashMap<>();
+	/**
+	 * The writes currently being flushed by a worker. Guarded by lock.
+	 */
+	private final Map<String, String> inFlight = new HashMap<>();
+	/**
+	 * If writes are journaled, the number of the latest journaled write to each key that hasn't reached the table,
+	 * and the same the other way around, so that the oldest can be found. Guarded by lock.
+	 */
+	private final Map<String, Long> journalSeqs = new HashMap<>();
+	private final TreeMap<Long, String> pendingSeqs = new TreeMap<>();
+	/**
+	 * The number of times the write to each key has failed because of the write itself. Guarded by lock.
+	 */
+	private final Map<String, Integer> attempts = new HashMap<>();
+	private final Thread[] workers;
+	private volatile boolean running = true;
+	private DataSourceException closeFailure = null;
+	private int consecutiveFailures = 0;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong flushed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushNanos = new AtomicLong();
+	private volatile long lastFlushNanos = 0;
+
+	/**
+	 * Creates the queue, queues the writes left in the journal, if there is one, and starts its workers. The writes
+	 * left in the journal are queued even if there are more distinct keys than the capacity.
+	 *
+	 * @param capacity The maximum number of distinct keys that may be waiting to be flushed.
+	 * @param batchSize The maximum number of writes a worker takes at once.
+	 * @param workers The number of background workers.
+	 * @param fullPolicy What to do when the queue is full.
+	 * @param flusher Writes the batches to the table.
+	 * @param journal The journal, which must not have been appended to yet, or null if writes aren't journaled. The
+	 * queue closes it when it is closed.
+	 * @throws DataSourceException If the journal can't be read.
+	 */
+	WriteBehindQueue(int capacity, int batchSize, int workers, FullPolicy fullPolicy, Flusher flusher,
+			WriteJournal journal) throws DataSourceException {
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.fullPolicy = fullPolicy;
+		this.flusher = flusher;
+		this.journal = journal;
+		if(journal != null) {
+			journal.replay((key, value, seq) -> {
+				queued.put(key, value);
+				track(key, seq);
+			});
+		}
+		this.workers = new Thread[workers];
+		for(int i = 0; i < workers; i++) {
+			this.workers[i] = THREADS.newThread(this::work);
+			this.workers[i].start();
+		}
+	}
+
+	/**
+	 * Queues a write. If writes are journaled, this returns once the write has been forced to disk.
+	 *
+	 * @param key The full dotted key
+	 * @param value The value, or null to delete the key.
+	 * @return True if the write was queued, false if it was dropped because the queue was full.
+	 * @throws DataSourceException If the queue is full and the policy is {@link FullPolicy#FAIL}, the queue has been
+	 * closed, or the journal can't be written to. If the journal couldn't be forced, the write is taken back out of
+	 * the queue, unless a worker has already started flushing it.
+	 */
+	boolean enqueue(String key, String value) throws DataSourceException {
+		long seq = -1;
+		String previous = null;
+		Long previousSeq = null;
+		boolean coalescing;
+		lock.lock();
+		try {
+			if(!running) {
+				throw new DataSourceException("The write queue has been closed.");
+			}
+			coalescing = queued.containsKey(key);
+			while(!coalescing && queued.size() >= capacity) {
+				switch(fullPolicy) {
+					case DROP:
+						dropped.incrementAndGet();
+						return false;
+					case FAIL:
+						throw new DataSourceException("The write queue is full, with " + queued.size()
+								+ " writes waiting to be flushed.");
+					default:
+						notFull.awaitUninterruptibly();
+						if(!running) {
+							throw new DataSourceException("The write queue has been closed.");
+						}
+				}
+			}
+			if(journal != null) {
+				// This has to happen under the lock, so that the journal has the writes to each key in the same order
+				// as the queue
+				seq = journal.append(key, value);
+				previousSeq = journalSeqs.get(key);
+				track(key, seq);
+			}
+			previous = queued.put(key, value);
+			// A new value gets tries of its own
+			attempts.remove(key);
+			if(coalescing) {
+				coalesced.incrementAndGet();
+			} else {
+				enqueued.incrementAndGet();
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if(journal != null) {
+			// Outside the lock, so that concurrent writes share the same force
+			try {
+				journal.sync(seq);
+			} catch (DataSourceException ex) {
+				withdraw(key, seq, coalescing, previous, previousSeq);
+				throw ex;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Takes a write whose journal entry couldn't be forced back out of the queue, and puts back the write it replaced,
+	 * if any, so that a set which failed doesn't reach the table anyway. Nothing is done if the write has been
+	 * superseded, or a worker has already taken it.
+	 *
+	 * @param key
+	 * @param seq The number of the write in the journal
+	 * @param coalescing Whether the write replaced a queued write
+	 * @param previous The value of the queued write it replaced
+	 * @param previousSeq The number of the write to the key that was being tracked before, or null
+	 */
+	private void withdraw(String key, long seq, boolean coalescing, String previous, Long previousSeq) {
+		lock.lock();
+		try {
+			Long current = journalSeqs.get(key);
+			if(current == null || current != seq || !queued.containsKey(key)) {
+				return;
+			}
+			pendingSeqs.remove(seq);
+			if(previousSeq == null) {
+				journalSeqs.remove(key);
+			} else {
+				journalSeqs.put(key, previousSeq);
+				pendingSeqs.put(previousSeq, key);
+			}
+			if(coalescing) {
+				queued.put(key, previous);
+			} else {
+				queued.remove(key);
+				notFull.signal();
+				if(queued.isEmpty() && inFlight.isEmpty()) {
+					drained.signalAll();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records the number of the latest journaled write to the key. Must be called with the lock held.
+	 *
+	 * @param key
+	 * @param seq
+	 */
+	private void track(String key, long seq) {
+		Long previous = journalSeqs.put(key, seq);
+		if(previous != null) {
+			pendingSeqs.remove(previous);
+		}
+		pendingSeqs.put(seq, key);
+	}
+
+	/**
+	 * Stops tracking the journaled write to the key, unless a newer write to it is queued. Must be called with the
+	 * lock held.
+	 *
+	 * @param key
+	 */
+	private void untrack(String key) {
+		if(!queued.containsKey(key)) {
+			Long seq = journalSeqs.remove(key);
+			if(seq != null) {
+				pendingSeqs.remove(seq);
+			}
+		}
+	}
+
+	/**
+	 * Returns the keys of the writes which have not yet reached the table.
+	 *
+	 * @return
+	 */
+	Set<String> getPendingKeys() {
+		lock.lock();
+		try {
+			Set<String> ret = new HashSet<>(queued.keySet());
+			ret.addAll(inFlight.keySet());
+			return ret;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the write to the given key that has not yet reached the table, if any.
+	 *
+	 * @param key The full dotted key
+	 * @return The pending write, or null if there is none.
+	 */
+	PendingWrite lookup(String key) {
+		lock.lock();
+		try {
+			if(queued.containsKey(key)) {
+				return new PendingWrite(queued.get(key));
+			}
+			if(inFlight.containsKey(key)) {
+				return new PendingWrite(inFlight.get(key));
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes up to batchSize queued writes whose keys aren't already being flushed, and marks them as in flight. Must
+	 * be called with the lock held.
+	 *
+	 * @return
+	 */
+	private Map<String, String> takeBatch() {
+		Map<String, String> batch = new LinkedHashMap<>();
+		Iterator<Map.Entry<String, String>> it = queued.entrySet().iterator();
+		while(it.hasNext() && batch.size() < batchSize) {
+			Map.Entry<String, String> entry = it.next();
+			if(inFlight.containsKey(entry.getKey())) {
+				continue;
+			}
+			batch.put(entry.getKey(), entry.getValue());
+			it.remove();
+		}
+		inFlight.putAll(batch);
+		if(!batch.isEmpty()) {
+			notFull.signalAll();
+		}
+		return batch;
+	}
+
+	private void work() {
+		while(true) {
+			Map<String, String> batch;
+			lock.lock();
+			try {
+				batch = takeBatch();
+				while(batch.isEmpty()) {
+					if(!running) {
+						return;
+					}
+					// The timeout covers keys skipped because they were in flight when we last looked
+					notEmpty.await(100, TimeUnit.MILLISECONDS);
+					batch = takeBatch();
+				}
+			} catch (InterruptedException ex) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			long start = System.nanoTime();
+			Map<String, DataSourceException> failures = new HashMap<>();
+			flush(batch, failures);
+			long elapsed = System.nanoTime() - start;
+			long released = -1;
+			DataSourceException failure = null;
+			Map<String, DataSourceException> discarded = new LinkedHashMap<>();
+			lock.lock();
+			try {
+				inFlight.keySet().removeAll(batch.keySet());
+				for(Map.Entry<String, String> entry : batch.entrySet()) {
+					String key = entry.getKey();
+					DataSourceException ex = failures.get(key);
+					if(ex == null) {
+						attempts.remove(key);
+						untrack(key);
+						continue;
+					}
+					if(queued.containsKey(key)) {
+						// Superseded by a newer write in the meantime, which will be tried on its own
+						attempts.remove(key);
+						failure = ex;
+						continue;
+					}
+					if(!isTransient(ex) && attempts.merge(key, 1, Integer::sum) >= MAX_ATTEMPTS) {
+						attempts.remove(key);
+						untrack(key);
+						discarded.put(key, ex);
+						continue;
+					}
+					failure = ex;
+					if(running) {
+						// These go to the back of the queue, but since nothing else is queued for the same key, that
+						// doesn't affect the order of writes to any one key.
+						queued.put(key, entry.getValue());
+					}
+				}
+				if(journal != null) {
+					released = pendingSeqs.isEmpty() ? journal.getNextSeq() : pendingSeqs.firstKey();
+				}
+				flushed.addAndGet(batch.size() - failures.size());
+				failed.addAndGet(discarded.size());
+				if(failures.isEmpty()) {
+					consecutiveFailures = 0;
+					flushes.incrementAndGet();
+					flushNanos.addAndGet(elapsed);
+					lastFlushNanos = elapsed;
+				} else if(failure != null) {
+					consecutiveFailures++;
+					if(!running) {
+						// We're being closed, so there's no point in retrying forever
+						closeFailure = failure;
+					}
+				}
+				if(queued.isEmpty() && inFlight.isEmpty() || closeFailure != null) {
+					drained.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+			if(failure != null) {
+				LOGGER.log(Level.WARNING, "Could not flush " + (failures.size() - discarded.size()) + " of "
+						+ batch.size() + " queued writes, they will be retried", failure);
+			}
+			for(Map.Entry<String, DataSourceException> entry : discarded.entrySet()) {
+				LOGGER.log(Level.SEVERE, "Gave up on the queued write to \"" + entry.getKey() + "\" after "
+						+ MAX_ATTEMPTS + " attempts, it has been discarded", entry.getValue());
+			}
+			if(released != -1) {
+				journal.release(released);
+			}
+			if(failure != null && running) {
+				try {
+					Thread.sleep(Math.min(100L << Math.min(consecutiveFailures, 10), MAX_RETRY_DELAY));
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flushes the batch. If it fails because of one of the writes in it, it is split in half, and each half is flushed
+	 * on its own, until the writes that fail are found.
+	 *
+	 * @param batch
+	 * @param failures Receives the writes which could not be made, and why.
+	 */
+	private void flush(Map<String, String> batch, Map<String, DataSourceException> failures) {
+		DataSourceException failure;
+		try {
+			flusher.flush(batch);
+			return;
+		} catch (DataSourceException ex) {
+			failure = ex;
+		} catch (RuntimeException ex) {
+			failure = new DataSourceException("Could not flush the write queue", ex);
+		}
+		if(batch.size() == 1 || isTransient(failure)) {
+			for(String key : batch.keySet()) {
+				failures.put(key, failure);
+			}
+			return;
+		}
+		Map<String, String> first = new LinkedHashMap<>();
+		Map<String, String> second = new LinkedHashMap<>();
+		for(Map.Entry<String, String> entry : batch.entrySet()) {
+			(first.size() < batch.size() / 2 ? first : second).put(entry.getKey(), entry.getValue());
+		}
+		flush(first, failures);
+		flush(second, failures);
+	}
+
+	/**
+	 * Returns whether a failed write might succeed if it is tried again as it is. That is the case for throttling,
+	 * server errors, and network errors, as well as for anything else which isn't down to the write itself, such as a
+	 * missing table or bad credentials. Errors that weren't caused by the SDK, such as a value which is too large to
+	 * store, are not, unless they are a {@link RetryLaterException}.
+	 *
+	 * @param failure
+	 * @return
+	 */
+	static boolean isTransient(Throwable failure) {
+		for(Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if(cause instanceof RetryLaterException) {
+				return true;
+			}
+			if(cause instanceof TransactionCanceledException) {
+				List<CancellationReason> reasons = ((TransactionCanceledException) cause).getCancellationReasons();
+				if(reasons != null) {
+					for(CancellationReason reason : reasons) {
+						if(PERMANENT_REASONS.contains(reason.getCode())) {
+							return false;
+						}
+					}
+				}
+				return true;
+			}
+			if(cause instanceof AmazonServiceException) {
+				return !PERMANENT_ERRORS.contains(((AmazonServiceException) cause).getErrorCode());
+			}
+			if(cause instanceof AmazonClientException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops accepting writes, waits for all the queued writes to be flushed, and stops the workers.
+	 *
+	 * @throws DataSourceException If some of the queued writes could not be flushed.
+	 */
+	void close() throws DataSourceException {
+		DataSourceException failure;
+		int unflushed;
+		lock.lock();
+		try {
+			running = false;
+			notEmpty.signalAll();
+			notFull.signalAll();
+			while(!(queued.isEmpty() && inFlight.isEmpty()) && closeFailure == null) {
+				drained.awaitUninterruptibly();
+			}
+			failure = closeFailure;
+			unflushed = queued.size() + inFlight.size();
+		} finally {
+			lock.unlock();
+		}
+		if(journal != null) {
+			journal.close(failure == null);
+		}
+		if(failure != null) {
+			throw new DataSourceException(unflushed + " queued writes could not be flushed"
+					+ (journal == null ? "" : ". They are kept in the journal, and will be written on the next start."),
+					failure);
+		}
+	}
+
+	/**
+	 * The number of writes which have not yet reached the table.
+	 *
+	 * @return
+	 */
+	int getDepth() {
+		lock.lock();
+		try {
+			return queued.size() + inFlight.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getEnqueued() {
+		return enqueued.get();
+	}
+
+	long getCoalesced() {
+		return coalesced.get();
+	}
+
+	long getDropped() {
+		return dropped.get();
+	}
+
+	long getFlushed() {
+		return flushed.get();
+	}
+
+	/**
+	 * The number of writes which were discarded, because they failed {@link #MAX_ATTEMPTS} times.
+	 *
+	 * @return
+	 */
+	long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * The time taken by the most recent successful flush, in milliseconds.
+	 *
+	 * @return
+	 */
+	double getLastFlushMillis() {
+		return lastFlushNanos / 1e6;
+	}
+
+	/**
+	 * The average time taken by a successful flush, in milliseconds.
+	 *
+	 * @return
+	 */
+	double getAverageFlushMillis() {
+		long count = flushes.get();
+		return count == 0 ? 0 : flushNanos.get() / 1e6 / count;
+	}
+
+}
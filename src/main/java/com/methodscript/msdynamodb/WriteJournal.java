@@ -0,0 +1,536 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.laytonsmith.persistence.DataSourceException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only log of the writes in a {@link WriteBehindQueue}, so that they survive a crash, or an outage
+ * of DynamoDB that outlasts the process. The log is kept in memory mapped segment files in a local directory. A write
+ * is appended to the current segment, and is acknowledged once the segment, and if the segment is new, the directory
+ * entry for it, have been forced to disk. Forces are
+ * batched: a single background thread forces whatever has been appended since its last force, so all the writes made
+ * while a force is in progress share the next one.
+ * <p>
+ * Every write is numbered, in the order it was appended. Segments are deleted, oldest first, once every write in them
+ * has reached the table, or been superseded by a later write to the same key, and on startup, the writes in the
+ * remaining segments are replayed in order. Since segments are only ever deleted from the front, replaying them never
+ * puts an older value of a key after a newer one, although it may write some values which had already reached the
+ * table again.
+ * <p>
+ * A segment starts with a header, and then each record is its length, a CRC32 of its contents, the key, and the value,
+ * or a length of -1 for a delete. A record with a length of 0, or a bad checksum, marks the end of the segment, which
+ * is where a crash in the middle of an append leaves it. Such a record was never acknowledged.
+ */
+final class WriteJournal {
+
+	private static final Logger LOGGER = Logger.getLogger(WriteJournal.class.getName());
+	private static final ThreadFactory THREADS = DynamoDBThreads.factory("MSDynamoDB-journal");
+	/**
+	 * "MSDJ"
+	 */
+	private static final int MAGIC = 0x4D53444A;
+	private static final int VERSION = 1;
+	/**
+	 * The magic number, the version, and the number of the first write in the segment.
+	 */
+	private static final int HEADER_SIZE = 16;
+	/**
+	 * The length and the checksum.
+	 */
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final String SUFFIX = ".journal";
+	/**
+	 * The largest a segment may be, since a mapping is limited to 2GB.
+	 */
+	static final long MAX_SEGMENT_SIZE = 1 << 30;
+
+	/**
+	 * Receives the writes read back from the journal.
+	 */
+	interface Replayer {
+
+		/**
+		 * @param key The full dotted key
+		 * @param value The value, or null if the write was a delete.
+		 * @param seq The number of the write
+		 */
+		void replay(String key, String value, long seq);
+	}
+
+	private static final class Segment {
+
+		final File file;
+		final long firstSeq;
+		/**
+		 * The number after that of the last write in the segment.
+		 */
+		long endSeq;
+		/**
+		 * The mapping of the segment, while it may still need to be forced, otherwise null.
+		 */
+		MappedByteBuffer buffer;
+
+		Segment(File file, long firstSeq, long endSeq, MappedByteBuffer buffer) {
+			this.file = file;
+			this.firstSeq = firstSeq;
+			this.endSeq = endSeq;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File dir;
+	private final long segmentSize;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	/**
+	 * The live segments, oldest first. The segments from before a restart come first. All of these fields are guarded
+	 * by this.
+	 */
+	private final List<Segment> segments = new ArrayList<>();
+	/**
+	 * The segment being appended to, or null if nothing has been appended since the journal was opened.
+	 */
+	private Segment current = null;
+	/**
+	 * Whether a segment has been created since the directory was last forced.
+	 */
+	private boolean directoryDirty = false;
+	private long nextSeq;
+	/**
+	 * Every write numbered lower than this has been forced to disk.
+	 */
+	private long syncedSeq;
+	private boolean closed = false;
+	private RuntimeException failure = null;
+	private long syncs = 0;
+	private long replayed = 0;
+	private final Thread syncer;
+
+	private WriteJournal(File dir, long segmentSize, FileChannel lockChannel, FileLock lock) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.lockChannel = lockChannel;
+		this.lock = lock;
+		this.syncer = THREADS.newThread(this::sync);
+	}
+
+	/**
+	 * Opens the journal in the given directory, creating the directory if needed. Nothing is replayed until
+	 * {@link #replay} is called.
+	 *
+	 * @param dir
+	 * @param segmentSize The size of each segment file. A segment is only larger than this if a single write doesn't
+	 * fit into it.
+	 * @return
+	 * @throws DataSourceException If the directory can't be created, is in use by another journal, or contains a file
+	 * which isn't a segment.
+	 */
+	static WriteJournal open(File dir, long segmentSize) throws DataSourceException {
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new DataSourceException("Could not create the journal directory " + dir.getAbsolutePath());
+		}
+		FileChannel lockChannel = null;
+		try {
+			lockChannel = FileChannel.open(new File(dir, "journal.lock").toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+			FileLock lock;
+			try {
+				lock = lockChannel.tryLock();
+			} catch (OverlappingFileLockException ex) {
+				lock = null;
+			}
+			if(lock == null) {
+				throw new DataSourceException("The journal directory " + dir.getAbsolutePath() + " is already in use."
+						+ " Each route needs a journal directory of its own.");
+			}
+			WriteJournal journal = new WriteJournal(dir, Math.min(segmentSize, MAX_SEGMENT_SIZE), lockChannel, lock);
+			journal.recover();
+			journal.syncer.start();
+			return journal;
+		} catch (IOException ex) {
+			closeQuietly(lockChannel);
+			throw new DataSourceException("Could not open the journal in " + dir.getAbsolutePath(), ex);
+		} catch (DataSourceException | RuntimeException ex) {
+			closeQuietly(lockChannel);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Finds the segments left by a previous run. Empty segments, which are left by a crash right after a new segment
+	 * was started, are deleted, so that the next segment can take their place.
+	 */
+	private void recover() throws DataSourceException {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if(files == null) {
+			throw new DataSourceException("Could not list the journal directory " + dir.getAbsolutePath());
+		}
+		// The names are the zero padded number of the first write, so they sort in order
+		Arrays.sort(files);
+		for(File file : files) {
+			Segment segment = read(file, null);
+			if(segment.endSeq == segment.firstSeq) {
+				if(!file.delete()) {
+					throw new DataSourceException("Could not delete the empty journal segment " + file);
+				}
+				continue;
+			}
+			segments.add(segment);
+		}
+		nextSeq = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).endSeq;
+		syncedSeq = nextSeq;
+	}
+
+	/**
+	 * Reads the writes in a segment file.
+	 *
+	 * @param file
+	 * @param replayer Receives each write in the segment, or null to only count them.
+	 * @return
+	 * @throws DataSourceException If the file can't be read, or isn't a segment.
+	 */
+	private static Segment read(File file, Replayer replayer) throws DataSourceException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new DataSourceException(file + " is not a journal segment, or was written by a newer version.");
+			}
+			long firstSeq = buffer.getLong();
+			long seq = firstSeq;
+			CRC32 crc = new CRC32();
+			while(buffer.remaining() >= RECORD_HEADER_SIZE) {
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if(length <= 0 || length > buffer.remaining()) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if((int) crc.getValue() != checksum) {
+					break;
+				}
+				if(replayer != null) {
+					ByteBuffer record = ByteBuffer.wrap(payload);
+					String key = readString(record);
+					replayer.replay(key, readString(record), seq);
+				}
+				seq++;
+			}
+			return new Segment(file, firstSeq, seq, null);
+		} catch (IOException ex) {
+			throw new DataSourceException("Could not read the journal segment " + file, ex);
+		}
+	}
+
+	private static String readString(ByteBuffer record) {
+		int length = record.getInt();
+		if(length == -1) {
+			return null;
+		}
+		String ret = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+		record.position(record.position() + length);
+		return ret;
+	}
+
+	/**
+	 * Replays the writes left in the journal by a previous run, in the order they were made. This must be called
+	 * before anything is appended.
+	 *
+	 * @param replayer
+	 * @throws DataSourceException
+	 */
+	void replay(Replayer replayer) throws DataSourceException {
+		List<Segment> recovered;
+		synchronized(this) {
+			recovered = new ArrayList<>(segments);
+		}
+		long count = 0;
+		for(Segment segment : recovered) {
+			count += read(segment.file, replayer).endSeq - segment.firstSeq;
+		}
+		synchronized(this) {
+			replayed = count;
+		}
+	}
+
+	/**
+	 * Appends a write to the journal. It isn't durable until {@link #sync} has returned.
+	 *
+	 * @param key The full dotted key
+	 * @param value The value, or null to delete the key.
+	 * @return The number of the write
+	 * @throws DataSourceException If the journal has been closed, or can't be written to.
+	 */
+	synchronized long append(String key, String value) throws DataSourceException {
+		if(closed) {
+			throw new DataSourceException("The journal has been closed.");
+		}
+		if(failure != null) {
+			throw new DataSourceException("The journal in " + dir.getAbsolutePath() + " can't be written to.",
+					failure);
+		}
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		byte[] v = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(4 + k.length + 4 + (v == null ? 0 : v.length));
+		payload.putInt(k.length).put(k);
+		if(v == null) {
+			payload.putInt(-1);
+		} else {
+			payload.putInt(v.length).put(v);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, payload.capacity());
+		if(current == null || current.buffer.remaining() < RECORD_HEADER_SIZE + payload.capacity()) {
+			roll(RECORD_HEADER_SIZE + payload.capacity());
+		}
+		payload.flip();
+		current.buffer.putInt(payload.remaining()).putInt((int) crc.getValue()).put(payload);
+		long seq = nextSeq++;
+		current.endSeq = nextSeq;
+		notifyAll();
+		return seq;
+	}
+
+	/**
+	 * Starts a new segment, which is large enough for at least the given number of bytes. Must be called while
+	 * synchronized.
+	 */
+	private void roll(int minSize) throws DataSourceException {
+		File file = new File(dir, String.format("%020d", nextSeq) + SUFFIX);
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					Math.max(segmentSize, HEADER_SIZE + minSize));
+			buffer.putInt(MAGIC).putInt(VERSION).putLong(nextSeq);
+			current = new Segment(file, nextSeq, nextSeq, buffer);
+			segments.add(current);
+			// The segment's directory entry has to reach the disk too, or it may be missing after a crash
+			directoryDirty = true;
+		} catch (IOException ex) {
+			throw new DataSourceException("Could not create the journal segment " + file, ex);
+		}
+	}
+
+	/**
+	 * Waits until the given write has been forced to disk.
+	 *
+	 * @param seq The number {@link #append} returned for the write
+	 * @throws DataSourceException If the journal couldn't be forced.
+	 */
+	synchronized void sync(long seq) throws DataSourceException {
+		boolean interrupted = false;
+		while(syncedSeq <= seq && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException ex) {
+				// The write is already in the journal, so we can't give up on it
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if(syncedSeq <= seq) {
+			throw new DataSourceException("Could not force the journal in " + dir.getAbsolutePath() + " to disk.",
+					failure);
+		}
+	}
+
+	/**
+	 * Run by the syncer thread. Forces everything that was appended since the last force, for as long as the journal
+	 * is open.
+	 */
+	private void sync() {
+		while(true) {
+			long target;
+			boolean forceDirectory;
+			List<Segment> dirty = new ArrayList<>();
+			synchronized(this) {
+				while(syncedSeq == nextSeq && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+				if(syncedSeq == nextSeq) {
+					return;
+				}
+				target = nextSeq;
+				forceDirectory = directoryDirty;
+				directoryDirty = false;
+				for(Segment segment : segments) {
+					if(segment.buffer != null && segment.endSeq > syncedSeq) {
+						dirty.add(segment);
+					}
+				}
+			}
+			RuntimeException ex = null;
+			try {
+				for(Segment segment : dirty) {
+					segment.buffer.force();
+				}
+				if(forceDirectory) {
+					forceDirectory();
+				}
+			} catch (RuntimeException e) {
+				ex = e;
+			}
+			synchronized(this) {
+				if(ex != null) {
+					LOGGER.log(Level.SEVERE, "Could not force the journal in " + dir.getAbsolutePath() + " to disk",
+							ex);
+					failure = ex;
+					notifyAll();
+					return;
+				}
+				syncedSeq = target;
+				syncs++;
+				for(Segment segment : segments) {
+					if(segment != current && segment.endSeq <= syncedSeq) {
+						// Nothing more will be written to it, so the mapping can go
+						segment.buffer = null;
+					}
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Forces the directory to disk, so that the entries of the segments created in it survive a crash. Windows can't
+	 * open a directory, but doesn't need this either, since it doesn't defer directory updates in the same way.
+	 *
+	 * @throws UncheckedIOException If the directory couldn't be forced.
+	 */
+	private void forceDirectory() {
+		if(File.separatorChar == '\\') {
+			return;
+		}
+		try(FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException ex) {
+			throw new UncheckedIOException("Could not force the journal directory " + dir.getAbsolutePath(), ex);
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments, up to the first one which still holds a write numbered at least the given number.
+	 * The current segment is kept.
+	 *
+	 * @param seq The number of the oldest write which hasn't reached the table, or {@link #getNextSeq} if every write
+	 * has.
+	 */
+	synchronized void release(long seq) {
+		while(!closed && !segments.isEmpty() && segments.get(0) != current && segments.get(0).endSeq <= seq) {
+			Segment segment = segments.get(0);
+			if(!segment.file.delete()) {
+				// On some systems, a file can't be deleted while it is still mapped. Since segments must be deleted in
+				// order, nothing after it is deleted either, and this is tried again on the next release.
+				LOGGER.log(Level.FINE, "Could not delete the journal segment " + segment.file);
+				return;
+			}
+			segments.remove(0);
+		}
+	}
+
+	/**
+	 * The number the next write will get.
+	 *
+	 * @return
+	 */
+	synchronized long getNextSeq() {
+		return nextSeq;
+	}
+
+	synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	synchronized long getSyncs() {
+		return syncs;
+	}
+
+	/**
+	 * The number of writes that were replayed when the journal was opened.
+	 *
+	 * @return
+	 */
+	synchronized long getReplayed() {
+		return replayed;
+	}
+
+	/**
+	 * Forces anything not yet forced, stops the syncer, and releases the directory.
+	 *
+	 * @param delete If true, every segment is deleted, which must only be done once every write has reached the
+	 * table.
+	 */
+	void close(boolean delete) {
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			syncer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if(delete) {
+			synchronized(this) {
+				while(!segments.isEmpty() && segments.get(0).file.delete()) {
+					segments.remove(0);
+				}
+				if(!segments.isEmpty()) {
+					LOGGER.log(Level.WARNING, "Could not delete the journal segments in " + dir.getAbsolutePath()
+							+ ". They will be replayed on the next start, which writes values that have already reached"
+							+ " the table again.");
+				}
+			}
+		}
+		try {
+			lock.release();
+		} catch (IOException ex) {
+			// Closing the channel releases it anyway
+		}
+		closeQuietly(lockChannel);
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if(channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			LOGGER.log(Level.FINE, "Could not close the journal lock", ex);
+		}
+	}
+
+}
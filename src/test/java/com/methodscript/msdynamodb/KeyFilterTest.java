@@ -0,0 +1,82 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KeyFilterTest {
+
+	@Test
+	public void everyKeyMightExistUntilReady() {
+		KeyFilter filter = new KeyFilter(1000);
+		assertFalse(filter.isReady());
+		assertTrue(filter.mightContain("storage.missing"));
+	}
+
+	@Test
+	public void addedKeysAreFound() {
+		KeyFilter filter = new KeyFilter(1000);
+		long epoch = filter.getEpoch();
+		for(int i = 0; i < 1000; i++) {
+			filter.add("storage.key" + i);
+		}
+		assertTrue(filter.markReady(epoch));
+		for(int i = 0; i < 1000; i++) {
+			assertTrue(filter.mightContain("storage.key" + i));
+		}
+	}
+
+	@Test
+	public void falsePositivesAreRare() {
+		KeyFilter filter = new KeyFilter(1000);
+		long epoch = filter.getEpoch();
+		for(int i = 0; i < 1000; i++) {
+			filter.add("storage.key" + i);
+		}
+		filter.markReady(epoch);
+		int falsePositives = 0;
+		for(int i = 0; i < 10000; i++) {
+			if(filter.mightContain("storage.other" + i)) {
+				falsePositives++;
+			}
+		}
+		// The filter is sized for 1%, so this leaves plenty of room
+		assertTrue("Too many false positives: " + falsePositives, falsePositives < 300);
+	}
+
+	@Test
+	public void staleFilterAnswersEveryKeyMightExist() {
+		KeyFilter filter = new KeyFilter(1000);
+		filter.markReady(filter.getEpoch());
+		assertFalse(filter.mightContain("storage.missing"));
+		filter.markStale();
+		assertFalse(filter.isReady());
+		assertTrue(filter.mightContain("storage.missing"));
+	}
+
+	@Test
+	public void markedStaleDuringFillIsNotReady() {
+		KeyFilter filter = new KeyFilter(1000);
+		long epoch = filter.getEpoch();
+		filter.markStale();
+		assertFalse(filter.markReady(epoch));
+		assertFalse(filter.isReady());
+		assertTrue(filter.markReady(filter.getEpoch()));
+		assertTrue(filter.isReady());
+	}
+
+	@Test
+	public void statisticsCountStale() {
+		KeyFilter filter = new KeyFilter(1000);
+		filter.markStale();
+		filter.markStale();
+		assertEquals(2L, filter.getStatistics().get("stale").longValue());
+	}
+
+}
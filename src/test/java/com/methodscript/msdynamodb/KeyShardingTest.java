@@ -0,0 +1,151 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.laytonsmith.persistence.DataSourceException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class KeyShardingTest {
+
+	@Test
+	public void matchesPatterns() throws Exception {
+		KeySharding sharding = KeySharding.parse("storage.players.*.last, storage.events.**", null, 4);
+		assertEquals(KeySharding.Strategy.LWW, sharding.strategyFor("storage.players.bob.last"));
+		assertNull(sharding.strategyFor("storage.players.bob.last.x"));
+		assertNull(sharding.strategyFor("storage.players.bob"));
+		assertEquals(KeySharding.Strategy.LWW, sharding.strategyFor("storage.events.a"));
+		assertEquals(KeySharding.Strategy.LWW, sharding.strategyFor("storage.events.a.b"));
+		// ** matches at least one segment
+		assertNull(sharding.strategyFor("storage.events"));
+		assertNull(sharding.strategyFor("storage.eventsx.a"));
+		assertEquals(4, sharding.getShardCount());
+	}
+
+	@Test
+	public void sumRulesComeFirst() throws Exception {
+		KeySharding sharding = KeySharding.parse("storage.**", "storage.counters.*", 4);
+		assertEquals(KeySharding.Strategy.SUM, sharding.strategyFor("storage.counters.kills"));
+		assertEquals(KeySharding.Strategy.LWW, sharding.strategyFor("storage.other"));
+	}
+
+	@Test
+	public void otherShardsAreNotSharded() throws Exception {
+		KeySharding sharding = KeySharding.parse("storage.**", null, 4);
+		assertNull(sharding.strategyFor(KeySharding.shardKey("storage.a", 2)));
+	}
+
+	@Test
+	public void emptyRulesAreIgnored() throws Exception {
+		KeySharding sharding = KeySharding.parse(" , ", null, 4);
+		assertNull(sharding.strategyFor("storage.a"));
+		assertFalse(sharding.mayMatchUnder(new String[]{"storage"}));
+	}
+
+	@Test
+	public void rejectsMalformedRules() {
+		assertRejected("storage.**.a", null, 4);
+		assertRejected("storage.a:sum", null, 4);
+		assertRejected(null, "storage.a:b", 4);
+		assertRejected("storage.a", null, 1);
+		assertRejected("storage.a", null, KeySharding.MAX_SHARDS + 1);
+	}
+
+	@Test
+	public void mayMatchUnder() throws Exception {
+		KeySharding sharding = KeySharding.parse("storage.players.*.last, storage.events.**", null, 4);
+		assertTrue(sharding.mayMatchUnder(new String[]{"storage"}));
+		assertTrue(sharding.mayMatchUnder(new String[]{"storage", "players"}));
+		assertTrue(sharding.mayMatchUnder(new String[]{"storage", "players", "bob"}));
+		assertTrue(sharding.mayMatchUnder(new String[]{"storage", "events", "a", "b"}));
+		assertFalse(sharding.mayMatchUnder(new String[]{"storage", "other"}));
+		assertFalse(sharding.mayMatchUnder(new String[]{"storage", "players", "bob", "first"}));
+		assertFalse(sharding.mayMatchUnder(new String[]{"storage", "players", "bob", "last", "x"}));
+	}
+
+	@Test
+	public void shardKeys() {
+		assertEquals("storage.a", KeySharding.shardKey("storage.a", 0));
+		assertEquals("storage.a" + KeySharding.SHARD_SEPARATOR + 3, KeySharding.shardKey("storage.a", 3));
+		assertEquals("storage.a", KeySharding.baseKey(KeySharding.shardKey("storage.a", 3)));
+		assertNull(KeySharding.baseKey("storage.a"));
+	}
+
+	@Test
+	public void pickShardIsInRange() throws Exception {
+		KeySharding sharding = KeySharding.parse("storage.**", null, 3);
+		for(int i = 0; i < 100; i++) {
+			int shard = sharding.pickShard();
+			assertTrue(shard >= 0 && shard < 3);
+		}
+	}
+
+	@Test
+	public void combineSum() throws Exception {
+		ValueCodec codec = new ValueCodec(false, 0);
+		List<Map<String, AttributeValue>> items = new ArrayList<>();
+		// The value written before the key was sharded is part of the sum
+		items.add(item(ValueCodec.VALUE_ATTRIBUTE, new AttributeValue("10")));
+		items.add(item(KeySharding.SUM_ATTRIBUTE, new AttributeValue().withN("2.5")));
+		items.add(item(KeySharding.SUM_ATTRIBUTE, new AttributeValue().withN("-0.5")));
+		assertEquals("12", KeySharding.combine(KeySharding.Strategy.SUM, codec, "storage.a", items));
+		assertNull(KeySharding.combine(KeySharding.Strategy.SUM, codec, "storage.a", new ArrayList<>()));
+	}
+
+	@Test
+	public void combineLastWriterWins() throws Exception {
+		ValueCodec codec = new ValueCodec(false, 0);
+		List<Map<String, AttributeValue>> items = new ArrayList<>();
+		items.add(item(ValueCodec.VALUE_ATTRIBUTE, new AttributeValue("unsharded")));
+		Map<String, AttributeValue> newer = item(ValueCodec.VALUE_ATTRIBUTE, new AttributeValue("newer"));
+		newer.put(KeySharding.TIME_ATTRIBUTE, new AttributeValue().withN("200"));
+		Map<String, AttributeValue> older = item(ValueCodec.VALUE_ATTRIBUTE, new AttributeValue("older"));
+		older.put(KeySharding.TIME_ATTRIBUTE, new AttributeValue().withN("100"));
+		items.add(newer);
+		items.add(older);
+		assertEquals("newer", KeySharding.combine(KeySharding.Strategy.LWW, codec, "storage.a", items));
+	}
+
+	@Test
+	public void formatsSums() throws Exception {
+		assertEquals("3", KeySharding.format(new BigDecimal("3.000")));
+		assertEquals("1200", KeySharding.format(new BigDecimal("1.2E+3")));
+		assertEquals("0.25", KeySharding.format(new BigDecimal("0.250")));
+		assertEquals(new BigDecimal("5"), KeySharding.toNumber("storage.a", " 5 "));
+		try {
+			KeySharding.toNumber("storage.a", "five");
+			fail();
+		} catch (DataSourceException ex) {
+			assertTrue(ex.getMessage().contains("storage.a"));
+		}
+	}
+
+	private static Map<String, AttributeValue> item(String attribute, AttributeValue value) {
+		Map<String, AttributeValue> item = new HashMap<>();
+		item.put(attribute, value);
+		return item;
+	}
+
+	private static void assertRejected(String shardKeys, String sumKeys, int shardCount) {
+		try {
+			KeySharding.parse(shardKeys, sumKeys, shardCount);
+			fail("Expected \"" + shardKeys + "\", \"" + sumKeys + "\", " + shardCount + " to be rejected");
+		} catch (DataSourceException ex) {
+			// Expected
+		}
+	}
+
+}
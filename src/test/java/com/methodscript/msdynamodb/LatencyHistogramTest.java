@@ -0,0 +1,86 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyHistogramIsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(99));
+		assertEquals(0.0, histogram.getStatistics().get("meanMillis").doubleValue(), 0);
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 10; i++) {
+			histogram.record(i);
+		}
+		assertEquals(10, histogram.getCount());
+		assertEquals(5, histogram.getPercentile(50));
+		assertEquals(9, histogram.getPercentile(90));
+		assertEquals(10, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void percentilesAreWithinBucketPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 100000; i++) {
+			histogram.record(i);
+		}
+		assertClose(50000, histogram.getPercentile(50));
+		assertClose(90000, histogram.getPercentile(90));
+		assertClose(99000, histogram.getPercentile(99));
+		assertEquals(100000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void percentileIsCappedAtMax() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		assertEquals(1000, histogram.getPercentile(50));
+	}
+
+	@Test
+	public void valuesAreClamped() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals((1L << 40) - 1, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void statisticsAreInMillis() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		histogram.record(3000);
+		Map<String, Number> statistics = histogram.getStatistics();
+		assertEquals(2L, statistics.get("count").longValue());
+		assertEquals(2.0, statistics.get("meanMillis").doubleValue(), 0);
+		assertEquals(3.0, statistics.get("maxMillis").doubleValue(), 0);
+		assertTrue(statistics.containsKey("p50Millis"));
+		assertTrue(statistics.containsKey("p90Millis"));
+		assertTrue(statistics.containsKey("p99Millis"));
+		assertTrue(statistics.containsKey("p999Millis"));
+	}
+
+	/**
+	 * Each bucket is a sixteenth of its power of two wide, so a percentile is at most that far above the exact one.
+	 */
+	private static void assertClose(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual,
+				actual >= expected && actual <= expected + expected / 16);
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ParallelScanTest {
+
+	/**
+	 * A table whose segments each return the given number of pages of two items, or an endless number if pages is
+	 * -1. Segment 0 is always empty.
+	 */
+	private static final class FakeDynamoDB extends AbstractAmazonDynamoDB {
+
+		private final int pages;
+		private final int failingSegment;
+		private final AtomicInteger scans = new AtomicInteger();
+
+		private FakeDynamoDB(int pages, int failingSegment) {
+			this.pages = pages;
+			this.failingSegment = failingSegment;
+		}
+
+		@Override
+		public ScanResult scan(ScanRequest request) {
+			scans.incrementAndGet();
+			int segment = request.getSegment();
+			if(segment == failingSegment) {
+				throw new IllegalArgumentException("Segment " + segment + " failed");
+			}
+			if(segment == 0) {
+				return new ScanResult().withItems(Collections.emptyList());
+			}
+			int page = request.getExclusiveStartKey() == null ? 0
+					: Integer.parseInt(request.getExclusiveStartKey().get("key").getS().split("-")[1]) + 1;
+			List<Map<String, AttributeValue>> items = new ArrayList<>();
+			for(int i = 0; i < 2; i++) {
+				items.add(Collections.singletonMap("key", new AttributeValue(segment + "-" + page + "-" + i)));
+			}
+			ScanResult result = new ScanResult().withItems(items);
+			if(pages == -1 || page < pages - 1) {
+				result.setLastEvaluatedKey(new HashMap<>(items.get(1)));
+			}
+			return result;
+		}
+	}
+
+	@Test
+	public void readsEverySegmentToTheEnd() {
+		FakeDynamoDB client = new FakeDynamoDB(3, -1);
+		ParallelScan scan = new ParallelScan(client, new ScanRequest("table"), 4, CapacityLimiter.unlimited().reads);
+		Set<String> keys = new HashSet<>();
+		try(ParallelScan.ScanIterator it = scan.iterator()) {
+			while(it.hasNext()) {
+				assertTrue(keys.add(it.next().get("key").getS()));
+			}
+			assertFalse(it.hasNext());
+			try {
+				it.next();
+				fail();
+			} catch (NoSuchElementException ex) {
+				// Expected
+			}
+		}
+		// Segment 0 is empty, the other three have three pages of two
+		assertEquals(18, keys.size());
+		assertEquals(10, client.scans.get());
+	}
+
+	@Test
+	public void eachIteratorStartsOver() {
+		FakeDynamoDB client = new FakeDynamoDB(2, -1);
+		ParallelScan scan = new ParallelScan(client, new ScanRequest("table"), 2, CapacityLimiter.unlimited().reads);
+		for(int i = 0; i < 2; i++) {
+			int count = 0;
+			for(Map<String, AttributeValue> item : scan) {
+				count++;
+			}
+			assertEquals(4, count);
+		}
+	}
+
+	@Test
+	public void workerFailureReachesTheReader() {
+		FakeDynamoDB client = new FakeDynamoDB(-1, 2);
+		ParallelScan scan = new ParallelScan(client, new ScanRequest("table"), 4, CapacityLimiter.unlimited().reads);
+		try(ParallelScan.ScanIterator it = scan.iterator()) {
+			while(it.hasNext()) {
+				it.next();
+			}
+			fail();
+		} catch (IllegalArgumentException ex) {
+			assertEquals("Segment 2 failed", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void closeStopsTheWorkers() throws Exception {
+		FakeDynamoDB client = new FakeDynamoDB(-1, -1);
+		ParallelScan scan = new ParallelScan(client, new ScanRequest("table"), 4, CapacityLimiter.unlimited().reads);
+		ParallelScan.ScanIterator it = scan.iterator();
+		for(int i = 0; i < 10; i++) {
+			it.next();
+		}
+		it.close();
+		assertFalse(it.hasNext());
+		// Each worker may finish the page it was fetching, but then stops
+		Thread.sleep(200);
+		int scans = client.scans.get();
+		Thread.sleep(500);
+		assertEquals(scans, client.scans.get());
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ValueCacheTest {
+
+	@Test
+	public void cachesValuesAndMissingKeys() {
+		ValueCache cache = new ValueCache(10, 60000, 60000);
+		cache.put("a", "1", cache.readToken());
+		cache.put("b", null, cache.readToken());
+		assertEquals("1", cache.get("a").value);
+		assertNotNull(cache.get("b"));
+		assertNull(cache.get("b").value);
+		assertNull(cache.get("c"));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void missingKeysAreNotCachedWithoutNegativeTtl() {
+		ValueCache cache = new ValueCache(10, 60000, 0);
+		cache.put("a", null, cache.readToken());
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void readStartedBeforeInvalidationIsNotCached() {
+		ValueCache cache = new ValueCache(10, 60000, 60000);
+		long token = cache.readToken();
+		cache.invalidate("a");
+		assertTrue(cache.invalidatedSince("a", token));
+		cache.put("a", "old", token);
+		assertNull(cache.get("a"));
+		// Other keys are unaffected
+		assertFalse(cache.invalidatedSince("b", token));
+		cache.put("b", "1", token);
+		assertEquals("1", cache.get("b").value);
+	}
+
+	@Test
+	public void readStartedAfterInvalidationIsCached() {
+		ValueCache cache = new ValueCache(10, 60000, 60000);
+		cache.invalidate("a");
+		long token = cache.readToken();
+		assertFalse(cache.invalidatedSince("a", token));
+		cache.put("a", "new", token);
+		assertEquals("new", cache.get("a").value);
+	}
+
+	@Test
+	public void forgottenInvalidationsInvalidateOldTokens() {
+		ValueCache cache = new ValueCache(2, 60000, 60000);
+		long token = cache.readToken();
+		cache.invalidate("a");
+		cache.invalidate("b");
+		long later = cache.readToken();
+		// Only two invalidations are remembered, so a's is forgotten, and c can't tell whether it was invalidated
+		cache.invalidate("c");
+		cache.invalidate("d");
+		assertTrue(cache.invalidatedSince("x", token));
+		assertFalse(cache.invalidatedSince("x", later));
+		assertTrue(cache.invalidatedSince("c", later));
+	}
+
+	@Test
+	public void refreshOnlyUpdatesCachedKeys() {
+		ValueCache cache = new ValueCache(10, 60000, 60000);
+		long token = cache.readToken();
+		cache.put("a", "1", token);
+		cache.refresh("a", "2");
+		cache.refresh("b", "2");
+		assertEquals("2", cache.get("a").value);
+		assertNull(cache.get("b"));
+		// A read that started before the refresh must not put the older value back
+		cache.put("a", "1", token);
+		assertEquals("2", cache.get("a").value);
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		ValueCache cache = new ValueCache(2, 60000, 60000);
+		cache.put("a", "1", cache.readToken());
+		cache.put("b", "2", cache.readToken());
+		assertTrue(cache.isFull());
+		cache.get("a");
+		cache.put("c", "3", cache.readToken());
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+	}
+
+}
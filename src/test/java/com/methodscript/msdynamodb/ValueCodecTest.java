@@ -0,0 +1,143 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.laytonsmith.persistence.DataSourceException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ValueCodecTest {
+
+	private static final KeyLayout FLAT = flat();
+
+	private static KeyLayout flat() {
+		try {
+			return KeyLayout.forDepth(0);
+		} catch (DataSourceException ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+
+	@Test
+	public void plainRoundTrip() throws Exception {
+		ValueCodec codec = new ValueCodec(false, 0);
+		List<Map<String, AttributeValue>> items = codec.toItems(FLAT, "storage.a", "h\u00e9llo");
+		assertEquals(1, items.size());
+		assertNotNull(items.get(0).get(ValueCodec.VALUE_ATTRIBUTE).getS());
+		assertEquals("h\u00e9llo", codec.decode(items.get(0)));
+	}
+
+	@Test
+	public void binaryRoundTrip() throws Exception {
+		ValueCodec codec = new ValueCodec(true, 1000);
+		List<Map<String, AttributeValue>> items = codec.toItems(FLAT, "storage.a", "h\u00e9llo \ud83d\ude00");
+		assertEquals(1, items.size());
+		assertNotNull(items.get(0).get(ValueCodec.VALUE_ATTRIBUTE).getB());
+		assertEquals("h\u00e9llo \ud83d\ude00", codec.decode(items.get(0)));
+	}
+
+	@Test
+	public void compressedRoundTrip() throws Exception {
+		ValueCodec codec = new ValueCodec(true, 100);
+		String value = repeat("compressible ", 1000);
+		List<Map<String, AttributeValue>> items = codec.toItems(FLAT, "storage.a", value);
+		assertTrue(ValueCodec.valueSize(items) < value.length() / 10);
+		assertEquals(value, codec.decode(items.get(0)));
+	}
+
+	@Test
+	public void eitherCodecReadsBothFormats() throws Exception {
+		ValueCodec plain = new ValueCodec(false, 0);
+		ValueCodec binary = new ValueCodec(true, 0);
+		assertEquals("1", binary.decode(plain.toItems(FLAT, "storage.a", "1").get(0)));
+		assertEquals("1", plain.decode(binary.toItems(FLAT, "storage.a", "1").get(0)));
+	}
+
+	@Test
+	public void chunkedRoundTrip() throws Exception {
+		ValueCodec codec = new ValueCodec(true, 100);
+		String value = random(1024 * 1024, 1);
+		List<Map<String, AttributeValue>> items = codec.toItems(FLAT, "storage.a", value);
+		assertTrue(items.size() > 1);
+		assertEquals(items.size(), ValueCodec.chunkCount(items.get(0)));
+		for(int i = 1; i < items.size(); i++) {
+			assertTrue(ValueCodec.isChunk(items.get(i)));
+			assertEquals(ValueCodec.chunkKey("storage.a", i),
+					items.get(i).get(KeyLayout.KEY_ATTRIBUTE).getS());
+		}
+		List<Map<String, AttributeValue>> chunks = new ArrayList<>(items.subList(1, items.size()));
+		// The chunks may be read in any order
+		Collections.reverse(chunks);
+		assertEquals(value, codec.decode("storage.a", items.get(0), chunks));
+	}
+
+	@Test
+	public void chunksFromAnotherWriteAreStale() throws Exception {
+		ValueCodec codec = new ValueCodec(true, 100);
+		List<Map<String, AttributeValue>> first = codec.toItems(FLAT, "storage.a", random(1024 * 1024, 1));
+		List<Map<String, AttributeValue>> second = codec.toItems(FLAT, "storage.a", random(1024 * 1024, 2));
+		try {
+			codec.decode("storage.a", first.get(0), second.subList(1, second.size()));
+			fail();
+		} catch (ValueCodec.StaleChunkException ex) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void missingChunkIsStale() throws Exception {
+		ValueCodec codec = new ValueCodec(true, 100);
+		List<Map<String, AttributeValue>> items = codec.toItems(FLAT, "storage.a", random(1024 * 1024, 1));
+		try {
+			codec.decode("storage.a", items.get(0), Collections.emptyList());
+			fail();
+		} catch (ValueCodec.StaleChunkException ex) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void tooLargeValueIsRejected() {
+		ValueCodec codec = new ValueCodec(true, 100);
+		try {
+			codec.toItems(FLAT, "storage.a", random(ValueCodec.MAX_CHUNKS * 1024 * 1024, 1));
+			fail();
+		} catch (DataSourceException ex) {
+			assertTrue(ex.getMessage().contains("storage.a"));
+		}
+	}
+
+	private static String repeat(String s, int times) {
+		StringBuilder b = new StringBuilder(s.length() * times);
+		for(int i = 0; i < times; i++) {
+			b.append(s);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Returns letters and digits which don't compress to much less than 6 bits each.
+	 */
+	private static String random(int length, long seed) {
+		String alphabet = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+		Random random = new Random(seed);
+		char[] chars = new char[length];
+		for(int i = 0; i < length; i++) {
+			chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+		}
+		return new String(chars);
+	}
+
+}
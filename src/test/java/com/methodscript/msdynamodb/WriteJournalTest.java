@@ -0,0 +1,186 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.methodscript.msdynamodb;
+
+import com.laytonsmith.persistence.DataSourceException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteJournalTest {
+
+	/**
+	 * The size of a segment's header, and of a record of a one character key and value.
+	 */
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 8 + 4 + 1 + 4 + 1;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysWritesInOrder() throws Exception {
+		File dir = folder.newFolder();
+		write(dir, "a", "1", "b", null, "c", "3");
+		WriteJournal journal = WriteJournal.open(dir, 1024);
+		try {
+			assertEquals(Arrays.asList("0 a=1", "1 b=null", "2 c=3"), replay(journal));
+			assertEquals(3, journal.getReplayed());
+			assertEquals(3, journal.getNextSeq());
+		} finally {
+			journal.close(false);
+		}
+	}
+
+	@Test
+	public void replayStopsAtBadChecksum() throws Exception {
+		File dir = folder.newFolder();
+		write(dir, "a", "1", "b", "2", "c", "3");
+		// Change the key of the second record
+		corrupt(segments(dir)[0], HEADER_SIZE + RECORD_SIZE + 8 + 4);
+		WriteJournal journal = WriteJournal.open(dir, 1024);
+		try {
+			assertEquals(Arrays.asList("0 a=1"), replay(journal));
+			assertEquals(1, journal.getNextSeq());
+		} finally {
+			journal.close(false);
+		}
+	}
+
+	@Test
+	public void replayStopsAtTornRecord() throws Exception {
+		File dir = folder.newFolder();
+		write(dir, "a", "1", "b", "2");
+		try(RandomAccessFile file = new RandomAccessFile(segments(dir)[0], "rw")) {
+			file.setLength(HEADER_SIZE + RECORD_SIZE + 5);
+		}
+		WriteJournal journal = WriteJournal.open(dir, 1024);
+		try {
+			assertEquals(Arrays.asList("0 a=1"), replay(journal));
+		} finally {
+			journal.close(false);
+		}
+	}
+
+	@Test
+	public void writesAfterRecoveryFollowTheLastGoodRecord() throws Exception {
+		File dir = folder.newFolder();
+		write(dir, "a", "1", "b", "2");
+		corrupt(segments(dir)[0], HEADER_SIZE + RECORD_SIZE + 8 + 4);
+		WriteJournal journal = WriteJournal.open(dir, 1024);
+		journal.replay((key, value, seq) -> {
+		});
+		journal.sync(journal.append("c", "3"));
+		journal.close(false);
+		journal = WriteJournal.open(dir, 1024);
+		try {
+			assertEquals(Arrays.asList("0 a=1", "1 c=3"), replay(journal));
+		} finally {
+			journal.close(false);
+		}
+	}
+
+	@Test
+	public void emptySegmentsAreDeleted() throws Exception {
+		File dir = folder.newFolder();
+		File empty = new File(dir, String.format("%020d", 0) + ".journal");
+		try(RandomAccessFile file = new RandomAccessFile(empty, "rw")) {
+			file.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0x4D53444A).putInt(1).putLong(0).array());
+		}
+		WriteJournal journal = WriteJournal.open(dir, 1024);
+		try {
+			assertFalse(empty.exists());
+			assertEquals(0, journal.getSegmentCount());
+			assertEquals(0, journal.getNextSeq());
+		} finally {
+			journal.close(false);
+		}
+	}
+
+	@Test
+	public void releaseDeletesOldSegments() throws Exception {
+		File dir = folder.newFolder();
+		// Each segment fits two records
+		WriteJournal journal = WriteJournal.open(dir, HEADER_SIZE + 2 * RECORD_SIZE);
+		try {
+			for(int i = 0; i < 6; i++) {
+				journal.sync(journal.append("a", Integer.toString(i)));
+			}
+			assertEquals(3, journal.getSegmentCount());
+			journal.release(3);
+			assertEquals(2, journal.getSegmentCount());
+			journal.release(journal.getNextSeq());
+			// The current segment is kept
+			assertEquals(1, journal.getSegmentCount());
+			assertEquals(1, segments(dir).length);
+		} finally {
+			journal.close(true);
+		}
+		assertEquals(0, segments(dir).length);
+	}
+
+	@Test
+	public void directoryCanOnlyBeOpenedOnce() throws Exception {
+		File dir = folder.newFolder();
+		WriteJournal journal = WriteJournal.open(dir, 1024);
+		try {
+			WriteJournal.open(dir, 1024);
+			fail();
+		} catch (DataSourceException ex) {
+			// Expected
+		} finally {
+			journal.close(false);
+		}
+		WriteJournal.open(dir, 1024).close(false);
+	}
+
+	/**
+	 * Writes the given keys and values to a new journal, and closes it without deleting them.
+	 */
+	private static void write(File dir, String... keysAndValues) throws DataSourceException {
+		WriteJournal journal = WriteJournal.open(dir, 1024);
+		journal.replay((key, value, seq) -> {
+		});
+		long seq = -1;
+		for(int i = 0; i < keysAndValues.length; i += 2) {
+			seq = journal.append(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		journal.sync(seq);
+		journal.close(false);
+	}
+
+	private static List<String> replay(WriteJournal journal) throws DataSourceException {
+		List<String> ret = new ArrayList<>();
+		journal.replay((key, value, seq) -> ret.add(seq + " " + key + "=" + value));
+		return ret;
+	}
+
+	private static void corrupt(File file, long position) throws IOException {
+		try(RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+			f.seek(position);
+			int b = f.read();
+			f.seek(position);
+			f.write(b ^ 0xFF);
+		}
+	}
+
+	private static File[] segments(File dir) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".journal"));
+		Arrays.sort(files);
+		return files;
+	}
+
+}